@@ -0,0 +1,42 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The jmh command line, with the gc profiler on and the results written to jmh-result.json unless the command
+ * line says otherwise. Two runs' result files can be compared to see what a release changed, allocation included.
+ *
+ * On java 9 and above the forks also get java.lang opened up, which guice needs for its generated classes.
+ */
+public class BenchmarkMain
+{
+	public static final String RESULT_FILE = "jmh-result.json";
+
+	public static void main(String[] args) throws Exception
+	{
+		CommandLineOptions options = new CommandLineOptions(args);
+		if(options.shouldHelp() || options.shouldList() || options.shouldListWithParams() || options.shouldListProfilers()
+				|| options.shouldListResultFormats())
+		{
+			Main.main(args);
+			return;
+		}
+
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+		if(options.getProfilers().isEmpty())
+			builder.addProfiler(GCProfiler.class);
+		if(!options.getResultFormat().hasValue())
+			builder.resultFormat(ResultFormatType.JSON);
+		if(!options.getResult().hasValue())
+			builder.result(RESULT_FILE);
+		if(!System.getProperty("java.specification.version").startsWith("1.") && !options.getJvmArgsPrepend().hasValue())
+			builder.jvmArgsPrepend("--add-opens", "java.base/java.lang=ALL-UNNAMED");
+		new Runner(builder.build()).run();
+	}
+}
@@ -0,0 +1,97 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.magicalspirits.httptest.thirdparty.InstrumentedExecutorService;
+
+/**
+ * The hop from one pipeline stage to the next: hand a task to a cached pool, the way ExecutorsModule builds its
+ * pools, and wait for another thread to run it. With and without the InstrumentedExecutorService around the pool,
+ * so the difference is what the pool metrics cost on every hop.
+ *
+ * Use -t to have more stages handing off at once.
+ * java -jar target/benchmarks.jar ExecutorHandoffBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecutorHandoffBenchmark
+{
+	@State(Scope.Benchmark)
+	public static class Pool
+	{
+		@Param({"true", "false"})
+		public boolean instrumented;
+
+		private ExecutorService pool;
+
+		@Setup(Level.Trial)
+		public void setup()
+		{
+			pool = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("handoff-%d").setDaemon(true).build());
+			if(instrumented)
+				pool = new InstrumentedExecutorService(pool, new MetricRegistry());
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown()
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * One per benchmark thread, and run again for every operation, so the hop itself allocates nothing.
+	 */
+	@State(Scope.Thread)
+	public static class Handoff implements Runnable
+	{
+		private Thread waiter;
+
+		private volatile boolean done;
+
+		@Setup(Level.Trial)
+		public void setup()
+		{
+			waiter = Thread.currentThread();
+		}
+
+		@Override
+		public void run()
+		{
+			done = true;
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	@Benchmark
+	public boolean handoff(Pool pool, Handoff handoff)
+	{
+		handoff.done = false;
+		pool.pool.execute(handoff);
+		while(!handoff.done)
+			LockSupport.park(this);
+		return handoff.done;
+	}
+}
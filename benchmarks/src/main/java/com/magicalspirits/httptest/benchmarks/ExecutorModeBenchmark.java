@@ -0,0 +1,95 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.inject.Guice;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+/**
+ * Compares the cached platform thread pool with the virtual thread per task pool when every task blocks,
+ * the way a connection does while the parser waits on the socket. Both pools are built by the real
+ * ExecutorsModule, so the metrics wrapper is included in the cost.
+ *
+ * On a jvm without virtual threads the VIRTUAL runs fall back to the cached pool and should match it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecutorModeBenchmark
+{
+	@Param({"CACHED", "VIRTUAL"})
+	public String mode;
+
+	@Param({"100", "1000", "10000"})
+	public int concurrentTasks;
+
+	@Param({"10"})
+	public int blockMillis;
+
+	private CloseableInjector injector;
+
+	private ExecutorService pool;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		injector = Guice.createInjector(new CloseableModule(), new Jsr250Module(), new MetricsModule(),
+				new ExecutorsModule(ExecutorsModule.Mode.valueOf(mode)))
+					.getInstance(CloseableInjector.class);
+		pool = injector.getInstance(ExecutorService.class);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		injector.close();
+	}
+
+	@Benchmark
+	public void blockingTasks() throws InterruptedException
+	{
+		final CountDownLatch done = new CountDownLatch(concurrentTasks);
+		for(int i = 0; i < concurrentTasks; i++)
+		{
+			pool.execute(() ->
+			{
+				try
+				{
+					Thread.sleep(blockMillis);
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				finally
+				{
+					done.countDown();
+				}
+			});
+		}
+		done.await();
+	}
+}
@@ -0,0 +1,88 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import lombok.RequiredArgsConstructor;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.AbstractModule;
+import com.google.inject.Injector;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import com.google.inject.name.Names;
+import com.magicalspirits.httptest.acceptor.SocketRunner;
+import com.magicalspirits.httptest.httpapplication.ApplicationRunner;
+import com.magicalspirits.httptest.httpapplication.Router;
+import com.magicalspirits.httptest.httpparser.HttpHeaderParser;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.MainlineModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+
+/**
+ * The mainline pipeline with no acceptors, and both pools running whatever they're handed on the calling thread.
+ * A stage started on a MemorySocket runs the whole request, every later stage included, before it returns.
+ *
+ * Use it with MetricsModule, so the stages carry the same metrics they do in the server.
+ */
+@RequiredArgsConstructor
+public class InProcessModule extends AbstractModule
+{
+	private final ServerConfig config;
+
+	private final Class<? extends ApplicationRunner> applicationRunner;
+
+	private MainlineModule mmm = new MainlineModule(); //reference for delegation
+
+	@Override
+	protected void configure()
+	{
+		bind(ServerConfig.class).toInstance(config);
+		bind(SocketRunner.class).to(HttpRequestParser.class);
+		bind(ApplicationRunner.class).to(Router.class);
+		MainlineModule.bindRoutes(binder(), applicationRunner);
+		bind(ExecutorService.class).toInstance(MoreExecutors.newDirectExecutorService());
+		bind(ExecutorService.class).annotatedWith(Names.named(ExecutorsModule.HTTP_SERVER_POOL)).toInstance(MoreExecutors.newDirectExecutorService());
+		//the selector loops each need a thread of their own, even here.
+		bind(ExecutorService.class).annotatedWith(Names.named(ExecutorsModule.ACCEPTOR_POOL)).toInstance(Executors.newCachedThreadPool(
+				new ThreadFactoryBuilder().setNameFormat(ExecutorsModule.ACCEPTOR_POOL + "-%d").setDaemon(true).build()));
+	}
+
+	/**
+	 * This supplier is guaranteed to always return a new instance.
+	 */
+	@Provides
+	public Supplier<SocketRunner> getSocketRunnerSupplier(final Injector i)
+	{
+		return mmm.getSocketRunnerSupplier(i);
+	}
+
+	/**
+	 * This supplier is guaranteed to always return a new instance.
+	 */
+	@Provides
+	public Supplier<HttpHeaderParser> getHeaderParser(final Injector i)
+	{
+		return mmm.getHeaderParser(i);
+	}
+
+	/**
+	 * This supplier is guaranteed to always return a new instance.
+	 */
+	@Provides
+	public Supplier<ApplicationRunner> getApplicationRunner(final Injector i)
+	{
+		return mmm.getApplicationRunner(i);
+	}
+
+	@Provides
+	@Singleton
+	public Map<String, String> getMimeTypeRegistry()
+	{
+		return mmm.getMimeTypeRegistry();
+	}
+}
@@ -0,0 +1,178 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Setter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.util.Modules;
+import com.magicalspirits.httptest.acceptor.HttpConnection;
+import com.magicalspirits.httptest.acceptor.HttpConnection.CloseReason;
+import com.magicalspirits.httptest.acceptor.IdleConnectionParker;
+import com.magicalspirits.httptest.httpapplication.ApplicationRunner;
+import com.magicalspirits.httptest.httpparser.HttpRuriData;
+import com.magicalspirits.httptest.httpparser.RequestBody;
+import com.magicalspirits.httptest.httpparser.RequestHeaders;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.MainlineModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+/**
+ * Round trip latency of a small keep alive request through the real mainline pipeline, with the parser running
+ * the application itself and with the hop to the application pool. Each thread holds one keep alive connection,
+ * so every request after the first also goes through the idle connection parker.
+ *
+ * The application is a fixed in memory response rather than ServeHttpFile, since wwwroot is inside the jar here.
+ * Use -t to add client threads, and -bm sample for percentiles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InlineFastPathBenchmark
+{
+	private static final byte[] REQUEST = "GET /small.txt HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(Charsets.ISO_8859_1);
+
+	private static final byte[] RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nContent-Type: text/plain\r\n\r\nhello".getBytes(Charsets.ISO_8859_1);
+
+	@State(Scope.Benchmark)
+	public static class Server
+	{
+		@Param({"true", "false"})
+		public boolean inline;
+
+		private CloseableInjector injector;
+
+		private int port;
+
+		@Setup(Level.Trial)
+		public void setup()
+		{
+			Properties properties = new Properties();
+			properties.setProperty(ServerConfig.PORT, "0");
+			properties.setProperty(ServerConfig.INLINE_ENABLED, Boolean.toString(inline));
+			final ServerConfig config = new ServerConfig(properties);
+
+			injector = Guice.createInjector(new CloseableModule(), new Jsr250Module(), new MetricsModule(), new ExecutorsModule(config),
+					Modules.override(new MainlineModule()).with(binder ->
+					{
+						binder.bind(ServerConfig.class).toInstance(config);
+						binder.bind(ApplicationRunner.class).to(FixedResponse.class);
+					}))
+						.getInstance(CloseableInjector.class);
+			port = injector.getInstance(ServerSocket.class).getLocalPort();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown()
+		{
+			injector.close();
+		}
+	}
+
+	private Socket socket;
+
+	private OutputStream out;
+
+	private DataInputStream in;
+
+	private byte[] response = new byte[RESPONSE.length];
+
+	@Setup(Level.Trial)
+	public void connect(Server server) throws IOException
+	{
+		socket = new Socket("localhost", server.port);
+		socket.setTcpNoDelay(true);
+		out = socket.getOutputStream();
+		in = new DataInputStream(socket.getInputStream());
+	}
+
+	@TearDown(Level.Trial)
+	public void disconnect() throws IOException
+	{
+		socket.close();
+	}
+
+	@Benchmark
+	public byte[] roundTrip() throws IOException
+	{
+		out.write(REQUEST);
+		out.flush();
+		in.readFully(response);
+		return response;
+	}
+
+	/**
+	 * Always cheap, like a small cached file.
+	 */
+	public static class FixedResponse implements ApplicationRunner
+	{
+		@Setter(onMethod=@__(@Override))
+		private Socket socket;
+
+		@Setter(onMethod=@__(@Override))
+		private HttpConnection connection;
+
+		@Setter(onMethod=@__(@Override))
+		private HttpRuriData httpRuri;
+
+		@Setter(onMethod=@__(@Override))
+		private RequestHeaders headers;
+
+		@Setter(onMethod=@__(@Override))
+		private RequestBody requestBody;
+
+		@Inject
+		private IdleConnectionParker idleConnectionParker;
+
+		@Override
+		public boolean isInline()
+		{
+			return true;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				connection.getOutputStream().write(RESPONSE);
+			}
+			catch(IOException e)
+			{
+				connection.close(CloseReason.ERROR);
+				return;
+			}
+			connection.requestFinished();
+			idleConnectionParker.park(connection);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.magicalspirits.httptest.acceptor.ConnectionMetrics;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+
+/**
+ * A whole request for a small file, from HttpRequestParser reading it to ServeHttpFile closing the connection,
+ * with each way of instrumenting the stages. Codahale is how it's always been, none is the floor, and striped
+ * should be close to none, more so when only some calls are timed. The contended run has every core going at
+ * once, which is where the codahale reservoirs' locks show up. Only striped uses sampleEvery.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InstrumentationBenchmark
+{
+	private static final byte[] REQUEST = "GET /small.txt HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(Charsets.ISO_8859_1);
+
+	@Param({"codahale", "striped", "none"})
+	public String instrumentation;
+
+	@Param({"1", "16"})
+	public int sampleEvery;
+
+	private File root;
+
+	private Injector injector;
+
+	private ConnectionMetrics connectionMetrics;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		root = Files.createTempDir();
+		Files.write("hello", new File(root, "small.txt"), Charsets.ISO_8859_1);
+
+		Properties properties = new Properties();
+		properties.setProperty(ServerConfig.PORT, "0");
+		properties.setProperty(ServerConfig.CONTENT_ROOT, root.getAbsolutePath());
+		properties.setProperty(ServerConfig.METRICS_INSTRUMENTATION, instrumentation);
+		properties.setProperty(ServerConfig.METRICS_SAMPLE_EVERY, Integer.toString(sampleEvery));
+		ServerConfig config = new ServerConfig(properties);
+		injector = Guice.createInjector(new MetricsModule(config), new InProcessModule(config, ServeHttpFile.class));
+		connectionMetrics = injector.getInstance(ConnectionMetrics.class);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		new File(root, "small.txt").delete();
+		root.delete();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Socket request()
+	{
+		return run();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public Socket requestContended()
+	{
+		return run();
+	}
+
+	private Socket run()
+	{
+		MemorySocket socket = new MemorySocket(REQUEST);
+		HttpRequestParser parser = injector.getInstance(HttpRequestParser.class);
+		parser.setSocket(socket);
+		parser.setConnection(connectionMetrics.accept(socket));
+		parser.run();
+		return socket;
+	}
+}
@@ -0,0 +1,60 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A socket that was never connected, whose client has already sent the given bytes and reads nothing back.
+ * The pipeline stages only use a socket's streams, so they run on one of these as they would on a real connection,
+ * without the loopback in the way of what's being measured.
+ */
+class MemorySocket extends Socket
+{
+	private final InputStream in;
+
+	private final Discard out = new Discard();
+
+	MemorySocket(byte[] request)
+	{
+		in = new ByteArrayInputStream(request);
+	}
+
+	@Override
+	public InputStream getInputStream()
+	{
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream()
+	{
+		return out;
+	}
+
+	/**
+	 * @return everything the server has written, which makes the response something the benchmark can return.
+	 */
+	long getWritten()
+	{
+		return out.written;
+	}
+
+	private static class Discard extends OutputStream
+	{
+		private long written;
+
+		@Override
+		public void write(int b)
+		{
+			written++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			written += len;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.magicalspirits.httptest.acceptor.ConnectionMetrics;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpHeaderParser;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.httpparser.HttpRuriData;
+import com.magicalspirits.httptest.httpparser.HttpRuriParser;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+
+/**
+ * ServeMetrics answering GET /metrics, which serializes the whole registry to json. The registry holds the jvm
+ * metrics and those of every pipeline stage, as a running server's does, plus some number of extra timers to show
+ * how the response grows with the registry.
+ *
+ * java -jar target/benchmarks.jar MetricsJsonBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetricsJsonBenchmark
+{
+	@Param({"0", "500"})
+	public int extraTimers;
+
+	private Injector injector;
+
+	private ConnectionMetrics connectionMetrics;
+
+	private MetricRegistry registry;
+
+	private HttpRuriData httpRuri;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		Properties properties = new Properties();
+		properties.setProperty(ServerConfig.PORT, "0");
+		injector = Guice.createInjector(new MetricsModule(), new InProcessModule(new ServerConfig(properties), ServeHttpFile.class));
+		connectionMetrics = injector.getInstance(ConnectionMetrics.class);
+		registry = injector.getInstance(MetricRegistry.class);
+
+		//the stages' metrics are registered when the first of each is made.
+		injector.getInstance(HttpRuriParser.class);
+		injector.getInstance(HttpHeaderParser.class);
+		injector.getInstance(HttpRequestParser.class);
+		for(int i = 0; i < extraTimers; i++)
+			registry.timer(MetricRegistry.name(MetricsJsonBenchmark.class, "extra", Integer.toString(i))).update(i, TimeUnit.MICROSECONDS);
+		httpRuri = new HttpRuriData("GET", "/metrics", "HTTP/1.1");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		//the registry is shared by every injector in the jvm.
+		registry.removeMatching((name, metric) -> name.startsWith(MetricsJsonBenchmark.class.getName()));
+	}
+
+	@Benchmark
+	public long metrics()
+	{
+		return ServeFileBenchmark.serve(injector, connectionMetrics, httpRuri);
+	}
+}
@@ -0,0 +1,178 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+import com.magicalspirits.httptest.httpparser.MultipartDecoder;
+
+/**
+ * Decodes one multipart/form-data upload of 1 to 4 GB, a field and then a single file part, and sends the file
+ * to a channel. The body is made up as it's read, so the only memory it takes is the decoder's.
+ *
+ * Heap use should not grow with the upload. Run it with the gc profiler and compare gc.alloc.rate.norm across sizes,
+ * which should be the same small number for every one of them:
+ * java -jar target/benchmarks.jar MultipartBenchmark -prof gc
+ * The file sink writes to a temporary file, so it needs the disk space. Use -p sink=discard to leave the disk out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx64m"})
+public class MultipartBenchmark
+{
+	private static final String BOUNDARY = "----FormBoundary7MA4YWxkTrZu0gW";
+
+	@Param({"1024", "4096"})
+	public long megabytes;
+
+	@Param({"discard", "file"})
+	public String sink;
+
+	private File file;
+
+	private FileChannel fileChannel;
+
+	@Setup(Level.Invocation)
+	public void open() throws IOException
+	{
+		if("file".equals(sink))
+		{
+			file = File.createTempFile("multipart", ".bin");
+			fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		}
+	}
+
+	@TearDown(Level.Invocation)
+	public void close() throws IOException
+	{
+		if(fileChannel != null)
+		{
+			fileChannel.close();
+			file.delete();
+			fileChannel = null;
+		}
+	}
+
+	@Benchmark
+	public long upload() throws IOException
+	{
+		MultipartDecoder decoder = new MultipartDecoder(new GeneratedBody(megabytes << 20), BOUNDARY, 8192);
+		WritableByteChannel channel = fileChannel != null ? fileChannel : new Discard();
+		long rv = 0;
+		for(MultipartDecoder.Part part = decoder.nextPart(); part != null; part = decoder.nextPart())
+			rv += part.transferTo(channel, Long.MAX_VALUE);
+		return rv;
+	}
+
+	/**
+	 * A form with one field and one file of the given size, made up as it's read.
+	 */
+	private static class GeneratedBody extends InputStream
+	{
+		private static final byte[] HEAD = ("--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"description\"\r\n\r\n"
+				+ "a very large file\r\n"
+				+ "--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"file\"; filename=\"large.bin\"\r\n"
+				+ "Content-Type: application/octet-stream\r\n\r\n").getBytes(Charsets.ISO_8859_1);
+
+		private static final byte[] TAIL = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(Charsets.ISO_8859_1);
+
+		//random bytes, so plenty of line breaks and dashes for the search to look at.
+		private static final byte[] CONTENT = new byte[1 << 16];
+
+		static
+		{
+			new Random(42).nextBytes(CONTENT);
+		}
+
+		private final long total;
+
+		private long position;
+
+		GeneratedBody(long contentLength)
+		{
+			total = HEAD.length + contentLength + TAIL.length;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if(position == total)
+				return -1;
+			int rv;
+			if(position < HEAD.length)
+			{
+				rv = Math.min(len, HEAD.length - (int)position);
+				System.arraycopy(HEAD, (int)position, b, off, rv);
+			}
+			else if(position >= total - TAIL.length)
+			{
+				int at = (int)(position - (total - TAIL.length));
+				rv = Math.min(len, TAIL.length - at);
+				System.arraycopy(TAIL, at, b, off, rv);
+			}
+			else
+			{
+				int at = (int)((position - HEAD.length) % CONTENT.length);
+				rv = (int)Math.min(Math.min(len, CONTENT.length - at), total - TAIL.length - position);
+				System.arraycopy(CONTENT, at, b, off, rv);
+			}
+			position += rv;
+			return rv;
+		}
+	}
+
+	private static class Discard implements WritableByteChannel
+	{
+		@Override
+		public int write(ByteBuffer src)
+		{
+			int rv = src.remaining();
+			src.position(src.limit());
+			return rv;
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+}
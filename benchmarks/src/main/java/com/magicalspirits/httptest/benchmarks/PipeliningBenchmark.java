@@ -0,0 +1,223 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Setter;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.util.Modules;
+import com.magicalspirits.httptest.acceptor.ConnectionMetrics;
+import com.magicalspirits.httptest.acceptor.HttpConnection;
+import com.magicalspirits.httptest.acceptor.HttpConnection.CloseReason;
+import com.magicalspirits.httptest.acceptor.IdleConnectionParker;
+import com.magicalspirits.httptest.httpapplication.ApplicationRunner;
+import com.magicalspirits.httptest.httpparser.HttpRuriData;
+import com.magicalspirits.httptest.httpparser.RequestBody;
+import com.magicalspirits.httptest.httpparser.RequestHeaders;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.MainlineModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+/**
+ * A client that sends depth requests in one write and then reads all of the responses, through the mainline
+ * pipeline with pipelining on and off. The socket reads and writes the server made for each batch are reported
+ * next to the time, from ConnectionMetrics. With pipelining on, a batch should cost about one write however deep it is.
+ *
+ * The application is a fixed in memory response that finishes the way ServeHttpFile does, since wwwroot is inside the jar here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PipeliningBenchmark
+{
+	private static final byte[] REQUEST = "GET /small.txt HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(Charsets.ISO_8859_1);
+
+	private static final byte[] RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nContent-Type: text/plain\r\n\r\nhello".getBytes(Charsets.ISO_8859_1);
+
+	@State(Scope.Benchmark)
+	public static class Server
+	{
+		@Param({"true", "false"})
+		public boolean pipelining;
+
+		private CloseableInjector injector;
+
+		private ConnectionMetrics connectionMetrics;
+
+		private int port;
+
+		@Setup(Level.Trial)
+		public void setup()
+		{
+			Properties properties = new Properties();
+			properties.setProperty(ServerConfig.PORT, "0");
+			properties.setProperty(ServerConfig.PIPELINING_ENABLED, Boolean.toString(pipelining));
+			final ServerConfig config = new ServerConfig(properties);
+
+			injector = Guice.createInjector(new CloseableModule(), new Jsr250Module(), new MetricsModule(), new ExecutorsModule(config),
+					Modules.override(new MainlineModule()).with(binder ->
+					{
+						binder.bind(ServerConfig.class).toInstance(config);
+						binder.bind(ApplicationRunner.class).to(FixedResponse.class);
+					}))
+						.getInstance(CloseableInjector.class);
+			port = injector.getInstance(ServerSocket.class).getLocalPort();
+			connectionMetrics = injector.getInstance(ConnectionMetrics.class);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown()
+		{
+			injector.close();
+		}
+	}
+
+	/**
+	 * Server side system calls, as totals for the iteration. Divide by batches for the calls per batch.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class SocketCalls
+	{
+		public long batches;
+
+		public long socketWrites;
+
+		public long socketReads;
+
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			batches = 0;
+			socketWrites = 0;
+			socketReads = 0;
+		}
+	}
+
+	@Param({"1", "4", "16"})
+	public int depth;
+
+	private Socket socket;
+
+	private OutputStream out;
+
+	private DataInputStream in;
+
+	private byte[] batch;
+
+	private byte[] responses;
+
+	@Setup(Level.Trial)
+	public void connect(Server server) throws IOException
+	{
+		socket = new Socket("localhost", server.port);
+		socket.setTcpNoDelay(true);
+		out = socket.getOutputStream();
+		in = new DataInputStream(socket.getInputStream());
+		batch = Strings.repeat(new String(REQUEST, Charsets.ISO_8859_1), depth).getBytes(Charsets.ISO_8859_1);
+		responses = new byte[RESPONSE.length * depth];
+	}
+
+	@TearDown(Level.Trial)
+	public void disconnect() throws IOException
+	{
+		socket.close();
+	}
+
+	@Benchmark
+	public byte[] batch(Server server, SocketCalls calls) throws IOException
+	{
+		long writes = server.connectionMetrics.getSocketWriteCount();
+		long reads = server.connectionMetrics.getSocketReadCount();
+		out.write(batch);
+		out.flush();
+		in.readFully(responses);
+		calls.batches++;
+		calls.socketWrites += server.connectionMetrics.getSocketWriteCount() - writes;
+		calls.socketReads += server.connectionMetrics.getSocketReadCount() - reads;
+		return responses;
+	}
+
+	/**
+	 * Always cheap, and holds its response back while the next request is already buffered, like ServeHttpFile.
+	 */
+	public static class FixedResponse implements ApplicationRunner
+	{
+		@Setter(onMethod=@__(@Override))
+		private Socket socket;
+
+		@Setter(onMethod=@__(@Override))
+		private HttpConnection connection;
+
+		@Setter(onMethod=@__(@Override))
+		private HttpRuriData httpRuri;
+
+		@Setter(onMethod=@__(@Override))
+		private RequestHeaders headers;
+
+		@Setter(onMethod=@__(@Override))
+		private RequestBody requestBody;
+
+		@Inject
+		private IdleConnectionParker idleConnectionParker;
+
+		@Inject
+		private ServerConfig config;
+
+		@Override
+		public boolean isInline()
+		{
+			return true;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				OutputStream out = connection.getResponseStream(config.getResponseBufferSize());
+				out.write(RESPONSE);
+				if(!config.isPipeliningEnabled() || !connection.hasBufferedInput())
+					out.flush();
+			}
+			catch(IOException e)
+			{
+				connection.close(CloseReason.ERROR);
+				return;
+			}
+			connection.requestFinished();
+			idleConnectionParker.park(connection);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.net.HttpHeaders;
+import com.magicalspirits.httptest.httpparser.HttpRequestDecoder;
+import com.magicalspirits.httptest.httpparser.RequestHeaders;
+import com.magicalspirits.httptest.httpparser.RequestHeaders.Known;
+
+/**
+ * Decodes the same request head the way the line based HttpRuriParser and HttpHeaderParser do, and with the
+ * byte level HttpRequestDecoder. The line based run does the same reader, splitter and URLDecoder work those
+ * stages do, without the executor hop between them.
+ *
+ * The interesting number is the allocation rate, so run it with the gc profiler:
+ * java -jar target/benchmarks.jar RequestParserBenchmark -prof gc
+ * and compare gc.alloc.rate.norm between the runs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RequestParserBenchmark
+{
+	private static final String SMALL = "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+	private static final String BROWSER = "GET /static/some%20file.css?v=12 HTTP/1.1\r\n"
+			+ "Host: www.example.com\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+			+ "Accept: text/css,*/*;q=0.1\r\n"
+			+ "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate, br\r\n"
+			+ "Referer: https://www.example.com/\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "Cookie: session=0123456789abcdef; theme=dark\r\n"
+			+ "Cache-Control: max-age=0\r\n"
+			+ "\r\n";
+
+	private static final Splitter spaceSplitter = Splitter.on(' ');
+
+	private static final Splitter commaSplitter = Splitter.on(",");
+
+	@Param({"SMALL", "BROWSER"})
+	public String request;
+
+	private ByteArrayInputStream in;
+
+	//one of each per connection on the server, so one per thread here.
+	private HttpRequestDecoder decoder;
+
+	private RequestHeaders headers;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		byte[] bytes = ("SMALL".equals(request) ? SMALL : BROWSER).getBytes(Charsets.ISO_8859_1);
+		in = new ByteArrayInputStream(bytes);
+		decoder = new HttpRequestDecoder(8192, 10);
+		headers = new RequestHeaders();
+	}
+
+	/**
+	 * What HttpRuriParser and HttpHeaderParser do for every request.
+	 */
+	@Benchmark
+	public void lineParser(Blackhole bh) throws IOException
+	{
+		in.reset();
+		//the line parsers get a new reader with every connection
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charsets.ISO_8859_1));
+		List<String> ruri = spaceSplitter.splitToList(reader.readLine());
+		bh.consume(ruri.get(0));
+		bh.consume(URLDecoder.decode(ruri.get(1), Charsets.ISO_8859_1.name()));
+		bh.consume(ruri.get(2));
+
+		ArrayListMultimap<String, String> headers = ArrayListMultimap.create();
+		for(String header = reader.readLine(); !Strings.isNullOrEmpty(header); header = reader.readLine())
+		{
+			int indexOfColon = header.indexOf(":");
+			if(indexOfColon == -1)
+				indexOfColon = header.length() - 1;
+			String key = header.substring(0, indexOfColon).trim();
+			String value = indexOfColon + 1 < header.length() ? header.substring(indexOfColon + 1).trim() : "";
+			headers.get(key).addAll(commaSplitter.splitToList(value));
+		}
+		bh.consume(headers);
+	}
+
+	/**
+	 * The decoder on its own, reading the request line and looking up one header.
+	 */
+	@Benchmark
+	public void byteDecoder(Blackhole bh) throws IOException
+	{
+		in.reset();
+		decoder.nextRequest();
+		while(decoder.decode() == HttpRequestDecoder.Result.INCOMPLETE)
+			decoder.readFrom(in);
+		bh.consume(decoder.getMethod());
+		bh.consume(decoder.getUri());
+		bh.consume(decoder.getVersion());
+		bh.consume(decoder.getHeaderValue("Connection"));
+	}
+
+	/**
+	 * Everything HttpRequestParser does for a request: the decoder, the copy into the connection's header store,
+	 * and the keep alive check ServeHttpFile makes on it.
+	 */
+	@Benchmark
+	public void byteDecoderMaterialized(Blackhole bh) throws IOException
+	{
+		in.reset();
+		decoder.nextRequest();
+		while(decoder.decode() == HttpRequestDecoder.Result.INCOMPLETE)
+			decoder.readFrom(in);
+		bh.consume(decoder.getMethod());
+		bh.consume(decoder.getUri());
+		bh.consume(decoder.getVersion());
+		headers.clear();
+		decoder.copyHeadersTo(headers);
+		bh.consume(headers.containsValue(Known.CONNECTION, "close"));
+	}
+
+	/**
+	 * The multimap the line based parsers used to hand over, filled from the decoder, for comparison with the header store.
+	 */
+	@Benchmark
+	public void byteDecoderMultimap(Blackhole bh) throws IOException
+	{
+		in.reset();
+		decoder.nextRequest();
+		while(decoder.decode() == HttpRequestDecoder.Result.INCOMPLETE)
+			decoder.readFrom(in);
+		bh.consume(decoder.getMethod());
+		bh.consume(decoder.getUri());
+		bh.consume(decoder.getVersion());
+		ArrayListMultimap<String, String> multimap = ArrayListMultimap.create();
+		for(int i = 0; i < decoder.getHeaderCount(); i++)
+			multimap.get(decoder.getHeaderName(i)).addAll(commaSplitter.splitToList(decoder.getHeaderValue(i)));
+		bh.consume(multimap.get(HttpHeaders.CONNECTION));
+	}
+}
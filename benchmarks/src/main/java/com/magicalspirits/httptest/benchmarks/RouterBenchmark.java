@@ -0,0 +1,90 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Maps;
+import com.magicalspirits.httptest.httpapplication.RouteTable;
+
+/**
+ * Looks a path up in a RouteTable of 10 to 10000 routes, a third each exact, wildcard and prefix, for a path that
+ * matches each kind and one that matches nothing. The time for each should be the same whatever the number of routes.
+ *
+ * java -jar target/benchmarks.jar RouterBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RouterBenchmark
+{
+	@Param({"10", "1000", "10000"})
+	public int routes;
+
+	@Param({"exact", "wildcard", "prefix", "miss"})
+	public String path;
+
+	private RouteTable<String> table;
+
+	private String lookup;
+
+	@Setup
+	public void setup()
+	{
+		Map<String, String> patterns = Maps.newHashMap();
+		for(int route = 0; route < routes; route++)
+		{
+			String pattern;
+			switch(route % 3)
+			{
+				case 0:
+					pattern = "/api/v1/resource" + route + "/items";
+					break;
+				case 1:
+					pattern = "/api/v1/resource" + route + "/*/detail";
+					break;
+				default:
+					pattern = "/static/bundle" + route + "/**";
+			}
+			patterns.put(pattern, pattern);
+		}
+		table = new RouteTable<>(patterns);
+
+		//the routes at the end of the table, so none of them are in the first few either way.
+		int last = routes - routes % 3 - 3;
+		switch(path)
+		{
+			case "exact":
+				lookup = "/api/v1/resource" + last + "/items";
+				break;
+			case "wildcard":
+				lookup = "/api/v1/resource" + (last + 1) + "/12345/detail";
+				break;
+			case "prefix":
+				lookup = "/static/bundle" + (last + 2) + "/js/app.min.js";
+				break;
+			default:
+				lookup = "/api/v1/resource" + last + "/nothing/here";
+		}
+	}
+
+	@Benchmark
+	public String match()
+	{
+		return table.match(lookup);
+	}
+}
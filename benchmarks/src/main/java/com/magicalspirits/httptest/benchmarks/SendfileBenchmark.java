@@ -0,0 +1,133 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.magicalspirits.httptest.acceptor.ConnectionMetrics;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpRuriData;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+
+/**
+ * ServeHttpFile sending a 1 KB to 1 GB file over a loopback connection, with FileChannel.transferTo, from a shared
+ * memory mapping (mmap, which maps anything over 64 KB here), and copied through the heap. Unlike ServeFileBenchmark
+ * the socket is real, since transferTo needs one that came from a channel, so each op includes a connect. The client
+ * reads into one direct buffer on its own thread, as fast as it can.
+ * Files up to 64 KB come out of the static content cache whichever way. Look at the big ones.
+ *
+ * java -jar target/benchmarks.jar SendfileBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SendfileBenchmark
+{
+	@Param({"1024", "65536", "1048576", "67108864", "1073741824"})
+	public long size;
+
+	@Param({"sendfile", "mmap", "copy"})
+	public String body;
+
+	private File root;
+
+	private Injector injector;
+
+	private ConnectionMetrics connectionMetrics;
+
+	private HttpRuriData httpRuri;
+
+	private ServerSocketChannel listener;
+
+	private ExecutorService client;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		root = Files.createTempDir();
+		byte[] chunk = new byte[1 << 20];
+		new Random(size).nextBytes(chunk);
+		try(RandomAccessFile file = new RandomAccessFile(new File(root, "file.bin"), "rw"))
+		{
+			for(long written = 0; written < size; written += chunk.length)
+				file.write(chunk, 0, (int)Math.min(chunk.length, size - written));
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty(ServerConfig.PORT, "0");
+		properties.setProperty(ServerConfig.CONTENT_ROOT, root.getAbsolutePath());
+		properties.setProperty(ServerConfig.SENDFILE_ENABLED, Boolean.toString(body.equals("sendfile")));
+		if(body.equals("mmap"))
+			properties.setProperty(ServerConfig.MMAP_MIN_BYTES, "65537");
+		ServerConfig config = new ServerConfig(properties);
+		injector = Guice.createInjector(new MetricsModule(config), new InProcessModule(config, ServeHttpFile.class));
+		connectionMetrics = injector.getInstance(ConnectionMetrics.class);
+		httpRuri = new HttpRuriData("GET", "/file.bin", "HTTP/1.1");
+
+		listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		client = Executors.newSingleThreadExecutor();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		client.shutdownNow();
+		listener.close();
+		new File(root, "file.bin").delete();
+		root.delete();
+	}
+
+	@Benchmark
+	public long serve() throws IOException, InterruptedException, ExecutionException
+	{
+		try(SocketChannel channel = SocketChannel.open(listener.getLocalAddress()))
+		{
+			Future<Long> read = client.submit(() -> drain(channel));
+			ServeFileBenchmark.serve(injector, connectionMetrics, listener.accept().socket(), httpRuri);
+			return read.get();
+		}
+	}
+
+	private static long drain(SocketChannel channel) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+		long rv = 0;
+		for(int count; (count = channel.read(buffer)) != -1; buffer.clear())
+			rv += count;
+		return rv;
+	}
+}
@@ -0,0 +1,129 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.magicalspirits.httptest.acceptor.ConnectionMetrics;
+import com.magicalspirits.httptest.acceptor.HttpConnection;
+import com.magicalspirits.httptest.httpapplication.ApplicationRunner;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpRuriData;
+import com.magicalspirits.httptest.httpparser.RequestBody;
+import com.magicalspirits.httptest.httpparser.RequestHeaders;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+
+/**
+ * ServeHttpFile answering a GET for one file, from opening it to the last byte written to the connection, for
+ * files of 1 KB to 16 MB in a temporary content root. The request is handed straight to the application, so
+ * none of the parser's time is in it. The client reads as fast as the server can write. With cache on, files up to
+ * 64 KB are answered from the StaticContentCache after the first time.
+ *
+ * java -jar target/benchmarks.jar ServeFileBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ServeFileBenchmark
+{
+	@Param({"1024", "65536", "1048576", "16777216"})
+	public int size;
+
+	@Param({"true", "false"})
+	public boolean cache;
+
+	private File root;
+
+	private Injector injector;
+
+	private ConnectionMetrics connectionMetrics;
+
+	private HttpRuriData httpRuri;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		root = Files.createTempDir();
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		Files.write(content, new File(root, "file.bin"));
+
+		Properties properties = new Properties();
+		properties.setProperty(ServerConfig.PORT, "0");
+		properties.setProperty(ServerConfig.CONTENT_ROOT, root.getAbsolutePath());
+		if(!cache)
+			properties.setProperty(ServerConfig.CACHE_MAX_BYTES, "0");
+		injector = Guice.createInjector(new MetricsModule(), new InProcessModule(new ServerConfig(properties), ServeHttpFile.class));
+		connectionMetrics = injector.getInstance(ConnectionMetrics.class);
+		httpRuri = new HttpRuriData("GET", "/file.bin", "HTTP/1.1");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		new File(root, "file.bin").delete();
+		root.delete();
+	}
+
+	@Benchmark
+	public long serve()
+	{
+		return serve(injector, connectionMetrics, httpRuri);
+	}
+
+	/**
+	 * Runs the application stage, the router and whichever runner it sends the path to, for one request on a connection of its own, which it closes once it has answered.
+	 * @return the bytes written.
+	 */
+	static long serve(Injector injector, ConnectionMetrics connectionMetrics, HttpRuriData httpRuri)
+	{
+		MemorySocket socket = new MemorySocket(new byte[0]);
+		serve(injector, connectionMetrics, socket, httpRuri);
+		return socket.getWritten();
+	}
+
+	/**
+	 * Runs the application stage for one request on the given socket, which it closes once it has answered.
+	 */
+	static void serve(Injector injector, ConnectionMetrics connectionMetrics, Socket socket, HttpRuriData httpRuri)
+	{
+		HttpConnection connection = connectionMetrics.accept(socket);
+		RequestHeaders headers = connection.getRequestHeaders();
+		headers.add("Connection", "close");
+		RequestBody requestBody = connection.getRequestBody();
+		requestBody.begin(headers, httpRuri.getVersion());
+
+		ApplicationRunner runner = injector.getInstance(ApplicationRunner.class);
+		runner.setSocket(socket);
+		runner.setConnection(connection);
+		runner.setHttpRuri(httpRuri);
+		runner.setHeaders(headers);
+		runner.setRequestBody(requestBody);
+		connection.requestStarted();
+		runner.run();
+	}
+}
@@ -0,0 +1,96 @@
+package com.magicalspirits.httptest.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.magicalspirits.httptest.acceptor.ConnectionMetrics;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+
+/**
+ * One connection carrying a run of keep alive requests for a small file, with the stages kept on the connection
+ * and without, where every request gets its parsers and ServeHttpFile from the injector again. The time is for the
+ * whole connection, so divide by requests. The gc profiler's alloc.rate.norm is the number to look at.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StageReuseBenchmark
+{
+	@Param({"true", "false"})
+	public boolean reuse;
+
+	@Param({"1", "16"})
+	public int requests;
+
+	private File root;
+
+	private Injector injector;
+
+	private ConnectionMetrics connectionMetrics;
+
+	private byte[] connection;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		root = Files.createTempDir();
+		Files.write("hello", new File(root, "small.txt"), Charsets.ISO_8859_1);
+
+		Properties properties = new Properties();
+		properties.setProperty(ServerConfig.PORT, "0");
+		properties.setProperty(ServerConfig.CONTENT_ROOT, root.getAbsolutePath());
+		properties.setProperty(ServerConfig.STAGE_REUSE, Boolean.toString(reuse));
+		ServerConfig config = new ServerConfig(properties);
+		injector = Guice.createInjector(new MetricsModule(config), new InProcessModule(config, ServeHttpFile.class));
+		connectionMetrics = injector.getInstance(ConnectionMetrics.class);
+
+		connection = (Strings.repeat("GET /small.txt HTTP/1.1\r\nHost: localhost\r\n\r\n", requests - 1)
+				+ "GET /small.txt HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(Charsets.ISO_8859_1);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		new File(root, "small.txt").delete();
+		root.delete();
+	}
+
+	@Benchmark
+	public Socket connection()
+	{
+		MemorySocket socket = new MemorySocket(connection);
+		HttpRequestParser parser = injector.getInstance(HttpRequestParser.class);
+		parser.setSocket(socket);
+		parser.setConnection(connectionMetrics.accept(socket));
+		parser.run();
+		return socket;
+	}
+}
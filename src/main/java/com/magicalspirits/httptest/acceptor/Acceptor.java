@@ -0,0 +1,10 @@
+package com.magicalspirits.httptest.acceptor;
+
+/**
+ * Something that takes connections off a listening socket and hands them to the {@link SocketRunner} pipeline.
+ * Acceptors are started on the http server pool by the {@link AcceptorService}.
+ */
+public interface Acceptor extends Runnable 
+{
+	public void stop();
+}
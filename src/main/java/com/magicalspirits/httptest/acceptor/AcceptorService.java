@@ -8,20 +8,25 @@ import javax.annotation.PostConstruct;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
 
 public class AcceptorService 
 {
 	@Inject
-	private List<ServerSocketAcceptor> acceptors;
+	private List<Acceptor> acceptors;
 
 	@Inject
-	@Named(ExecutorsModule.HTTP_SERVER_POOL)
-	private ExecutorService serverPool;
+	@Named(ExecutorsModule.ACCEPTOR_POOL)
+	private ExecutorService acceptorPool;
+
+	@Inject
+	private ServerConfig config;
 	
 	@PostConstruct
 	public void start()
 	{
-		for(ServerSocketAcceptor ssa : acceptors)
-			serverPool.execute(ssa);
+		config.logEffectiveValues();
+		for(Acceptor acceptor : acceptors)
+			acceptorPool.execute(acceptor);
 	}
 }
@@ -0,0 +1,144 @@
+package com.magicalspirits.httptest.acceptor;
+
+import java.net.Socket;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.UniformReservoir;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.magicalspirits.httptest.acceptor.HttpConnection.CloseReason;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+
+/**
+ * Connection level numbers, for tuning keep alive and timeouts against real traffic. Every acceptor opens its
+ * {@link HttpConnection}s here and every connection reports back when it closes.
+ *
+ * The counters are LongAdders so the accept and close paths never contend with each other, and the histograms
+ * use a uniform reservoir, which is lock free where the default one is not.
+ */
+@Singleton
+public class ConnectionMetrics
+{
+	private final LongAdder accepted = new LongAdder();
+
+	private final LongAdder closed = new LongAdder();
+
+	@Getter(AccessLevel.PACKAGE)
+	private final LongAdder bytesIn = new LongAdder();
+
+	@Getter(AccessLevel.PACKAGE)
+	private final LongAdder bytesOut = new LongAdder();
+
+	//the part of bytesOut that went with transferTo, and never passed through the heap.
+	@Getter(AccessLevel.PACKAGE)
+	private final LongAdder bytesSendfile = new LongAdder();
+
+	//each of these is a read or write call on a socket stream, which is about one system call.
+	@Getter(AccessLevel.PACKAGE)
+	private final LongAdder socketReads = new LongAdder();
+
+	@Getter(AccessLevel.PACKAGE)
+	private final LongAdder socketWrites = new LongAdder();
+
+	private final Map<CloseReason, LongAdder> closeReasons = new EnumMap<>(CloseReason.class);
+
+	private final Histogram requestsPerConnection = new Histogram(new UniformReservoir());
+
+	private final Histogram lifetimeMillis = new Histogram(new UniformReservoir());
+
+	private final Histogram idleMillis = new Histogram(new UniformReservoir());
+
+	private final boolean keepStages;
+
+	@Inject
+	public ConnectionMetrics(MetricRegistry registry, ServerConfig config)
+	{
+		keepStages = config.isStageReuseEnabled();
+		MetricsModule.replace(registry, ConnectionMetrics.class, "accepted", (Gauge<Long>) () -> getAccepted());
+		MetricsModule.replace(registry, ConnectionMetrics.class, "active", (Gauge<Long>) () -> getActive());
+		MetricsModule.replace(registry, ConnectionMetrics.class, "closed", (Gauge<Long>) () -> getClosed());
+		MetricsModule.replace(registry, ConnectionMetrics.class, "bytes-in", (Gauge<Long>) () -> bytesIn.sum());
+		MetricsModule.replace(registry, ConnectionMetrics.class, "bytes-out", (Gauge<Long>) () -> bytesOut.sum());
+		MetricsModule.replace(registry, ConnectionMetrics.class, "bytes-sendfile", (Gauge<Long>) () -> getBytesSendfileCount());
+		MetricsModule.replace(registry, ConnectionMetrics.class, "socket-reads", (Gauge<Long>) () -> getSocketReadCount());
+		MetricsModule.replace(registry, ConnectionMetrics.class, "socket-writes", (Gauge<Long>) () -> getSocketWriteCount());
+		for(CloseReason reason : CloseReason.values())
+		{
+			final LongAdder count = new LongAdder();
+			closeReasons.put(reason, count);
+			MetricsModule.replace(registry, ConnectionMetrics.class, "closed." + reason.name().toLowerCase().replace('_', '-'), (Gauge<Long>) () -> count.sum());
+		}
+		MetricsModule.replace(registry, ConnectionMetrics.class, "requests-per-connection", requestsPerConnection);
+		MetricsModule.replace(registry, ConnectionMetrics.class, "lifetime-millis", lifetimeMillis);
+		MetricsModule.replace(registry, ConnectionMetrics.class, "idle-millis", idleMillis);
+	}
+
+	/**
+	 * Counts a newly accepted socket and wraps it up for the pipeline.
+	 */
+	public HttpConnection accept(Socket socket)
+	{
+		accepted.increment();
+		return new HttpConnection(socket, this, keepStages);
+	}
+
+	public long getAccepted()
+	{
+		return accepted.sum();
+	}
+
+	public long getClosed()
+	{
+		return closed.sum();
+	}
+
+	public long getBytesSendfileCount()
+	{
+		return bytesSendfile.sum();
+	}
+
+	public long getSocketReadCount()
+	{
+		return socketReads.sum();
+	}
+
+	public long getSocketWriteCount()
+	{
+		return socketWrites.sum();
+	}
+
+	public long getClosed(CloseReason reason)
+	{
+		return closeReasons.get(reason).sum();
+	}
+
+	public long getActive()
+	{
+		//read closed first, so a close racing with an accept can't make this go negative.
+		long closedSoFar = closed.sum();
+		return accepted.sum() - closedSoFar;
+	}
+
+	void idle(long nanos)
+	{
+		idleMillis.update(TimeUnit.NANOSECONDS.toMillis(nanos));
+	}
+
+	void closed(HttpConnection connection, CloseReason reason)
+	{
+		closed.increment();
+		closeReasons.get(reason).increment();
+		requestsPerConnection.update(connection.getRequests());
+		lifetimeMillis.update(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connection.getOpenedNanos()));
+	}
+}
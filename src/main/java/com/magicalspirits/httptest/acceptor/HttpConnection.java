@@ -0,0 +1,465 @@
+package com.magicalspirits.httptest.acceptor;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.common.base.Charsets;
+import com.magicalspirits.httptest.httpparser.HttpRequestDecoder;
+import com.magicalspirits.httptest.httpparser.RequestBody;
+import com.magicalspirits.httptest.httpparser.RequestHeaders;
+
+/**
+ * One accepted connection, from accept to close. It travels down the pipeline next to the socket and keeps the
+ * per connection numbers that {@link ConnectionMetrics} records when it closes.
+ *
+ * Only one stage owns a connection at a time, and the executor handoffs between stages publish its state to the next one.
+ */
+@Slf4j
+public class HttpConnection
+{
+	public static enum CloseReason
+	{
+		/**
+		 * Nothing arrived before the socket timeout, or the keep alive timeout while parked.
+		 */
+		TIMEOUT,
+		/**
+		 * The client hung up.
+		 */
+		CLIENT_CLOSE,
+		/**
+		 * We closed after the response, because of Connection: close or a protocol without keep alive.
+		 */
+		CONNECTION_CLOSE,
+		/**
+		 * Turned away with a 503 by the {@link LoadShedder}.
+		 */
+		SHED,
+		/**
+		 * Bad request, or a failure reading or writing.
+		 */
+		ERROR,
+		/**
+		 * Still open when the server stopped.
+		 */
+		SHUTDOWN
+	}
+
+	@Getter
+	private final Socket socket;
+
+	private final ConnectionMetrics metrics;
+
+	@Getter
+	private final long openedNanos = System.nanoTime();
+
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	@Getter
+	private int requests = 0;
+
+	/**
+	 * When the last response finished, or when the connection was accepted if it hasn't had a request yet.
+	 */
+	@Getter
+	private volatile long idleSinceNanos = openedNanos;
+
+	/**
+	 * The pool of the acceptor this connection came from, if it has one of its own. Every stage of every request on the
+	 * connection runs on it. Null to use the http server and application pools.
+	 */
+	@Getter
+	@Setter
+	private volatile ExecutorService pool;
+
+	private InputStream in;
+
+	private OutputStream out;
+
+	private ResponseStream responseStream;
+
+	private BufferedReader bufferedReader;
+
+	/**
+	 * Holds this connection's read buffer when it's read by the byte level parser.
+	 */
+	@Getter
+	@Setter
+	private HttpRequestDecoder requestDecoder;
+
+	private RequestHeaders requestHeaders;
+
+	private RequestBody requestBody;
+
+	//see startInline, deferPark and finishInline.
+	private static final int NOT_INLINE = 0;
+	private static final int INLINE = 1;
+	private static final int INLINE_PARK = 2;
+	private final AtomicInteger inline = new AtomicInteger(NOT_INLINE);
+
+	//this connection's instance of each pipeline stage, or null if they aren't kept. See getStage.
+	private final Map<Class<?>, Object> stages;
+
+	HttpConnection(Socket socket, ConnectionMetrics metrics, boolean keepStages)
+	{
+		this.socket = socket;
+		this.metrics = metrics;
+		this.stages = keepStages ? new IdentityHashMap<>(4) : null;
+	}
+
+	/**
+	 * The stage of the given type to run this connection's request. The first request gets a new one from the
+	 * supplier, and later requests on a keep alive connection get the same one again, with its dependencies already
+	 * injected. Unless stages aren't kept, in which case every call is a new one.
+	 *
+	 * Note: A stage goes from thread to thread with its connection. Once it has handed the connection on, to a pool or
+	 * the parker, it must not touch its own fields again, since the next request may already be using them.
+	 */
+	public <T> T getStage(Class<T> type, Supplier<? extends T> supplier)
+	{
+		if(stages == null)
+			return supplier.get();
+		Object rv = stages.get(type);
+		if(rv == null)
+		{
+			rv = supplier.get();
+			stages.put(type, rv);
+		}
+		return type.cast(rv);
+	}
+
+	/**
+	 * @return the pool this connection's acceptor dispatched it to, or the given one if it has none of its own.
+	 */
+	public ExecutorService getPoolOr(ExecutorService fallback)
+	{
+		ExecutorService rv = pool;
+		return rv != null ? rv : fallback;
+	}
+
+	/**
+	 * The socket's input stream, counted into the bytes in. Always the same instance for a connection.
+	 */
+	public InputStream getInputStream() throws IOException
+	{
+		if(in == null)
+			in = new CountingInputStream(socket.getInputStream(), metrics.getBytesIn(), metrics.getSocketReads());
+		return in;
+	}
+
+	/**
+	 * The socket's output stream, counted into the bytes out. Always the same instance for a connection.
+	 */
+	public OutputStream getOutputStream() throws IOException
+	{
+		if(out == null)
+			out = new CountingOutputStream(socket.getOutputStream(), metrics.getBytesOut(), metrics.getSocketWrites());
+		return out;
+	}
+
+	/**
+	 * The buffered stream responses are written through. It's created on first use and kept, so the responses to
+	 * pipelined requests can pile up in it and go out together. Whoever writes a response decides when to flush it.
+	 */
+	public OutputStream getResponseStream(int bufferSize) throws IOException
+	{
+		if(responseStream == null)
+			responseStream = new ResponseStream(getOutputStream(), bufferSize);
+		return responseStream;
+	}
+
+	/**
+	 * Sends anything still sitting in the response stream. Call this before blocking on the client, since it
+	 * may be waiting on those responses.
+	 */
+	public void flushResponse() throws IOException
+	{
+		if(responseStream != null)
+			responseStream.flush();
+	}
+
+	/**
+	 * Sends count bytes of the file, from position, right after whatever is already in the response stream. The file
+	 * goes with FileChannel.transferTo, which is sendfile on linux, so it's copied from the page cache to the socket
+	 * without ever coming up into the heap.
+	 * @return false if the socket didn't come from a channel, in which case nothing was sent and the caller has to copy it.
+	 */
+	public boolean sendFile(FileChannel file, long position, long count) throws IOException
+	{
+		SocketChannel channel = socket.getChannel();
+		if(channel == null)
+			return false;
+		//the headers, and any pipelined responses before them, have to go first.
+		flushResponse();
+		for(long sent = 0; sent < count; )
+		{
+			//Note: The channel is blocking, so this only comes back with nothing when the file ran out.
+			long rv = file.transferTo(position + sent, count - sent, channel);
+			if(rv <= 0)
+				throw new EOFException("File ended " + (count - sent) + " bytes short of what was promised to " + socket);
+			sent += rv;
+			metrics.getBytesOut().add(rv);
+			metrics.getBytesSendfile().add(rv);
+			metrics.getSocketWrites().increment();
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the buffer right after whatever is in the response stream. Where the socket came from a channel, the
+	 * two go in one gathering write, so a response that's already encoded is never copied into the stream's buffer.
+	 * @return false if the socket didn't come from a channel, in which case nothing was written and the caller has to copy it.
+	 */
+	public boolean write(ByteBuffer buffer) throws IOException
+	{
+		SocketChannel channel = socket.getChannel();
+		if(channel == null)
+			return false;
+		ByteBuffer[] buffers = { responseStream == null ? ByteBuffer.allocate(0) : responseStream.takeBuffered(), buffer };
+		while(buffers[0].hasRemaining() || buffer.hasRemaining())
+		{
+			long rv = channel.write(buffers);
+			metrics.getBytesOut().add(rv);
+			metrics.getSocketWrites().increment();
+		}
+		return true;
+	}
+
+	/**
+	 * For the line based parsers. It's created on first use and kept, so what it reads ahead isn't lost between stages.
+	 */
+	public BufferedReader getBufferedReader() throws IOException
+	{
+		//ISO 8859-1 is somehow the RFC defined encoding for the http body.
+		if(bufferedReader == null)
+			bufferedReader = new BufferedReader(new InputStreamReader(getInputStream(), Charsets.ISO_8859_1));
+		return bufferedReader;
+	}
+
+	/**
+	 * The header store for this connection. Each request clears and refills the same one.
+	 */
+	public RequestHeaders getRequestHeaders()
+	{
+		if(requestHeaders == null)
+			requestHeaders = new RequestHeaders();
+		return requestHeaders;
+	}
+
+	/**
+	 * The body stream for this connection. Each request starts the same one over.
+	 */
+	public RequestBody getRequestBody()
+	{
+		if(requestBody == null)
+			requestBody = new RequestBody(this);
+		return requestBody;
+	}
+
+	/**
+	 * @return true if some of the next request has already been read off the socket.
+	 */
+	public boolean hasBufferedInput() throws IOException
+	{
+		return (bufferedReader != null && bufferedReader.ready()) || (requestDecoder != null && requestDecoder.hasRemaining());
+	}
+
+	/**
+	 * Drops the reader, which is most of what an idle connection costs. Only do this when it has nothing buffered.
+	 */
+	public void releaseBufferedReader()
+	{
+		bufferedReader = null;
+	}
+
+	/**
+	 * Called by a parser that's about to run a request on its own thread.
+	 */
+	public void startInline()
+	{
+		inline.set(INLINE);
+	}
+
+	/**
+	 * Called by the parker before it does anything with a finished connection.
+	 * @return true if a parser is running this request inline. The parker leaves the connection alone, and the parser
+	 * parks it or goes on to the next request itself once the request has returned.
+	 */
+	public boolean deferPark()
+	{
+		return inline.compareAndSet(INLINE, INLINE_PARK);
+	}
+
+	/**
+	 * Called by the parser once the inline request has returned.
+	 * @return true if the request finished with the connection kept alive, and the parser has to park it or go on
+	 * to the next request. Nothing else can have picked the connection up in the meantime.
+	 */
+	public boolean finishInline()
+	{
+		return inline.getAndSet(NOT_INLINE) == INLINE_PARK;
+	}
+
+	/**
+	 * Call once the request line of a new request has been read.
+	 */
+	public void requestStarted()
+	{
+		if(requests > 0)
+			metrics.idle(System.nanoTime() - idleSinceNanos);
+		requests++;
+	}
+
+	/**
+	 * Call once the response has been written out.
+	 */
+	public void requestFinished()
+	{
+		idleSinceNanos = System.nanoTime();
+	}
+
+	public boolean isClosed()
+	{
+		return closed.get() || socket.isClosed();
+	}
+
+	/**
+	 * Closes the socket. Only the first close of a connection is counted.
+	 */
+	public void close(CloseReason reason)
+	{
+		if(!closed.compareAndSet(false, true))
+			return;
+		try
+		{
+			//responses to earlier pipelined requests may still be buffered.
+			flushResponse();
+		}
+		catch(IOException e)
+		{
+			log.debug("Unable to send buffered responses to {}", socket, e);
+		}
+		try
+		{
+			socket.close();
+		}
+		catch(IOException e)
+		{
+			log.debug("Unable to close socket {}", socket, e);
+		}
+		metrics.closed(this, reason);
+	}
+
+	private static class ResponseStream extends BufferedOutputStream
+	{
+		ResponseStream(OutputStream out, int size)
+		{
+			super(out, size);
+		}
+
+		/**
+		 * Hands over what's buffered instead of writing it. It has to be written before anything else goes into this.
+		 */
+		ByteBuffer takeBuffered()
+		{
+			ByteBuffer rv = ByteBuffer.wrap(buf, 0, count);
+			count = 0;
+			return rv;
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream
+	{
+		private final LongAdder count;
+
+		private final LongAdder reads;
+
+		CountingInputStream(InputStream in, LongAdder count, LongAdder reads)
+		{
+			super(in);
+			this.count = count;
+			this.reads = reads;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int rv = in.read();
+			reads.increment();
+			if(rv != -1)
+				count.increment();
+			return rv;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int rv = in.read(b, off, len);
+			reads.increment();
+			if(rv > 0)
+				count.add(rv);
+			return rv;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long rv = in.skip(n);
+			count.add(rv);
+			return rv;
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream
+	{
+		private final LongAdder count;
+
+		private final LongAdder writes;
+
+		CountingOutputStream(OutputStream out, LongAdder count, LongAdder writes)
+		{
+			super(out);
+			this.count = count;
+			this.writes = writes;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count.increment();
+			writes.increment();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			//FilterOutputStream would otherwise write these one byte at a time.
+			out.write(b, off, len);
+			count.add(len);
+			writes.increment();
+		}
+	}
+}
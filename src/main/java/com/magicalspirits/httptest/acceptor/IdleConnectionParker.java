@@ -0,0 +1,283 @@
+package com.magicalspirits.httptest.acceptor;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.magicalspirits.httptest.acceptor.HttpConnection.CloseReason;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+
+/**
+ * Holds keep alive connections between requests. Instead of a parser sitting in readLine on a pool thread until
+ * the next request shows up, the connection is put in non blocking mode and registered with a selector. When bytes
+ * arrive it goes back to blocking mode and a fresh {@link SocketRunner} is sent to the pool the connection was
+ * dispatched to, which is the http server pool unless its acceptor has its own.
+ *
+ * Parking only works for sockets that came from a channel. Anything else is resubmitted straight away like before.
+ */
+@Slf4j
+@Singleton
+public class IdleConnectionParker implements Runnable
+{
+	private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+	@Inject
+	@Named(ExecutorsModule.HTTP_SERVER_POOL)
+	private ExecutorService serverPool;
+
+	@Inject
+	@Named(ExecutorsModule.ACCEPTOR_POOL)
+	private ExecutorService acceptorPool;
+
+	@Inject
+	private Supplier<SocketRunner> socketRunnerSupplier;
+
+	@Inject
+	private LoadShedder loadShedder;
+
+	@Inject
+	private MetricRegistry registry;
+
+	@Inject
+	private ServerConfig config;
+
+	private final Queue<HttpConnection> pending = new ConcurrentLinkedQueue<>();
+
+	private volatile boolean running = true;
+
+	private volatile Selector selector;
+
+	private Counter parked;
+
+	private Meter parks;
+
+	private Meter timeouts;
+
+	@Inject
+	public void initMetrics()
+	{
+		parked = registry.counter(MetricRegistry.name(IdleConnectionParker.class, "parked"));
+		parks = registry.meter(MetricRegistry.name(IdleConnectionParker.class, "parks"));
+		timeouts = registry.meter(MetricRegistry.name(IdleConnectionParker.class, "timeouts"));
+	}
+
+	/**
+	 * The selector thread is only started once there is something to park.
+	 */
+	private synchronized void ensureStarted() throws IOException
+	{
+		if(selector != null)
+			return;
+		selector = Selector.open();
+		acceptorPool.execute(this);
+	}
+
+	@PreDestroy
+	public synchronized void stop()
+	{
+		running = false;
+		if(selector != null)
+			selector.wakeup();
+	}
+
+	/**
+	 * Hand back a connection that has finished a request and should wait for the next one.
+	 */
+	public void park(HttpConnection connection)
+	{
+		//Note: A request running inline is still its parser's. Waking it from here could start the next request on
+		// another thread while that parser is still on its way out, so the parser parks it once it has returned.
+		if(connection.deferPark())
+			return;
+		SocketChannel channel = connection.getSocket().getChannel();
+		try
+		{
+			//if the client already sent the next request, there's nothing to wait for.
+			if(channel == null || !running || connection.hasBufferedInput())
+			{
+				resume(connection, false);
+				return;
+			}
+			ensureStarted();
+			connection.releaseBufferedReader();
+			channel.configureBlocking(false);
+		}
+		catch(IOException e)
+		{
+			log.debug("Unable to park {}", connection.getSocket(), e);
+			connection.close(CloseReason.ERROR);
+			return;
+		}
+		parked.inc();
+		parks.mark();
+		pending.add(connection);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			List<HttpConnection> readable = Lists.newArrayList();
+			long lastIdleSweep = System.nanoTime();
+			while(running && !serverPool.isShutdown())
+			{
+				selector.select(SELECT_TIMEOUT_MILLIS);
+
+				for(HttpConnection connection = pending.poll(); connection != null; connection = pending.poll())
+				{
+					try
+					{
+						connection.getSocket().getChannel().register(selector, SelectionKey.OP_READ, connection);
+					}
+					catch(ClosedChannelException e)
+					{
+						parked.dec();
+						connection.close(CloseReason.CLIENT_CLOSE);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(!key.isValid() || !key.isReadable())
+						continue;
+					key.cancel();
+					readable.add((HttpConnection)key.attachment());
+				}
+
+				if(!readable.isEmpty())
+				{
+					//a channel can't go back to blocking mode until its cancelled key has been flushed from the selector
+					selector.selectNow();
+					for(HttpConnection connection : readable)
+						wake(connection);
+					readable.clear();
+				}
+
+				long now = System.nanoTime();
+				if(now - lastIdleSweep > TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT_MILLIS))
+				{
+					closeIdle(now);
+					lastIdleSweep = now;
+				}
+			}
+		}
+		catch(Exception e)
+		{
+			if(running && !serverPool.isShutdown())
+			{
+				acceptorPool.submit(this);
+				throw new RuntimeException(e);
+			}
+		}
+		finally
+		{
+			if(!running || serverPool.isShutdown())
+				closeAll();
+		}
+	}
+
+	private void wake(HttpConnection connection)
+	{
+		parked.dec();
+		try
+		{
+			connection.getSocket().getChannel().configureBlocking(true);
+			resume(connection, true);
+		}
+		catch(Exception e)
+		{
+			log.debug("Unable to resume parked connection {}", connection.getSocket(), e);
+			connection.close(CloseReason.ERROR);
+		}
+	}
+
+	/**
+	 * @param selectorThread true on the selector thread, which must neither run the request itself nor wait on a client
+	 * it turns away.
+	 */
+	private void resume(HttpConnection connection, boolean selectorThread)
+	{
+		SocketRunner sr = connection.getStage(SocketRunner.class, socketRunnerSupplier);
+		sr.setSocket(connection.getSocket());
+		sr.setConnection(connection);
+		ExecutorService pool = connection.getPoolOr(serverPool);
+		try
+		{
+			if(selectorThread)
+				ExecutorsModule.executeWithoutBlocking(pool, sr);
+			else
+				pool.execute(sr);
+		}
+		catch(RejectedExecutionException ree)
+		{
+			if(selectorThread)
+				loadShedder.shedWithoutBlocking(connection);
+			else
+				loadShedder.shed(connection);
+		}
+	}
+
+	private void closeIdle(long now)
+	{
+		for(SelectionKey key : selector.keys())
+		{
+			if(!key.isValid() || !(key.attachment() instanceof HttpConnection))
+				continue;
+			HttpConnection connection = (HttpConnection)key.attachment();
+			if(now - connection.getIdleSinceNanos() > TimeUnit.MILLISECONDS.toNanos(config.getKeepAliveTimeoutMillis()))
+			{
+				log.debug("Closing keep alive connection {} after it sat idle", key.channel());
+				key.cancel();
+				connection.close(CloseReason.TIMEOUT);
+				parked.dec();
+				timeouts.mark();
+			}
+		}
+	}
+
+	private void closeAll()
+	{
+		for(HttpConnection connection = pending.poll(); connection != null; connection = pending.poll())
+			connection.close(CloseReason.SHUTDOWN);
+		for(SelectionKey key : selector.keys())
+		{
+			if(key.attachment() instanceof HttpConnection)
+				((HttpConnection)key.attachment()).close(CloseReason.SHUTDOWN);
+		}
+		try
+		{
+			selector.close();
+		}
+		catch(IOException e)
+		{
+			log.debug("Unable to close selector", e);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.magicalspirits.httptest.acceptor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Charsets;
+import com.google.common.net.HttpHeaders;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.magicalspirits.httptest.acceptor.HttpConnection.CloseReason;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+
+/**
+ * Turns away connections the pools have no room for. Instead of queueing the work somewhere else, the client
+ * gets a canned 503 with a Retry-After and the connection is closed.
+ *
+ * The acceptor and selector threads use shedWithoutBlocking, since the client being turned away is the last one they can wait on.
+ */
+@Slf4j
+@Singleton
+public class LoadShedder
+{
+	//encoded once, this is the whole response.
+	private final byte[] serviceUnavailable;
+
+	private final Meter shed;
+
+	@Inject
+	public LoadShedder(MetricRegistry registry, ServerConfig config)
+	{
+		shed = registry.meter(MetricRegistry.name(LoadShedder.class, "shed"));
+		serviceUnavailable = (
+			"HTTP/1.1 503 Service Unavailable\r\n" +
+			HttpHeaders.RETRY_AFTER + ": " + config.getRetryAfterSeconds() + "\r\n" +
+			HttpHeaders.CONTENT_LENGTH + ": 0\r\n" +
+			HttpHeaders.CONNECTION + ": close\r\n" +
+			"\r\n").getBytes(Charsets.ISO_8859_1);
+	}
+
+	/**
+	 * For pool threads. Waits for the 503, and any responses to earlier pipelined requests, to go out.
+	 */
+	public void shed(HttpConnection connection)
+	{
+		shed.mark();
+		Socket socket = connection.getSocket();
+		try
+		{
+			//answers to earlier pipelined requests go first.
+			connection.flushResponse();
+			OutputStream out = connection.getOutputStream();
+			out.write(serviceUnavailable);
+			out.flush();
+			socket.shutdownOutput();
+			//Closing with unread request bytes makes the os send a reset, which can beat the 503 to the client.
+			// Throw away whatever has already arrived, without waiting for more.
+			InputStream in = connection.getInputStream();
+			for(int available = in.available(); available > 0; available = in.available())
+				in.skip(available);
+		}
+		catch(IOException e)
+		{
+			log.debug("Unable to send 503 to {}", socket, e);
+		}
+		finally
+		{
+			connection.close(CloseReason.SHED);
+		}
+	}
+
+	/**
+	 * For the acceptor and selector threads, which would stall every other connection waiting on this one. The 503 goes out in
+	 * a single non blocking write, which fits in the socket's send buffer unless the client has stopped reading, in
+	 * which case it doesn't get one. The connection must have nothing buffered to send, as a freshly accepted or a
+	 * parked one doesn't.
+	 */
+	public void shedWithoutBlocking(HttpConnection connection)
+	{
+		SocketChannel channel = connection.getSocket().getChannel();
+		if(channel == null)
+		{
+			shed(connection);
+			return;
+		}
+		shed.mark();
+		try
+		{
+			channel.configureBlocking(false);
+			channel.write(ByteBuffer.wrap(serviceUnavailable));
+			channel.shutdownOutput();
+			//see shed, this only takes what's already arrived.
+			ByteBuffer discard = ByteBuffer.allocate(1024);
+			while(channel.read(discard) > 0)
+				discard.clear();
+		}
+		catch(IOException e)
+		{
+			log.debug("Unable to send 503 to {}", channel, e);
+		}
+		finally
+		{
+			connection.close(CloseReason.SHED);
+		}
+	}
+}
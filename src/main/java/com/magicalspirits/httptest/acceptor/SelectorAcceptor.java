@@ -0,0 +1,253 @@
+package com.magicalspirits.httptest.acceptor;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.magicalspirits.httptest.acceptor.HttpConnection.CloseReason;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+
+/**
+ * Non blocking acceptor. A single thread owns a selector that accepts new connections in batches and
+ * watches them until the client actually sends something. Only then is the connection switched back to
+ * blocking mode and handed to the {@link SocketRunner} pipeline, so a connection that has been opened but
+ * not yet used does not hold a thread.
+ */
+@Slf4j
+public class SelectorAcceptor implements Acceptor
+{
+	//Note: These are about fairness of the selector loop rather than tuning, so they aren't in the ServerConfig.
+	private static final int MAX_ACCEPTS_PER_SELECT = 64;
+	private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+	private volatile boolean running = true;
+
+	private volatile Selector selector;
+
+	//optional so sharded setups, which have several channels, can hand each acceptor its own.
+	@Inject(optional=true)
+	@Setter
+	private ServerSocketChannel serverChannel;
+
+	@Inject
+	@Named(ExecutorsModule.HTTP_SERVER_POOL)
+	private ExecutorService serverPool;
+
+	@Inject
+	@Named(ExecutorsModule.ACCEPTOR_POOL)
+	private ExecutorService acceptorPool;
+
+	/**
+	 * Where readable connections are sent. Defaults to the http server pool.
+	 */
+	@Setter
+	private ExecutorService dispatchPool;
+
+	/**
+	 * Prefix for this acceptor's metrics. Sharded acceptors each get their own.
+	 */
+	@Setter
+	private String name = "reactor";
+
+	@Inject
+	private MetricRegistry registry;
+
+	private Meter accepts;
+
+	@Inject
+	private Supplier<SocketRunner> socketRunnerSupplier;
+
+	@Inject
+	private LoadShedder loadShedder;
+
+	@Inject
+	private ServerConfig config;
+
+	@Inject
+	private ConnectionMetrics connectionMetrics;
+
+	@Override
+	@PreDestroy
+	public void stop()
+	{
+		running = false;
+		Selector s = selector;
+		if(s != null)
+			s.wakeup();
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			if(selector == null)
+			{
+				if(dispatchPool == null)
+					dispatchPool = serverPool;
+				accepts = registry.meter(MetricRegistry.name(name, "accepts"));
+				selector = Selector.open();
+				serverChannel.configureBlocking(false);
+				serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			}
+
+			List<HttpConnection> readable = Lists.newArrayList();
+			long lastIdleSweep = System.nanoTime();
+			while(running && !serverPool.isShutdown() && !dispatchPool.isShutdown())
+			{
+				selector.select(SELECT_TIMEOUT_MILLIS);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(!key.isValid())
+						continue;
+					if(key.isAcceptable())
+					{
+						acceptBatch();
+					}
+					else if(key.isReadable())
+					{
+						key.cancel();
+						readable.add((HttpConnection)key.attachment());
+					}
+				}
+
+				if(!readable.isEmpty())
+				{
+					//a channel can't go back to blocking mode until its cancelled key has been flushed from the selector
+					selector.selectNow();
+					for(HttpConnection connection : readable)
+						dispatch(connection);
+					readable.clear();
+				}
+
+				long now = System.nanoTime();
+				if(now - lastIdleSweep > TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT_MILLIS))
+				{
+					closeIdle(now);
+					lastIdleSweep = now;
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			if(running && !serverPool.isShutdown() && !dispatchPool.isShutdown())
+			{
+				//same as the blocking acceptor, keep accepting, but let the uncaught exception handler see this.
+				acceptorPool.submit(this);
+				throw new RuntimeException(e);
+			}
+		}
+		finally
+		{
+			if(!running || serverPool.isShutdown() || dispatchPool.isShutdown())
+				closeSelector();
+		}
+	}
+
+	private void acceptBatch() throws IOException
+	{
+		for(int i = 0; i < MAX_ACCEPTS_PER_SELECT; i++)
+		{
+			SocketChannel channel = serverChannel.accept();
+			if(channel == null)
+				return; //accept queue is drained
+			accepts.mark();
+			HttpConnection connection = connectionMetrics.accept(channel.socket());
+			try
+			{
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, connection);
+			}
+			catch(IOException e)
+			{
+				log.warn("Unable to register accepted connection {}", channel, e);
+				connection.close(CloseReason.ERROR);
+			}
+		}
+	}
+
+	private void dispatch(HttpConnection connection)
+	{
+		Socket s = connection.getSocket();
+		try
+		{
+			s.getChannel().configureBlocking(true);
+			config.configureAcceptedSocket(s);
+			SocketRunner sr = connection.getStage(SocketRunner.class, socketRunnerSupplier);
+			sr.setSocket(s);
+			sr.setConnection(connection);
+			if(dispatchPool != serverPool)
+				connection.setPool(dispatchPool);
+			ExecutorsModule.executeWithoutBlocking(dispatchPool, sr);
+		}
+		catch(RejectedExecutionException ree)
+		{
+			loadShedder.shedWithoutBlocking(connection);
+		}
+		catch(Exception e)
+		{
+			log.warn("Unable to dispatch connection {}", s, e);
+			connection.close(CloseReason.ERROR);
+		}
+	}
+
+	private void closeIdle(long now)
+	{
+		for(SelectionKey key : selector.keys())
+		{
+			if(!key.isValid() || !(key.attachment() instanceof HttpConnection))
+				continue;
+			HttpConnection connection = (HttpConnection)key.attachment();
+			if(now - connection.getIdleSinceNanos() > TimeUnit.MILLISECONDS.toNanos(config.getKeepAliveTimeoutMillis()))
+			{
+				log.debug("Closing idle connection {} that never sent a request", key.channel());
+				key.cancel();
+				connection.close(CloseReason.TIMEOUT);
+			}
+		}
+	}
+
+	private void closeSelector()
+	{
+		Selector s = selector;
+		if(s == null)
+			return;
+		for(SelectionKey key : s.keys())
+		{
+			if(key.attachment() instanceof HttpConnection)
+				((HttpConnection)key.attachment()).close(CloseReason.SHUTDOWN);
+		}
+		try
+		{
+			s.close();
+		}
+		catch(IOException e)
+		{
+			log.debug("Unable to close selector", e);
+		}
+	}
+}
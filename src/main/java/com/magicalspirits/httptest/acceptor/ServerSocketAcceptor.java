@@ -1,29 +1,28 @@
 package com.magicalspirits.httptest.acceptor;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Supplier;
 
 import javax.annotation.PreDestroy;
 
 import lombok.AllArgsConstructor;
-import lombok.Getter;
 import lombok.NoArgsConstructor;
 
-import com.google.common.base.Charsets;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
 
 @AllArgsConstructor 
 @NoArgsConstructor
-public class ServerSocketAcceptor implements Runnable
+public class ServerSocketAcceptor implements Acceptor
 {
 	private boolean running = true;
 	
+	@Override
 	@PreDestroy
 	public void stop()
 	{
@@ -40,12 +39,21 @@ public class ServerSocketAcceptor implements Runnable
 	@Named(ExecutorsModule.HTTP_SERVER_POOL)
 	private ExecutorService serverPool;
 
+	@Inject
+	@Named(ExecutorsModule.ACCEPTOR_POOL)
+	private ExecutorService acceptorPool;
+
 	@Inject
 	private Supplier<SocketRunner> socketRunnerSupplier;
-	
-	//for testing
-	@Getter
-	private static volatile int numberOfSocketsAccepted = 0;
+
+	@Inject
+	private LoadShedder loadShedder;
+
+	@Inject
+	private ServerConfig config;
+
+	@Inject
+	private ConnectionMetrics connectionMetrics;
 	
 	@Override
 	public void run() 
@@ -56,13 +64,19 @@ public class ServerSocketAcceptor implements Runnable
 			while(running && !serverPool.isShutdown())
 			{
 				Socket s = listeningSocket.accept();
-				numberOfSocketsAccepted++;
-				s.setSoTimeout(10000); //Note: This should probably be an injected config variable, or a system property. Hardcoding for this demo.
-				SocketRunner sr = socketRunnerSupplier.get();
+				HttpConnection connection = connectionMetrics.accept(s);
+				config.configureAcceptedSocket(s);
+				SocketRunner sr = connection.getStage(SocketRunner.class, socketRunnerSupplier);
 				sr.setSocket(s);
-				//ISO 8859-1 is somehow the RFC defined encoding for the http body.
-				sr.setBufferedReader(new BufferedReader(new InputStreamReader(s.getInputStream(), Charsets.ISO_8859_1)));
-				serverPool.submit(sr);
+				sr.setConnection(connection);
+				try
+				{
+					serverPool.submit(sr);
+				}
+				catch(RejectedExecutionException ree)
+				{
+					loadShedder.shedWithoutBlocking(connection);
+				}
 			}
 		}
 		catch (Exception e) 
@@ -73,7 +87,7 @@ public class ServerSocketAcceptor implements Runnable
 				//but let the exception flow out to the registered uncaught exception handler
 				//this might cause unlimited errors over and over again, however the alternate risk is that
 				//we stop executing something we should be handling....
-				serverPool.submit(this);
+				acceptorPool.submit(this);
 			}
 			if(running || !(running && e instanceof InterruptedException))
 				throw new RuntimeException(e); //send it to the registered uncaught exception handler 
@@ -0,0 +1,169 @@
+package com.magicalspirits.httptest.httpapplication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.Map;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.common.base.Strings;
+import com.google.common.net.HttpHeaders;
+import com.google.inject.Inject;
+import com.magicalspirits.httptest.acceptor.HttpConnection;
+import com.magicalspirits.httptest.acceptor.HttpConnection.CloseReason;
+import com.magicalspirits.httptest.acceptor.IdleConnectionParker;
+import com.magicalspirits.httptest.httpparser.HttpRuriData;
+import com.magicalspirits.httptest.httpparser.RequestBody;
+import com.magicalspirits.httptest.httpparser.RequestHeaders;
+import com.magicalspirits.httptest.httpparser.RequestHeaders.Known;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+
+/**
+ * What every application stage needs to answer a request: the request as the parser set it, the connection's response
+ * stream, and finishing up, which keeps the connection for its next request or closes it.
+ */
+@Slf4j
+public abstract class AbstractApplicationRunner implements ApplicationRunner
+{
+	protected static final String CONTENT_ENCODING_GZIP = HttpHeaders.CONTENT_ENCODING + ": gzip";
+
+	protected static final String VARY_ACCEPT_ENCODING = HttpHeaders.VARY + ": " + HttpHeaders.ACCEPT_ENCODING;
+
+	@Setter(onMethod=@__(@Override))
+	protected Socket socket;
+
+	@Setter(onMethod=@__(@Override))
+	protected HttpConnection connection;
+
+	@Setter(onMethod=@__(@Override))
+	protected HttpRuriData httpRuri;
+
+	@Setter(onMethod=@__(@Override))
+	protected RequestHeaders headers;
+
+	@Setter(onMethod=@__(@Override))
+	protected RequestBody requestBody;
+
+	@Inject
+	protected Map<String, String> mimeTypeRegistry;
+
+	@Inject
+	protected IdleConnectionParker idleConnectionParker;
+
+	@Inject
+	protected ServerConfig config;
+
+	//the connection's response stream, and kept along with this for its later requests.
+	protected OutputStream out;
+	protected PrintStream ps;
+
+	/**
+	 * Sets up out and ps, the first time this answers a request on its connection.
+	 */
+	protected void openResponse() throws IOException
+	{
+		if(ps == null)
+		{
+			out = connection.getResponseStream(config.getResponseBufferSize());
+			//no auto flush, finish decides when the response goes out.
+			ps = new PrintStream(out, false);
+		}
+	}
+
+	/**
+	 * @param headers any more header lines, each already formatted as name: value.
+	 */
+	protected void writeResultHeader(PrintStream ps, int responseCode, String httpMessage, String contentType, long length, String... headers)
+	{
+		ps.println(httpRuri.getVersion() + " " + responseCode + " " + httpMessage);
+		ps.println(HttpHeaders.CONTENT_LENGTH + ": " + length);
+		ps.println(HttpHeaders.CONTENT_TYPE + ": " + contentType);
+		for(String header : headers)
+			ps.println(header);
+
+		ps.println();
+	}
+
+	protected String getMimeType(String ext)
+	{
+		//"" is a great default.
+		if(!Strings.isNullOrEmpty(ext) && mimeTypeRegistry.containsKey(ext))
+			return mimeTypeRegistry.get(ext);
+		return mimeTypeRegistry.get("");
+	}
+
+	/**
+	 * Sends the response, or leaves it for the next pipelined one to go with, and then parks the connection until its
+	 * next request or closes it.
+	 */
+	protected void finish()
+	{
+		//rfc2616 says close, but we have always honored closed too. A body that wasn't read is still in the way of the next request.
+		boolean keepAlive = httpRuri.getVersion().equalsIgnoreCase("HTTP/1.1") && !socket.isClosed() && requestBody.isFinished()
+				&& !headers.containsValue(Known.CONNECTION, "close") && !headers.containsValue(Known.CONNECTION, "closed");
+		try
+		{
+			//Note: If the client has already sent its next request, this response waits in the buffer with the next one's,
+			// so pipelined responses go out in as few writes as possible. The parser flushes before it waits on the client.
+			if(!keepAlive || !config.isPipeliningEnabled() || !connection.hasBufferedInput())
+				out.flush();
+		}
+		catch(IOException e)
+		{
+			connection.close(CloseReason.ERROR);
+			throw new RuntimeException(e);
+		}
+		connection.requestFinished();
+
+		if(keepAlive)
+		{
+			//wait for the next request without holding a thread
+			idleConnectionParker.park(connection);
+		}
+		else
+		{
+			connection.close(CloseReason.CONNECTION_CLOSE);
+		}
+	}
+
+	/**
+	 * Sends a 500 if nothing is in the way of it, closes the connection, and throws, so the stage's exception
+	 * metrics count it.
+	 */
+	protected void fail(IOException ioe)
+	{
+		try
+		{
+			//Note: Not through finish, which would keep the connection alive and could hand it to the parker, or even
+			// to the next request on another thread, before it's closed here.
+			if(!socket.isClosed())
+			{
+				ps.println(httpRuri.getVersion() + " 500 Internal Server Error");
+				ps.println(HttpHeaders.CONTENT_LENGTH + ": 0");
+				ps.println(HttpHeaders.CONNECTION + ": close");
+				ps.println();
+			}
+		}
+		catch(Exception e)
+		{
+			log.debug("Unable to send 500 after another error", e);
+		}
+
+		//closing sends what's buffered, the 500 with it.
+		connection.close(CloseReason.ERROR);
+
+		throw new RuntimeException(ioe);
+	}
+
+	protected void returnResponseCode(int responseCode, String httpMessage)
+	{
+		if(socket.isClosed())
+			return;
+		ps.println(httpRuri.getVersion() + " " + responseCode + " " + httpMessage);
+		ps.println(HttpHeaders.CONTENT_LENGTH + ": 0");
+		ps.println();
+	}
+}
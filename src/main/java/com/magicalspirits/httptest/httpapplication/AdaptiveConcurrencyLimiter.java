@@ -0,0 +1,222 @@
+package com.magicalspirits.httptest.httpapplication;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+
+/**
+ * Limits how many requests can be in the application stage at once, and moves that limit with measured latency
+ * in the style of TCP Vegas.
+ *
+ * The fastest recent round trip is taken as the no load baseline. For each finished request,
+ * limit * (1 - baseline / rtt) estimates how many requests are waiting in a queue rather than being worked on.
+ * If that's small the limit grows, if it's large the limit shrinks. Every so often the baseline is thrown away
+ * and measured again, so the limit follows the server as it speeds up or slows down (cache warming up, disk getting slower).
+ *
+ * Requests over the limit are turned away before they are queued anywhere.
+ *
+ * Note: Finished requests are only added into striped sums, so they don't contend with each other. Once a window of
+ * about limit of them has finished, whichever one notices first moves the limit for the whole window, from its
+ * fastest and average round trip, while the others carry on.
+ */
+@Singleton
+public class AdaptiveConcurrencyLimiter
+{
+	//Note: These shape the algorithm rather than tune it for a host, so they aren't in the ServerConfig.
+	private static final int ALPHA = 3;
+	private static final int BETA = 6;
+	//how many windows before the baseline is measured again
+	private static final int PROBE_MULTIPLIER = 30;
+	//the fewest finished requests a window is made of, so a small limit still has something to go on.
+	private static final int MIN_WINDOW = 10;
+
+	@Getter
+	private final boolean enabled;
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	private final AtomicInteger inflight = new AtomicInteger();
+
+	@Getter
+	private volatile int limit;
+
+	//written only by whoever holds updating
+	private volatile long rttNoLoadNanos = 0;
+
+	//guarded by updating
+	private long windowsUntilProbe = PROBE_MULTIPLIER;
+
+	//this window's finished requests, added up by whoever closes it.
+	private final LongAdder samples = new LongAdder();
+	private final LongAdder rttSumNanos = new LongAdder();
+	private final LongAccumulator rttMinNanos = new LongAccumulator(Math::min, Long.MAX_VALUE);
+	private final LongAccumulator inflightMax = new LongAccumulator(Math::max, 0);
+	private final LongAdder drops = new LongAdder();
+
+	private final AtomicBoolean updating = new AtomicBoolean();
+
+	private final Meter rejected;
+
+	@Inject
+	public AdaptiveConcurrencyLimiter(MetricRegistry registry, ServerConfig config)
+	{
+		this.enabled = config.isLimiterEnabled();
+		this.minLimit = config.getLimiterMin();
+		this.maxLimit = config.getLimiterMax();
+		this.limit = config.getLimiterInitial();
+		rejected = registry.meter(MetricRegistry.name(AdaptiveConcurrencyLimiter.class, "rejected"));
+		MetricsModule.replace(registry, AdaptiveConcurrencyLimiter.class, "limit", (Gauge<Integer>) () -> limit);
+		MetricsModule.replace(registry, AdaptiveConcurrencyLimiter.class, "inflight", (Gauge<Integer>) () -> inflight.get());
+		MetricsModule.replace(registry, AdaptiveConcurrencyLimiter.class, "rtt-baseline-micros", (Gauge<Long>) () -> TimeUnit.NANOSECONDS.toMicros(rttNoLoadNanos));
+	}
+
+	/**
+	 * @return the work to run in place of the one passed in, or null if we are at the limit and the request should be turned away.
+	 */
+	public Runnable acquire(Runnable work)
+	{
+		if(!enabled)
+			return work;
+		while(true)
+		{
+			int current = inflight.get();
+			if(current >= limit)
+			{
+				rejected.mark();
+				return null;
+			}
+			if(inflight.compareAndSet(current, current + 1))
+				return new LimitedRunnable(work, System.nanoTime());
+		}
+	}
+
+	/**
+	 * Call this when work returned by acquire never got to run, e.g. its pool rejected it. It gives back its place and
+	 * counts as a drop, but isn't timed, since how long it took to be turned away says nothing about the application.
+	 */
+	public void abandon(Runnable work)
+	{
+		if(work instanceof LimitedRunnable)
+		{
+			inflight.decrementAndGet();
+			drops.increment();
+		}
+	}
+
+	private void sample(long rttNanos, int inflightAtSample, boolean dropped)
+	{
+		rttSumNanos.add(rttNanos);
+		rttMinNanos.accumulate(rttNanos);
+		inflightMax.accumulate(inflightAtSample);
+		if(dropped)
+			drops.increment();
+		samples.increment();
+		//one thread closes the window, the rest never wait for it.
+		if(samples.sum() >= Math.max(MIN_WINDOW, limit) && updating.compareAndSet(false, true))
+		{
+			try
+			{
+				closeWindow();
+			}
+			finally
+			{
+				updating.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Moves the limit for the window that just finished, and starts the next one. Only one thread at a time is in here.
+	 */
+	private void closeWindow()
+	{
+		//Note: Requests finishing while this adds up can land in either window, which makes no difference to the estimate.
+		long count = samples.sumThenReset();
+		if(count == 0)
+			return; //someone else closed it just before us.
+		long averageRtt = rttSumNanos.sumThenReset() / count;
+		long fastestRtt = rttMinNanos.getThenReset();
+		int busiest = (int)inflightMax.getThenReset();
+		boolean dropped = drops.sumThenReset() > 0;
+		if(fastestRtt == Long.MAX_VALUE)
+			return; //every request it counted had already gone into the window before.
+
+		if(--windowsUntilProbe <= 0)
+		{
+			windowsUntilProbe = PROBE_MULTIPLIER;
+			rttNoLoadNanos = 0;
+		}
+		if(rttNoLoadNanos == 0 || fastestRtt < rttNoLoadNanos)
+		{
+			rttNoLoadNanos = Math.max(1, fastestRtt);
+			return;
+		}
+
+		int current = limit;
+		double step = Math.max(1, Math.log10(current));
+		int newLimit;
+		if(dropped)
+		{
+			newLimit = (int)(current - step);
+		}
+		else
+		{
+			double queued = current * (1 - (double)rttNoLoadNanos / Math.max(1, averageRtt));
+			if(queued >= BETA * step)
+				newLimit = (int)(current - step);
+			else if(queued <= ALPHA * step && busiest * 2 >= current)
+				newLimit = (int)Math.ceil(current + step); //only grow if we are actually using what we have
+			else
+				return;
+		}
+		limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+	}
+
+	private class LimitedRunnable implements Runnable
+	{
+		private final Runnable work;
+
+		private final long start;
+
+		LimitedRunnable(Runnable work, long start)
+		{
+			this.work = work;
+			this.start = start;
+		}
+
+		@Override
+		public void run()
+		{
+			boolean dropped = true;
+			try
+			{
+				work.run();
+				dropped = false;
+			}
+			finally
+			{
+				complete(dropped);
+			}
+		}
+
+		private void complete(boolean dropped)
+		{
+			int inflightAtSample = inflight.getAndDecrement();
+			sample(System.nanoTime() - start, inflightAtSample, dropped);
+		}
+	}
+}
@@ -1,12 +1,28 @@
 package com.magicalspirits.httptest.httpapplication;
 
-import com.google.common.collect.ArrayListMultimap;
 import com.magicalspirits.httptest.acceptor.SocketRunner;
 import com.magicalspirits.httptest.httpparser.HttpRuriData;
+import com.magicalspirits.httptest.httpparser.RequestBody;
+import com.magicalspirits.httptest.httpparser.RequestHeaders;
 
-public interface ApplicationRunner extends SocketRunner 
+public interface ApplicationRunner extends SocketRunner
 {
 	public void setHttpRuri(HttpRuriData httpRuri);
 
-	public void setHeaders(ArrayListMultimap<String, String> headers);
+	public void setHeaders(RequestHeaders headers);
+
+	/**
+	 * The request body, read straight off the connection as the application asks for it. A body that isn't read all
+	 * the way through means the connection can't be kept alive.
+	 */
+	public void setRequestBody(RequestBody requestBody);
+
+	/**
+	 * Asked once the request is set. True means this request is quick and never blocks on anything but the socket,
+	 * so the parser may run it on its own thread rather than pay for a hop to the application pool.
+	 */
+	public default boolean isInline()
+	{
+		return false;
+	}
 }
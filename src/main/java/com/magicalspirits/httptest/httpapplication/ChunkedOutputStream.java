@@ -0,0 +1,112 @@
+package com.magicalspirits.httptest.httpapplication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+/**
+ * A response body in Transfer-Encoding: chunked, for responses whose length isn't known until they're done. What's
+ * written is held in one buffer of a fixed size, and goes out as a chunk whenever it fills, so a body of any length
+ * costs the same memory.
+ *
+ * Closing it ends the body, with the last chunk and any trailers, but leaves the connection's stream open for the
+ * next response on it. A body that isn't closed is never finished, which is how a client is told that something
+ * went wrong after the headers were sent.
+ */
+public class ChunkedOutputStream extends OutputStream
+{
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private final OutputStream out;
+
+	private final byte[] buffer;
+
+	private int count;
+
+	private final List<String> trailers = Lists.newArrayListWithCapacity(2);
+
+	private boolean closed;
+
+	/**
+	 * @param out the connection's response stream. Each chunk is written to it in three pieces, so it needs to be buffered.
+	 * @param chunkSize the most a chunk carries.
+	 */
+	public ChunkedOutputStream(OutputStream out, int chunkSize)
+	{
+		this.out = out;
+		buffer = new byte[chunkSize];
+	}
+
+	/**
+	 * Adds a field to the trailer, sent after the last chunk. It should have been named in the response's Trailer header.
+	 */
+	public void addTrailer(String name, String value)
+	{
+		trailers.add(name + ": " + value);
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		if(count == buffer.length)
+			writeChunk();
+		buffer[count++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			if(count == buffer.length)
+				writeChunk();
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Sends what's buffered as a chunk, and flushes the connection's stream.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		writeChunk();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if(closed)
+			return;
+		closed = true;
+		writeChunk();
+		out.write('0');
+		out.write(CRLF);
+		for(String trailer : trailers)
+		{
+			out.write(trailer.getBytes(Charsets.ISO_8859_1));
+			out.write(CRLF);
+		}
+		out.write(CRLF);
+	}
+
+	private void writeChunk() throws IOException
+	{
+		//an empty chunk would be the last one.
+		if(count == 0)
+			return;
+		out.write(Integer.toHexString(count).getBytes(Charsets.ISO_8859_1));
+		out.write(CRLF);
+		out.write(buffer, 0, count);
+		out.write(CRLF);
+		count = 0;
+	}
+}
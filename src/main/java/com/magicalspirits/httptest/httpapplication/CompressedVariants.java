@@ -0,0 +1,341 @@
+package com.magicalspirits.httptest.httpapplication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import lombok.RequiredArgsConstructor;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+
+/**
+ * Gzipped copies of files, made the first time a client that accepts gzip asks for the file and kept for the next
+ * ones. Like the static content cache, it's bounded by the bytes it holds, least recently used first, and a copy is
+ * thrown away when its file's modification time or length no longer match.
+ *
+ * Compressing costs cpu, and a gzipped response costs the client nothing but saves the bytes on the wire, so both
+ * are measured: cpu-nanos is the cpu time spent compressing, and bytes-saved what the gzipped responses left off.
+ */
+@Singleton
+public class CompressedVariants
+{
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * What an entry costs besides its gzipped bytes: the entry itself, its key and the cache's node for it, roughly.
+	 * Even an entry with nothing gzipped in it weighs this much, so a root full of files that don't get any smaller
+	 * still fills the cache and pushes the oldest of them out.
+	 */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private final boolean enabled;
+
+	private final int minBytes;
+
+	private final long maxBytes;
+
+	private final long cacheMaxBytes;
+
+	private final Cache<String, Entry> entries;
+
+	private final LongAdder bytes = new LongAdder();
+
+	private final Meter hits;
+
+	private final Meter misses;
+
+	private final Meter evictions;
+
+	private final Meter precompressed;
+
+	private final Counter cpuNanos;
+
+	private final Counter bytesSaved;
+
+	@Inject
+	public CompressedVariants(MetricRegistry registry, ServerConfig config)
+	{
+		enabled = config.isGzipEnabled();
+		minBytes = config.getGzipMinBytes();
+		maxBytes = config.getGzipMaxBytes();
+		cacheMaxBytes = config.getGzipCacheMaxBytes();
+		hits = registry.meter(MetricRegistry.name(CompressedVariants.class, "hits"));
+		misses = registry.meter(MetricRegistry.name(CompressedVariants.class, "misses"));
+		evictions = registry.meter(MetricRegistry.name(CompressedVariants.class, "evictions"));
+		precompressed = registry.meter(MetricRegistry.name(CompressedVariants.class, "precompressed"));
+		cpuNanos = registry.counter(MetricRegistry.name(CompressedVariants.class, "cpu-nanos"));
+		bytesSaved = registry.counter(MetricRegistry.name(CompressedVariants.class, "bytes-saved"));
+		entries = CacheBuilder.newBuilder()
+				.maximumWeight(Math.max(cacheMaxBytes, 1))
+				.<String, Entry>weigher((key, entry) -> getWeight(key, entry))
+				.<String, Entry>removalListener(removal ->
+				{
+					bytes.add(-getWeight(removal.getKey(), removal.getValue()));
+					if(removal.wasEvicted())
+						evictions.mark();
+				})
+				.build();
+		MetricsModule.replace(registry, CompressedVariants.class, "bytes", (Gauge<Long>) () -> bytes.sum());
+		MetricsModule.replace(registry, CompressedVariants.class, "entries", (Gauge<Long>) () -> entries.size());
+	}
+
+	/**
+	 * @param acceptEncoding every value of the request's Accept-Encoding.
+	 * @return true if gzip is on and the client takes it, per rfc 7231. No Accept-Encoding at all means the client takes
+	 * anything, but a client that doesn't say so is rarely ready for it, so that's taken as no.
+	 */
+	public boolean isAccepted(List<String> acceptEncoding)
+	{
+		if(!enabled)
+			return false;
+		Boolean gzip = null;
+		boolean any = false;
+		for(String value : acceptEncoding)
+		{
+			int semicolon = value.indexOf(';');
+			String coding = (semicolon < 0 ? value : value.substring(0, semicolon)).trim();
+			boolean accepted = semicolon < 0 || !isZeroQuality(value.substring(semicolon + 1));
+			if(coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip"))
+				gzip = accepted;
+			else if(coding.equals("*"))
+				any = accepted;
+		}
+		//a gzip;q=0 wins over a *.
+		return gzip != null ? gzip : any;
+	}
+
+	private static boolean isZeroQuality(String parameters)
+	{
+		for(String parameter : parameters.split(";"))
+		{
+			parameter = parameter.trim();
+			if(parameter.startsWith("q=") || parameter.startsWith("Q="))
+			{
+				try
+				{
+					return Double.parseDouble(parameter.substring(2).trim()) <= 0;
+				}
+				catch(NumberFormatException e)
+				{
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true for the mime types that gzip well. Images, video and archives are compressed already.
+	 */
+	public static boolean isCompressible(String contentType)
+	{
+		return contentType.startsWith("text/") || contentType.contains("json") || contentType.contains("xml") || contentType.contains("javascript");
+	}
+
+	/**
+	 * @return the gzipped sibling of the file, name.gz, if there is one at least as new as the file.
+	 */
+	public File getPrecompressed(File file)
+	{
+		if(!enabled)
+			return null;
+		File sibling = new File(file.getPath() + ".gz");
+		//an older .gz is of an older version of the file.
+		if(!sibling.isFile() || sibling.lastModified() < file.lastModified())
+			return null;
+		return sibling;
+	}
+
+	/**
+	 * Counts a response sent from a .gz file rather than its uncompressed original.
+	 */
+	public void sentPrecompressed(long length, long compressedLength)
+	{
+		precompressed.mark();
+		bytesSaved.inc(Math.max(0, length - compressedLength));
+	}
+
+	/**
+	 * The file gzipped, compressed now and cached if it wasn't already.
+	 * @return null if the file is too small or too big to compress, or doesn't get any smaller, in which case it goes
+	 * out as it is.
+	 */
+	public byte[] get(File file) throws IOException
+	{
+		if(!enabled)
+			return null;
+		long lastModified = file.lastModified();
+		long length = file.length();
+		if(length < minBytes || length > maxBytes)
+			return null;
+		String key = file.getPath();
+		Entry entry = entries.getIfPresent(key);
+		if(entry != null && (entry.lastModified != lastModified || entry.length != length))
+		{
+			entries.invalidate(key);
+			entry = null;
+		}
+		if(entry != null)
+			hits.mark();
+		else if(cacheMaxBytes <= 0)
+			entry = load(file, lastModified, length);
+		else
+		{
+			try
+			{
+				//Note: Everyone else asking for the file waits for the one compressing it, so it's only compressed once.
+				entry = entries.get(key, () ->
+				{
+					Entry loaded = load(file, lastModified, length);
+					bytes.add(getWeight(key, loaded));
+					return loaded;
+				});
+			}
+			catch(ExecutionException e)
+			{
+				throw new IOException("Unable to compress " + file, e.getCause());
+			}
+		}
+		if(entry.gzipped == null)
+			return null;
+		bytesSaved.inc(length - entry.gzipped.length);
+		return entry.gzipped;
+	}
+
+	private static int getWeight(String key, Entry entry)
+	{
+		//Note: a String's chars are two bytes each, or one once compacted, so this is its most.
+		return ENTRY_OVERHEAD + key.length() * 2 + (entry.gzipped == null ? 0 : entry.gzipped.length);
+	}
+
+	private Entry load(File file, long lastModified, long length) throws IOException
+	{
+		misses.mark();
+		//Note: Compressed once and sent many times, so it's worth the slowest, smallest setting.
+		byte[] gzipped = compress(Files.toByteArray(file), Deflater.BEST_COMPRESSION);
+		//it changed while it was being read.
+		if(gzipped.length >= length || file.lastModified() != lastModified || file.length() != length)
+			gzipped = null;
+		return new Entry(lastModified, length, gzipped);
+	}
+
+	/**
+	 * Gzips a response as it's written, for ones that are made for each request, like the metrics. The cpu time and
+	 * the bytes saved are counted once it's closed, which closes out as well.
+	 */
+	public OutputStream compress(OutputStream out) throws IOException
+	{
+		return new MeasuredGzip(new CountingOutputStream(out), Deflater.DEFAULT_COMPRESSION);
+	}
+
+	private byte[] compress(byte[] body, int level)
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(body.length / 4 + 64);
+		try(MeasuredGzip gzip = new MeasuredGzip(baos, level))
+		{
+			gzip.write(body);
+		}
+		catch(IOException e)
+		{
+			//a ByteArrayOutputStream doesn't throw.
+			throw new IllegalStateException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Counts the time it spends compressing into cpu-nanos. The time includes writing to out, which is a buffer anyway.
+	 */
+	private class MeasuredGzip extends GZIPOutputStream
+	{
+		private long read;
+
+		private MeasuredGzip(OutputStream out, int level) throws IOException
+		{
+			super(out, 8192);
+			def.setLevel(level);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			long start = getCpuTime();
+			super.write(b, off, len);
+			read += len;
+			countCpu(start);
+		}
+
+		@Override
+		public void finish() throws IOException
+		{
+			long start = getCpuTime();
+			super.finish();
+			countCpu(start);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			super.close();
+			if(out instanceof CountingOutputStream)
+				bytesSaved.inc(Math.max(0, read - ((CountingOutputStream)out).getCount()));
+		}
+
+		private void countCpu(long start)
+		{
+			long end = getCpuTime();
+			cpuNanos.inc(end - start);
+		}
+	}
+
+	/**
+	 * @return the cpu time of the current thread, or its wall time where there isn't any, like on a virtual thread.
+	 */
+	private static long getCpuTime()
+	{
+		try
+		{
+			if(THREADS.isCurrentThreadCpuTimeSupported())
+			{
+				long rv = THREADS.getCurrentThreadCpuTime();
+				if(rv >= 0)
+					return rv;
+			}
+		}
+		catch(UnsupportedOperationException e)
+		{
+			//falls through to wall time.
+		}
+		return System.nanoTime();
+	}
+
+	@RequiredArgsConstructor
+	private static class Entry
+	{
+		private final long lastModified;
+
+		private final long length;
+
+		//null when gzip didn't make it any smaller.
+		private final byte[] gzipped;
+	}
+}
@@ -0,0 +1,186 @@
+package com.magicalspirits.httptest.httpapplication;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+
+/**
+ * Strong entity tags for the files in the content root, from a hash of each file's content. Every file is hashed
+ * when the server starts, by a fork join scan of the whole tree on a pool of its own. After that a file is hashed
+ * again when it's uploaded, or when a request finds it has changed since it was hashed.
+ *
+ * Request threads never hash. A file that hasn't been hashed yet, or has changed since, has no entity tag until
+ * the pool gets to it, and can still be revalidated by its Last-Modified date.
+ */
+@Slf4j
+@Singleton
+public class ContentHashes
+{
+	//Note: The tag only has to change when the content does. Nobody gains anything by making two files collide.
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final ForkJoinPool pool = new ForkJoinPool();
+
+	private final File root;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	//files waiting on the pool, so a busy file that changed is only hashed once.
+	private final Map<String, Boolean> pending = new ConcurrentHashMap<>();
+
+	private final Meter hashed;
+
+	@Inject
+	public ContentHashes(MetricRegistry registry, ServerConfig config)
+	{
+		root = new File(config.getContentRoot());
+		hashed = registry.meter(MetricRegistry.name(ContentHashes.class, "hashed"));
+		MetricsModule.replace(registry, ContentHashes.class, "entries", (Gauge<Integer>) () -> entries.size());
+	}
+
+	@PostConstruct
+	public void start()
+	{
+		if(root.isDirectory())
+			pool.execute(new Scan(root));
+	}
+
+	@PreDestroy
+	public void stop()
+	{
+		pool.shutdownNow();
+	}
+
+	/**
+	 * @return the file's entity tag, quotes and all, or null if it isn't known for the file as it is now.
+	 */
+	public String getETag(File file)
+	{
+		long lastModified = file.lastModified();
+		long length = file.length();
+		Entry entry = entries.get(file.getPath());
+		if(entry != null && entry.lastModified == lastModified && entry.length == length)
+			return entry.etag;
+		changed(file);
+		return null;
+	}
+
+	/**
+	 * Has the file hashed again, on the pool.
+	 */
+	public void changed(File file)
+	{
+		String key = file.getPath();
+		if(pending.putIfAbsent(key, Boolean.TRUE) != null)
+			return;
+		try
+		{
+			pool.execute(() ->
+			{
+				pending.remove(key);
+				hash(file);
+			});
+		}
+		catch(RejectedExecutionException e)
+		{
+			//shutting down.
+			pending.remove(key);
+		}
+	}
+
+	private void hash(File file)
+	{
+		String key = file.getPath();
+		long lastModified = file.lastModified();
+		long length = file.length();
+		if(!file.isFile())
+		{
+			entries.remove(key);
+			return;
+		}
+		try
+		{
+			String etag = "\"" + Files.hash(file, HASH) + "\"";
+			//written to while it was being read, so this hash is of neither version. The next request will ask again.
+			if(file.lastModified() != lastModified || file.length() != length)
+				return;
+			entries.put(key, new Entry(lastModified, length, etag));
+			hashed.mark();
+		}
+		catch(IOException e)
+		{
+			log.debug("Unable to hash {}", file, e);
+			entries.remove(key);
+		}
+	}
+
+	/**
+	 * A directory, with a task for each file and subdirectory in it.
+	 */
+	@RequiredArgsConstructor
+	private class Scan extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final File directory;
+
+		@Override
+		protected void compute()
+		{
+			File[] children = directory.listFiles();
+			if(children == null)
+				return;
+			List<RecursiveAction> tasks = Lists.newArrayListWithCapacity(children.length);
+			for(File child : children)
+			{
+				if(child.isDirectory())
+					tasks.add(new Scan(child));
+				else
+					tasks.add(new RecursiveAction()
+					{
+						private static final long serialVersionUID = 1L;
+
+						@Override
+						protected void compute()
+						{
+							hash(child);
+						}
+					});
+			}
+			invokeAll(tasks);
+		}
+	}
+
+	@RequiredArgsConstructor
+	private static class Entry
+	{
+		private final long lastModified;
+
+		private final long length;
+
+		private final String etag;
+	}
+}
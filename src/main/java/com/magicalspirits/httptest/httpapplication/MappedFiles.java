@@ -0,0 +1,238 @@
+package com.magicalspirits.httptest.httpapplication;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+
+/**
+ * Memory mappings of big files, shared by every request for the same file. A request acquires the mapping, writes
+ * from its own duplicate of the buffer, and releases it. The mapping stays in place for the next request until
+ * its file changes or it's evicted to keep the total under httptest.mmap.max.bytes, least recently used first.
+ * After that it's unmapped as soon as the last request using it lets go, rather than whenever the gc gets to it.
+ *
+ * Note: A mapped file that's cut short while it's being sent makes the jvm throw an InternalError from the write.
+ * Uploads replace files with a move, which leaves the old file, and its mapping, alone.
+ */
+@Slf4j
+@Singleton
+public class MappedFiles
+{
+	private static final Consumer<ByteBuffer> UNMAPPER = findUnmapper();
+
+	private final long minBytes;
+
+	private final long maxBytes;
+
+	//in least recently used order, guarded by this.
+	private final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+
+	//what the mappings in the map add up to, guarded by this.
+	private long cachedBytes;
+
+	//everything still mapped, including mappings that were evicted but are still being sent from.
+	private final LongAdder mappedBytes = new LongAdder();
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	private final Meter hits;
+
+	private final Meter maps;
+
+	private final Meter evictions;
+
+	private final Meter invalidations;
+
+	@Inject
+	public MappedFiles(MetricRegistry registry, ServerConfig config)
+	{
+		minBytes = config.getMmapMinBytes();
+		maxBytes = config.getMmapMaxBytes();
+		hits = registry.meter(MetricRegistry.name(MappedFiles.class, "hits"));
+		maps = registry.meter(MetricRegistry.name(MappedFiles.class, "maps"));
+		evictions = registry.meter(MetricRegistry.name(MappedFiles.class, "evictions"));
+		invalidations = registry.meter(MetricRegistry.name(MappedFiles.class, "invalidations"));
+		MetricsModule.replace(registry, MappedFiles.class, "mapped-bytes", (Gauge<Long>) () -> mappedBytes.sum());
+		MetricsModule.replace(registry, MappedFiles.class, "active-mappings", (Gauge<Integer>) () -> active.get());
+	}
+
+	/**
+	 * The file's mapping, mapped now if it wasn't already. Release it once done with the buffer.
+	 * @return null if the file is too small to be mapped, too big to map in one piece, or mapping is off.
+	 */
+	public Mapping acquire(File file) throws IOException
+	{
+		if(minBytes <= 0)
+			return null;
+		long lastModified = file.lastModified();
+		long length = file.length();
+		//a MappedByteBuffer is indexed by int.
+		if(length < minBytes || length > Integer.MAX_VALUE || length > maxBytes)
+			return null;
+		String key = file.getPath();
+		synchronized(this)
+		{
+			Mapping mapping = mappings.get(key);
+			if(mapping != null && mapping.lastModified == lastModified && mapping.length == length)
+			{
+				hits.mark();
+				mapping.refs.incrementAndGet();
+				return mapping;
+			}
+			if(mapping != null)
+			{
+				invalidations.mark();
+				remove(mapping);
+			}
+		}
+
+		//Note: Mapped without the lock, so two requests can map the same file at once. The last one in is kept.
+		Mapping mapping;
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE)
+				return null;
+			mapping = new Mapping(key, lastModified, size, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		}
+		maps.mark();
+		synchronized(this)
+		{
+			Mapping previous = mappings.put(key, mapping);
+			cachedBytes += mapping.length;
+			if(previous != null)
+			{
+				cachedBytes -= previous.length;
+				previous.release();
+			}
+			for(Iterator<Mapping> eldest = mappings.values().iterator(); cachedBytes > maxBytes && eldest.hasNext(); )
+			{
+				Mapping evicted = eldest.next();
+				if(evicted == mapping)
+					continue;
+				eldest.remove();
+				cachedBytes -= evicted.length;
+				evictions.mark();
+				evicted.release();
+			}
+			//one for the map, and one for the caller.
+			mapping.refs.incrementAndGet();
+		}
+		return mapping;
+	}
+
+	//must hold the lock.
+	private void remove(Mapping mapping)
+	{
+		mappings.remove(mapping.key);
+		cachedBytes -= mapping.length;
+		mapping.release();
+	}
+
+	/**
+	 * One mapped file. Each reference is a request sending from it, plus one while it's in the map.
+	 */
+	public class Mapping
+	{
+		private final String key;
+
+		private final long lastModified;
+
+		private final long length;
+
+		private final MappedByteBuffer buffer;
+
+		private final AtomicInteger refs = new AtomicInteger(1);
+
+		private Mapping(String key, long lastModified, long length, MappedByteBuffer buffer)
+		{
+			this.key = key;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.buffer = buffer;
+			mappedBytes.add(length);
+			active.incrementAndGet();
+		}
+
+		/**
+		 * @return the whole file, in a buffer of the caller's own. Don't touch it after release.
+		 */
+		public ByteBuffer getBuffer()
+		{
+			return buffer.duplicate();
+		}
+
+		public void release()
+		{
+			if(refs.decrementAndGet() != 0)
+				return;
+			UNMAPPER.accept(buffer);
+			mappedBytes.add(-length);
+			active.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Note: There's no public way to unmap a buffer. From java 9 sun.misc.Unsafe has invokeCleaner, and before that
+	 * the buffer's own cleaner does it. Both are only reachable through reflection when compiling for java 8.
+	 */
+	private static Consumer<ByteBuffer> findUnmapper()
+	{
+		try
+		{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Object unsafe = theUnsafe.get(null);
+			return buffer -> invoke(invokeCleaner, unsafe, buffer);
+		}
+		catch(ReflectiveOperationException | RuntimeException e)
+		{
+			log.debug("No Unsafe.invokeCleaner, trying the java 8 cleaner", e);
+		}
+		try
+		{
+			Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			return buffer -> invoke(clean, invoke(cleaner, buffer));
+		}
+		catch(ReflectiveOperationException | RuntimeException e)
+		{
+			log.warn("Unable to unmap files explicitly, they stay mapped until they're garbage collected", e);
+			return buffer -> {};
+		}
+	}
+
+	private static Object invoke(Method method, Object target, Object... args)
+	{
+		try
+		{
+			return method.invoke(target, args);
+		}
+		catch(ReflectiveOperationException | RuntimeException e)
+		{
+			log.warn("Unable to unmap a file, it stays mapped until it's garbage collected", e);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.magicalspirits.httptest.httpapplication;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Paths to whatever answers them, compiled once from patterns of three kinds:
+ * <ul>
+ * <li>exact, like /metrics, which matches only that path.</li>
+ * <li>wildcard, like /users/{@literal *}/avatar, where each * matches any one segment of the path.</li>
+ * <li>prefix, like /static/**, which matches /static and everything under it. ** is only allowed as the last segment.</li>
+ * </ul>
+ * An exact pattern wins over the others, a literal segment wins over a *, and the deepest prefix wins over the
+ * shallower ones, whatever order the patterns were given in.
+ *
+ * Note: Exact patterns are in a hash map, so most paths are one lookup. The rest are a trie with a level for each
+ * segment, so a lookup walks the path once, and costs the same with ten routes or ten thousand.
+ */
+public class RouteTable<T>
+{
+	private static final String WILDCARD = "*";
+
+	private static final String PREFIX = "**";
+
+	private final Map<String, T> exact = Maps.newHashMap();
+
+	private final Node<T> root = new Node<>();
+
+	//false when every pattern is exact, so a miss in the map is a miss.
+	private final boolean trie;
+
+	/**
+	 * @throws IllegalArgumentException for a pattern that isn't one of the three kinds.
+	 */
+	public RouteTable(Map<String, T> routes)
+	{
+		boolean trie = false;
+		for(Map.Entry<String, T> route : routes.entrySet())
+		{
+			String pattern = route.getKey();
+			if(!pattern.startsWith("/"))
+				throw new IllegalArgumentException("Route " + pattern + " doesn't start with /");
+			if(!pattern.contains(WILDCARD))
+			{
+				exact.put(pattern, route.getValue());
+				continue;
+			}
+			trie = true;
+			Node<T> node = root;
+			String[] segments = pattern.substring(1).split("/", -1);
+			for(int i = 0; i < segments.length; i++)
+			{
+				String segment = segments[i];
+				if(PREFIX.equals(segment))
+				{
+					if(i != segments.length - 1)
+						throw new IllegalArgumentException("Route " + pattern + " has ** before its last segment");
+					node.prefix = route.getValue();
+					node = null;
+					break;
+				}
+				if(WILDCARD.equals(segment))
+				{
+					if(node.wildcard == null)
+						node.wildcard = new Node<>();
+					node = node.wildcard;
+					continue;
+				}
+				if(segment.contains(WILDCARD))
+					throw new IllegalArgumentException("Route " + pattern + " has a * inside a segment");
+				node = node.children.computeIfAbsent(segment, key -> new Node<>());
+			}
+			if(node != null)
+				node.exact = route.getValue();
+		}
+		this.trie = trie;
+	}
+
+	/**
+	 * @return what the path's route maps to, or null if no route matches it.
+	 */
+	public T match(String path)
+	{
+		T rv = exact.get(path);
+		if(rv != null || !trie || !path.startsWith("/"))
+			return rv;
+		return match(root, path, 1, null);
+	}
+
+	/**
+	 * Matches the rest of the path, from start, below node.
+	 * @param prefix the deepest prefix matched on the way here, which is the answer if nothing deeper matches.
+	 */
+	private T match(Node<T> node, String path, int start, T prefix)
+	{
+		while(true)
+		{
+			if(node.prefix != null)
+				prefix = node.prefix;
+			if(start > path.length())
+				return node.exact != null ? node.exact : prefix;
+			int end = path.indexOf('/', start);
+			if(end < 0)
+				end = path.length();
+			Node<T> literal = node.children.get(path.substring(start, end));
+			//an empty segment, as in //, is only ever matched literally.
+			Node<T> wildcard = end > start ? node.wildcard : null;
+			if(literal == null && wildcard == null)
+				return prefix;
+			if(literal == null || wildcard == null)
+			{
+				node = literal != null ? literal : wildcard;
+				start = end + 1;
+				continue;
+			}
+			//both could match, so the literal is tried first and the wildcard if it comes to nothing deeper.
+			T rv = match(literal, path, end + 1, null);
+			if(rv != null)
+				return rv;
+			node = wildcard;
+			start = end + 1;
+		}
+	}
+
+	private static class Node<T>
+	{
+		private final Map<String, Node<T>> children = Maps.newHashMap();
+
+		private Node<T> wildcard;
+
+		private T exact;
+
+		private T prefix;
+	}
+}
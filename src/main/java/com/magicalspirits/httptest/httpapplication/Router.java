@@ -0,0 +1,104 @@
+package com.magicalspirits.httptest.httpapplication;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.google.inject.Inject;
+import com.magicalspirits.httptest.httpapplication.Routes.Route;
+import com.magicalspirits.httptest.httpparser.HttpRuriData;
+import com.magicalspirits.httptest.httpparser.RequestBody;
+import com.magicalspirits.httptest.httpparser.RequestHeaders;
+
+/**
+ * The application stage, which hands each request to the ApplicationRunner of the route that matches its path. It
+ * answers 404 when no route does, and 403 for a path that doesn't start with / or climbs out with /.., whatever the
+ * routes are.
+ *
+ * Like any other stage, one router is kept for each connection, and it keeps the runners it has handed requests to, one
+ * for each route, so a keep alive connection asking for the same pages again doesn't make them again.
+ */
+public class Router extends AbstractApplicationRunner
+{
+	@Inject
+	private Routes routes;
+
+	//this connection's runner for each route it has been sent to.
+	private final Map<Route, ApplicationRunner> runners = new IdentityHashMap<>(4);
+
+	//the rest are this request's, from its path. route and target are null when nothing takes it.
+	private boolean forbidden;
+
+	private Route route;
+
+	private ApplicationRunner target;
+
+	/**
+	 * Looks the route up, once for the request, as soon as its path is known. The socket and connection are set by now,
+	 * and the headers and body are handed on to the route's runner as they're set.
+	 */
+	@Override
+	public void setHttpRuri(HttpRuriData httpRuri)
+	{
+		super.setHttpRuri(httpRuri);
+		forbidden = !httpRuri.isSafePath();
+		route = forbidden ? null : routes.match(httpRuri.getRuriPath());
+		target = route == null ? null : runners.computeIfAbsent(route, key -> key.getRunner().get());
+		if(target != null)
+		{
+			target.setSocket(socket);
+			target.setConnection(connection);
+			target.setHttpRuri(httpRuri);
+		}
+	}
+
+	@Override
+	public void setHeaders(RequestHeaders headers)
+	{
+		super.setHeaders(headers);
+		if(target != null)
+			target.setHeaders(headers);
+	}
+
+	@Override
+	public void setRequestBody(RequestBody requestBody)
+	{
+		super.setRequestBody(requestBody);
+		if(target != null)
+			target.setRequestBody(requestBody);
+	}
+
+	/**
+	 * Inline if the route's runner is. A 403 or 404 always is.
+	 */
+	@Override
+	public boolean isInline()
+	{
+		return target == null || target.isInline();
+	}
+
+	@Override
+	public void run() 
+	{
+		if(target != null)
+		{
+			route.getDispatched().mark();
+			target.run();
+			return;
+		}
+		routes.getUnmatched().mark();
+		try
+		{
+			openResponse();
+			if(forbidden)
+				returnResponseCode(403, "Forbidden");
+			else
+				returnResponseCode(404, "Not Found");
+			finish();
+		}
+		catch(IOException ioe)
+		{
+			fail(ioe);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.magicalspirits.httptest.httpapplication;
+
+import java.util.Map;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Maps;
+import com.google.inject.Binder;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.multibindings.MapBinder;
+
+/**
+ * Every route the router knows, compiled into a route table once, when the injector makes it. Routes are added with
+ * newRouteBinder, from any module, as a pattern (see RouteTable) and the ApplicationRunner that answers it:
+ *
+ * <pre>
+ * Routes.newRouteBinder(binder()).addBinding("/metrics").to(ServeMetrics.class);
+ * </pre>
+ *
+ * Each route counts the requests sent to it in Router.routes.(pattern), and requests no route takes, including the
+ * forbidden ones, in Router.unmatched.
+ */
+@Singleton
+public class Routes
+{
+	private final RouteTable<Route> table;
+
+	@Getter
+	private final Meter unmatched;
+
+	@Inject
+	public Routes(Map<String, Provider<ApplicationRunner>> routes, MetricRegistry registry)
+	{
+		Map<String, Route> compiled = Maps.newHashMapWithExpectedSize(routes.size());
+		for(Map.Entry<String, Provider<ApplicationRunner>> route : routes.entrySet())
+			compiled.put(route.getKey(), new Route(route.getKey(), route.getValue(), registry.meter(MetricRegistry.name(Router.class, "routes", route.getKey()))));
+		table = new RouteTable<>(compiled);
+		unmatched = registry.meter(MetricRegistry.name(Router.class, "unmatched"));
+	}
+
+	public static MapBinder<String, ApplicationRunner> newRouteBinder(Binder binder)
+	{
+		return MapBinder.newMapBinder(binder, String.class, ApplicationRunner.class);
+	}
+
+	/**
+	 * @return the route for the path, or null if there isn't one.
+	 */
+	public Route match(String path)
+	{
+		return table.match(path);
+	}
+
+	@RequiredArgsConstructor
+	@Getter
+	public static class Route
+	{
+		private final String pattern;
+
+		//a new instance every time.
+		private final Provider<ApplicationRunner> runner;
+
+		private final Meter dispatched;
+	}
+}
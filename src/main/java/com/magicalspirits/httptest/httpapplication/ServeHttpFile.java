@@ -1,80 +1,128 @@
 package com.magicalspirits.httptest.httpapplication;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.PrintStream;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.function.Supplier;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
 
-import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.annotation.ExceptionMetered;
 import com.codahale.metrics.annotation.Metered;
 import com.codahale.metrics.annotation.Timed;
-import com.codahale.metrics.health.HealthCheckRegistry;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.base.Strings;
-import com.google.common.collect.ArrayListMultimap;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.ObjectArrays;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import com.google.common.net.HttpHeaders;
 import com.google.inject.Inject;
-import com.google.inject.name.Named;
-import com.magicalspirits.httptest.acceptor.SocketRunner;
+import com.magicalspirits.httptest.httpparser.ByteRange;
 import com.magicalspirits.httptest.httpparser.HttpRuriData;
-import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.httpparser.MultipartDecoder;
+import com.magicalspirits.httptest.httpparser.RequestHeaders.Known;
 
+/**
+ * Serves the files under the content root, and takes uploads into it when they're turned on.
+ */
 @Slf4j
-public class ServeHttpFile implements ApplicationRunner 
+public class ServeHttpFile extends AbstractApplicationRunner 
 {	
-	@Setter(onMethod=@__(@Override))
-	private Socket socket;
+	private static final String ACCEPT_RANGES = HttpHeaders.ACCEPT_RANGES + ": bytes";
 
-	@Setter(onMethod=@__(@Override))
-	private BufferedReader bufferedReader;
-	
-	@Setter(onMethod=@__(@Override))
-	private HttpRuriData httpRuri;
+	//rfc 7231's IMF-fixdate. DateTimeFormatter.RFC_1123_DATE_TIME leaves the leading 0 off the day.
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	@Inject 
+	private MetricRegistry metricRegistry;
 
-	@Setter(onMethod=@__(@Override))
-	private ArrayListMultimap<String, String> headers;
-	
 	@Inject
-	private Map<String, String> mimeTypeRegistry;
-	
+	private StaticContentCache contentCache;
+
 	@Inject
-	@Named(ExecutorsModule.HTTP_SERVER_POOL)
-	private ExecutorService serverPool;
+	private MappedFiles mappedFiles;
 
 	@Inject
-	private ExecutorService defaultPool;
+	private ContentHashes contentHashes;
 
 	@Inject
-	private Supplier<SocketRunner> socketRunnerSupplier;
-	
-	@Inject 
-	private ObjectMapper mapper; //for metrics and monitoring.
+	private CompressedVariants compressedVariants;
 	
+	private Meter notModified;
+
+	private Meter ranges;
+
+	private Meter unsatisfiableRanges;
+
+	private Counter rangeBytesSaved;
+
+	private File file;
+
 	@Inject
-	private HealthCheckRegistry healthRegistry;
-	
-	@Inject 
-	private MetricRegistry metricRegistry;
+	public void initMetrics()
+	{
+		notModified = metricRegistry.meter(MetricRegistry.name(ServeHttpFile.class, "not-modified"));
+		ranges = metricRegistry.meter(MetricRegistry.name(ServeHttpFile.class, "ranges"));
+		unsatisfiableRanges = metricRegistry.meter(MetricRegistry.name(ServeHttpFile.class, "ranges.unsatisfiable"));
+		rangeBytesSaved = metricRegistry.counter(MetricRegistry.name(ServeHttpFile.class, "ranges.bytes-saved"));
+	}
+
+	@Override
+	public void setHttpRuri(HttpRuriData httpRuri)
+	{
+		super.setHttpRuri(httpRuri);
+		//a later request on the same connection, so the file looked up for the last one is no good.
+		file = null;
+	}
 	
-	private OutputStream out;
-	private PrintStream ps;
+	/**
+	 * Error responses and small files are inline. Uploads are not, since they wait on the client.
+	 */
+	@Override
+	public boolean isInline()
+	{
+		if(!isAllowed())
+			return true;
+		if(isUpload())
+			return false;
+		File file = getFile();
+		return !file.isFile() || file.length() <= config.getInlineMaxBytes();
+	}
+
+	private boolean isAllowed()
+	{
+		return httpRuri.isSafePath() && ("GET".equalsIgnoreCase(httpRuri.getRequestType()) || isUpload());
+	}
+
+	private boolean isUpload()
+	{
+		return config.isPutEnabled() && ("PUT".equalsIgnoreCase(httpRuri.getRequestType()) || "POST".equalsIgnoreCase(httpRuri.getRequestType()));
+	}
+
+	private File getFile()
+	{
+		if(file == null)
+			file = new File(config.getContentRoot() + httpRuri.getRuriPath());
+		return file;
+	}
 	
 	@Override
 	@Metered(name="run.meter")
@@ -84,53 +132,41 @@ public class ServeHttpFile implements ApplicationRunner
 	{
 		try
 		{
-			//NOTE: There are a lot of things we should do here with transfer encoding, 
-			// content encoding, content transfer chunked. 
-			// I'm going to minimum viable product for this demo, so I'm skipping thse areas.
-	
-			//4096 is generally a good size for data traversing the internet. IF this were local, we might want something bigger.
-			out = new BufferedOutputStream(socket.getOutputStream(), 4096); 
-			ps = new PrintStream(out, true);
+			//NOTE: Files go out with a Content-Length, gzipped when the client takes it.
+			openResponse();
 			
 			//some sanity checking
-			if(!httpRuri.getRuriPath().startsWith("/") || httpRuri.getRuriPath().contains("/.."))
+			if(!httpRuri.isSafePath())
 			{
 				returnResponseCode(403, "Forbidden");
 				finish();
 				return;
 			}
 			
-			if(!"GET".equalsIgnoreCase(httpRuri.getRequestType()))
+			if(isUpload() && "PUT".equalsIgnoreCase(httpRuri.getRequestType()))
 			{
-				//As noted previously, this is only for GET methods, and otherwise I would 
-				// have to get creative with the line reading in the http parser.
-				returnResponseCode(405, "Method Not Allowed");
+				storeUpload();
 				finish();
 				return;
 			}
-			
-			//Note: The root directory in a production environment would come dependency injection rather than a classpath resource.
-			// This is good enough for this demo.
-			
-			//Note: Here we would probably use a list of some path matching to the actual class that produces the result, however
-			// since I'm only adding metrics and monitoring, I'm not going to be that dynamic about it.
-			
-			if("/metrics".equals(httpRuri.getRuriPath()))
+			if(isUpload() && "POST".equalsIgnoreCase(httpRuri.getRequestType()))
 			{
-				writeMetrics();
+				storeFormUpload();
 				finish();
 				return;
 			}
-			if("/monitoring".equals(httpRuri.getRuriPath()))
+			
+			if(!"GET".equalsIgnoreCase(httpRuri.getRequestType()))
 			{
-				writeMonitoring();
+				//Only files to GET, and PUT or POST when uploads are turned on.
+				returnResponseCode(405, "Method Not Allowed");
 				finish();
 				return;
 			}
 			
-			//otherwise, look for a file
+			//the router sends everything here that no other route takes, so look for a file
 			
-			File file = new File(ServeHttpFile.class.getClassLoader().getResource("wwwroot").getFile() + httpRuri.getRuriPath());
+			File file = getFile();
 			//Note: Default behavior of an empty url would be to have it try an index.html. That's not in this demo, but wouldn't be
 			//hard to check for here and add.
 			
@@ -141,167 +177,444 @@ public class ServeHttpFile implements ApplicationRunner
 				return;
 			}
 		
-			writeResult(200, "OK", file);
-			finish();
-		}
-		catch(IOException ioe)
-		{
-			try
+			String etag = contentHashes.getETag(file);
+			//Note: A Range is in bytes of the file as it is, so range requests are never compressed.
+			if(!headers.contains(Known.RANGE) && compressedVariants.isAccepted(headers.getAll(Known.ACCEPT_ENCODING)) && writeCompressed(file, etag))
 			{
-				//try to send a 500
-				returnResponseCode(500, "Internal Server Error");
 				finish();
+				return;
 			}
-			catch(Exception e)
-			{
-				log.debug("Unable to send 500 after another error", e);
-			}
-			
-			try
+			if(isNotModified(file, etag))
 			{
-				socket.close();
+				writeNotModified(file, etag, isNegotiated(file));
+				finish();
+				return;
 			}
-			catch(IOException e2)
+			if(headers.contains(Known.RANGE) && writeRanges(file, etag))
 			{
-				log.debug("Unable to close socket inside failure case", e2);
+				finish();
+				return;
 			}
-
-			throw new RuntimeException(ioe);
+			if(!writeCached(file, etag) && !writeMapped(file, etag))
+				writeResult(200, "OK", file, etag);
+			finish();
+		}
+		catch(IOException ioe)
+		{
+			fail(ioe);
 		}
 	}
 	
-	private void writeMetrics() throws IOException
+	/**
+	 * Streams the request body into the file at the request path. A chunked body can be any size, so it's cut
+	 * off one byte past the limit to tell when it's too big.
+	 */
+	@Metered(name="put.meter")
+	@Timed(name="put.timed")
+	@ExceptionMetered(name="put.exceptionmeter")
+	protected void storeUpload() throws IOException
 	{
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		//I have to wrap this in a byte array outputstream since I dont know the size, and I
-		// dont support chunked encoding.
-		mapper.writerWithDefaultPrettyPrinter().writeValue(baos, metricRegistry);
+		File file = getFile();
+		File directory = file.getParentFile();
+		if(file.isDirectory() || directory == null || !directory.isDirectory())
+		{
+			returnResponseCode(409, "Conflict");
+			return;
+		}
+		if(!headers.contains(Known.CONTENT_LENGTH) && !headers.contains(Known.TRANSFER_ENCODING))
+		{
+			returnResponseCode(411, "Length Required");
+			return;
+		}
+		//Note: Checked before the body is read, so a client waiting on 100 Continue never sends it.
+		if(requestBody.getContentLength() > config.getPutMaxBytes())
+		{
+			returnResponseCode(413, "Payload Too Large");
+			return;
+		}
 
-		writeResult(200, "OK", "txt", baos.size(), new ByteArrayInputStream(baos.toByteArray()));
+		boolean replacing = file.exists();
+		ReadableByteChannel body = Channels.newChannel(requestBody);
+		boolean stored = store(file, channel ->
+		{
+			//transferFrom takes it through one small buffer however big the upload is.
+			long length = 0;
+			for(long count; (count = channel.transferFrom(body, length, config.getPutMaxBytes() + 1 - length)) > 0; )
+				length += count;
+			return length;
+		});
+		if(!stored)
+			returnResponseCode(413, "Payload Too Large");
+		else if(replacing)
+			returnResponseCode(204, "No Content");
+		else
+			returnResponseCode(201, "Created");
 	}
-	
-	private void writeMonitoring() throws IOException
+
+	/**
+	 * Stores every file in a multipart/form-data POST in the directory it was posted to, under the name the client
+	 * gave it. Each file goes from the decoder's buffer to disk without being held anywhere, and other fields are skipped.
+	 */
+	@Metered(name="form.meter")
+	@Timed(name="form.timed")
+	@ExceptionMetered(name="form.exceptionmeter")
+	protected void storeFormUpload() throws IOException
 	{
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		//I have to wrap this in a byte array outputstream since I dont know the size, and I
-		// dont support chunked encoding.
-		mapper.writerWithDefaultPrettyPrinter().writeValue(baos, healthRegistry.runHealthChecks(defaultPool));
+		File directory = getFile();
+		if(!directory.isDirectory())
+		{
+			returnResponseCode(409, "Conflict");
+			return;
+		}
+		int stored = 0;
+		try
+		{
+			MultipartDecoder multipart = MultipartDecoder.forRequest(headers, requestBody, config.getRequestBufferSize());
+			if(multipart == null)
+			{
+				returnResponseCode(415, "Unsupported Media Type");
+				return;
+			}
+			for(MultipartDecoder.Part next = multipart.nextPart(); next != null; next = multipart.nextPart())
+			{
+				MultipartDecoder.Part part = next;
+				String fileName = part.getFileName();
+				if(fileName == null)
+					continue;
+				//some browsers send the whole path from the client's disk.
+				fileName = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+				if(fileName.isEmpty() || fileName.equals(".") || fileName.equals(".."))
+					continue;
+				//stop one byte past the limit to tell when it's too big.
+				if(!store(new File(directory, fileName), channel -> part.transferTo(channel, config.getPutMaxBytes() + 1)))
+				{
+					returnResponseCode(413, "Payload Too Large");
+					return;
+				}
+				stored++;
+			}
+		}
+		catch(ProtocolException e)
+		{
+			log.info("Unreadable multipart body from {}: {}", socket, e.getMessage());
+			returnResponseCode(400, "Bad Request");
+			return;
+		}
+		if(stored == 0)
+			returnResponseCode(400, "Bad Request");
+		else
+			returnResponseCode(201, "Created");
+	}
+
+	/**
+	 * Writes into a temporary file next to the target, and moves it over the target once it's all there, so nobody
+	 * ever GETs half an upload in place of the old file.
+	 * @return false if the upload wrote more than httptest.put.max.bytes, in which case nothing is stored.
+	 */
+	private boolean store(File file, Upload upload) throws IOException
+	{
+		File temporary = File.createTempFile(".upload", ".tmp", file.getParentFile());
+		try
+		{
+			long length;
+			try(FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE))
+			{
+				length = upload.writeTo(channel);
+			}
+			if(length > config.getPutMaxBytes())
+				return false;
+			java.nio.file.Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			contentHashes.changed(file);
+			return true;
+		}
+		finally
+		{
+			//already gone if it was moved.
+			temporary.delete();
+		}
+	}
 
-		writeResult(200, "OK", "txt", baos.size(), new ByteArrayInputStream(baos.toByteArray()));
+	@FunctionalInterface
+	private static interface Upload
+	{
+		/**
+		 * @return how many bytes were written.
+		 */
+		public long writeTo(FileChannel channel) throws IOException;
 	}
 
-	private void writeResult(int responseCode, String httpMessage, File file) throws IOException 
+	/**
+	 * Sends the file gzipped, from its .gz if it has one, and otherwise compressed and kept by the compressed variants.
+	 * Each version has an entity tag of its own, since it isn't the same bytes as the file.
+	 * @return false if it's not a type that compresses, or doesn't get smaller, and nothing was written.
+	 */
+	private boolean writeCompressed(File file, String etag) throws IOException
 	{
-		String ext = Files.getFileExtension(file.getName());
-		try(FileInputStream fis = new FileInputStream(file))
+		String contentType = getMimeType(Files.getFileExtension(file.getName()));
+		File precompressed = compressedVariants.getPrecompressed(file);
+		if(precompressed != null)
 		{
-			writeResult(responseCode, httpMessage, ext, file.length(), fis);
+			String compressedETag = contentHashes.getETag(precompressed);
+			if(isNotModified(precompressed, compressedETag))
+			{
+				writeNotModified(precompressed, compressedETag, true);
+				return true;
+			}
+			try(FileChannel channel = FileChannel.open(precompressed.toPath(), StandardOpenOption.READ))
+			{
+				long length = channel.size();
+				writeResultHeader(ps, 200, "OK", contentType, length, getFileHeaders(precompressed, compressedETag, true));
+				writeFileRegion(channel, 0, length);
+				compressedVariants.sentPrecompressed(file.length(), length);
+			}
+			return true;
 		}
+		if(!CompressedVariants.isCompressible(contentType))
+			return false;
+		//the tag is a hash of the file, so the compressed version's is told apart with a suffix.
+		String compressedETag = etag == null ? null : etag.substring(0, etag.length() - 1) + "-gzip\"";
+		if(isNotModified(file, compressedETag))
+		{
+			writeNotModified(file, compressedETag, true);
+			return true;
+		}
+		byte[] gzipped = compressedVariants.get(file);
+		if(gzipped == null)
+			return false;
+		writeResultHeader(ps, 200, "OK", contentType, gzipped.length, getFileHeaders(file, compressedETag, true));
+		out.write(gzipped);
+		return true;
 	}
 
-	private void writeResult(int responseCode, String httpMessage, String ext, long length, InputStream in) throws IOException 
+	/**
+	 * @return true if what's sent for the file depends on the Accept-Encoding, and responses need to say so in a Vary.
+	 */
+	private boolean isNegotiated(File file)
 	{
-		writeResultHeader(responseCode, httpMessage, ext, length);
-		ByteStreams.copy(in, out);
-		out.flush();
+		return compressedVariants.getPrecompressed(file) != null || (config.isGzipEnabled()
+				&& CompressedVariants.isCompressible(getMimeType(Files.getFileExtension(file.getName())))
+				&& file.length() >= config.getGzipMinBytes() && file.length() <= config.getGzipMaxBytes());
 	}
-	
-	private void writeResultHeader(int responseCode, String httpMessage, String ext, long length) throws IOException 
+
+	/**
+	 * Sends the whole response out of the static content cache, if the file is small enough to be kept there.
+	 * @return false if it isn't, and nothing was written.
+	 */
+	private boolean writeCached(File file, String etag) throws IOException
 	{
-		ps.println(httpRuri.getVersion() + " " + responseCode + " " + httpMessage);
-		ps.println(HttpHeaders.CONTENT_LENGTH + ": " + length);
-		
-		//"" is a great default.
-		String mimeType = mimeTypeRegistry.get("");
-		if(!Strings.isNullOrEmpty(ext) && mimeTypeRegistry.containsKey(ext))
-			mimeType = mimeTypeRegistry.get(ext);
-		
-		ps.println(HttpHeaders.CONTENT_TYPE + ": " + mimeType);
-		
-		ps.println();
-		ps.flush();
+		String ext = Files.getFileExtension(file.getName());
+		//the status line has the request's version in it.
+		ByteBuffer response = contentCache.get(httpRuri.getVersion() + " " + file.getPath(), file, etag, length ->
+		{
+			ByteArrayOutputStream head = new ByteArrayOutputStream();
+			writeResultHeader(new PrintStream(head, false), 200, "OK", getMimeType(ext), length, getFileHeaders(file, etag, false));
+			return head.toByteArray();
+		});
+		if(response == null)
+			return false;
+		//Note: Ahead of a pipelined request it's copied into the response stream instead, to go out with the rest of the batch.
+		if((config.isPipeliningEnabled() && connection.hasBufferedInput()) || !connection.write(response))
+			Channels.newChannel(out).write(response);
+		return true;
 	}
 
-	@Metered(name="finish.meter")
-	@Timed(name="finish.timed")
-	@ExceptionMetered(name="finish.exceptionmeter")
-	private void finish()
+	/**
+	 * Sends the file from its shared memory mapping, if it's big enough to be mapped.
+	 * @return false if it isn't, and nothing was written.
+	 */
+	private boolean writeMapped(File file, String etag) throws IOException
 	{
+		MappedFiles.Mapping mapping = mappedFiles.acquire(file);
+		if(mapping == null)
+			return false;
 		try
 		{
-			ps.flush();
-			out.flush();
+			ByteBuffer body = mapping.getBuffer();
+			writeResultHeader(ps, 200, "OK", getMimeType(Files.getFileExtension(file.getName())), body.remaining(), getFileHeaders(file, etag, false));
+			if(!connection.write(body))
+				Channels.newChannel(out).write(body);
 		}
-		catch(IOException e)
+		finally
 		{
-			try 
-			{
-				socket.close();
-			} 
-			catch (IOException e1) 
-			{
-				log.warn("Unable to close socket", e1);
-			}
-			throw new RuntimeException(e);			
+			//nothing is left holding the buffer once the write returns.
+			mapping.release();
 		}
-		
-		
-		if(httpRuri.getVersion().equalsIgnoreCase("HTTP/1.1") && !socket.isClosed())
+		return true;
+	}
+
+	private void writeResult(int responseCode, String httpMessage, File file, String etag) throws IOException 
+	{
+		String ext = Files.getFileExtension(file.getName());
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
 		{
-			boolean closeRequired = false;
-			
-			List<String> closed = headers.get(HttpHeaders.CONNECTION);
-			for(String closeValue : closed)
+			long length = channel.size();
+			writeResultHeader(ps, responseCode, httpMessage, getMimeType(ext), length, getFileHeaders(file, etag, false));
+			writeFileRegion(channel, 0, length);
+		}
+	}
+
+	/**
+	 * Answers a Range request with a 206, with multipart/byteranges for more than one range, or a 416 if none of
+	 * them are in the file.
+	 * @return false if the range should be ignored, and nothing was written.
+	 */
+	private boolean writeRanges(File file, String etag) throws IOException
+	{
+		//Note: If-Range only counts when it's exactly the file's current version. Otherwise the client's copy is stale, and it gets the whole thing.
+		if(headers.contains(Known.IF_RANGE) && !isCurrentVersion(headers.get(Known.IF_RANGE), file, etag))
+			return false;
+		String contentType = getMimeType(Files.getFileExtension(file.getName()));
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			long length = channel.size();
+			List<ByteRange> requested = ByteRange.parse(headers.get(Known.RANGE), length);
+			if(requested == null)
+				return false;
+			if(requested.isEmpty())
 			{
-				if("closed".equalsIgnoreCase(closeValue))
-				{
-					closeRequired = true;
-					break;
-				}
+				unsatisfiableRanges.mark();
+				writeResultHeader(ps, 416, "Range Not Satisfiable", contentType, 0, HttpHeaders.CONTENT_RANGE + ": bytes */" + length);
+				return true;
 			}
-			if(closeRequired)
+			ranges.mark();
+			long sent = 0;
+			if(requested.size() == 1)
 			{
-				try
-				{
-					socket.close();
-				} 
-				catch (IOException e1) 
-				{
-					log.warn("Unable to close socket", e1);
-				}
+				ByteRange range = requested.get(0);
+				writeResultHeader(ps, 206, "Partial Content", contentType, range.getLength(), ObjectArrays.concat(
+						getFileHeaders(file, etag, false), HttpHeaders.CONTENT_RANGE + ": " + range.toContentRange(length)));
+				writeFileRegion(channel, range.getFirst(), range.getLength());
+				sent = range.getLength();
 			}
 			else
 			{
-				//reschedule this 
-				SocketRunner sr = socketRunnerSupplier.get();
-				sr.setBufferedReader(bufferedReader);
-				sr.setSocket(socket);
-				serverPool.execute(sr);
+				//the whole body is worked out up front, since it needs a Content-Length.
+				String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+				List<byte[]> partHeads = Lists.newArrayListWithCapacity(requested.size());
+				byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(Charsets.ISO_8859_1);
+				long bodyLength = end.length;
+				for(ByteRange range : requested)
+				{
+					byte[] partHead = ("\r\n--" + boundary + "\r\n" + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+							+ HttpHeaders.CONTENT_RANGE + ": " + range.toContentRange(length) + "\r\n\r\n").getBytes(Charsets.ISO_8859_1);
+					partHeads.add(partHead);
+					bodyLength += partHead.length + range.getLength();
+				}
+				writeResultHeader(ps, 206, "Partial Content", "multipart/byteranges; boundary=" + boundary, bodyLength, getFileHeaders(file, etag, false));
+				for(int j = 0; j < requested.size(); j++)
+				{
+					out.write(partHeads.get(j));
+					writeFileRegion(channel, requested.get(j).getFirst(), requested.get(j).getLength());
+					sent += requested.get(j).getLength();
+				}
+				out.write(end);
 			}
+			//overlapping ranges can add up to more than the file.
+			rangeBytesSaved.inc(Math.max(0, length - sent));
+			return true;
 		}
-		else
+	}
+
+	/**
+	 * @param validator an If-Range value, which is the entity tag or the Last-Modified date the client was given.
+	 */
+	private static boolean isCurrentVersion(String validator, File file, String etag)
+	{
+		//a strong comparison, so a weak tag never matches.
+		if(validator.startsWith("\"") || validator.startsWith("W/"))
+			return validator.equals(etag);
+		Long since = parseHttpDate(validator);
+		return since != null && since == file.lastModified() / 1000;
+	}
+
+	/**
+	 * If-None-Match wins over If-Modified-Since when there are both, as rfc 7232 has it.
+	 * @return true if the client's copy is the current one.
+	 */
+	private boolean isNotModified(File file, String etag)
+	{
+		if(headers.contains(Known.IF_NONE_MATCH))
 		{
-			try
-			{
-				socket.close();
-			} 
-			catch (IOException e1) 
+			if(etag == null)
+				return false;
+			for(String tag : headers.getAll(Known.IF_NONE_MATCH))
 			{
-				log.warn("Unable to close socket", e1);
+				//a weak comparison, so the W/ doesn't matter.
+				tag = tag.startsWith("W/") ? tag.substring(2) : tag;
+				if(tag.equals("*") || tag.equals(etag))
+					return true;
 			}
+			return false;
+		}
+		if(headers.contains(Known.IF_MODIFIED_SINCE))
+		{
+			Long since = parseHttpDate(headers.get(Known.IF_MODIFIED_SINCE));
+			return since != null && file.lastModified() / 1000 <= since;
 		}
+		return false;
 	}
-	
-	@Metered(name="responsecode.meter")
-	@Timed(name="responsecode.timed")
-	@ExceptionMetered(name="responsecode.exceptionmeter")
-	private void returnResponseCode(int responseCode, String httpMessage)
+
+	/**
+	 * @return the date in seconds since the epoch, or null if it isn't one.
+	 */
+	private static Long parseHttpDate(String date)
 	{
-		if(socket.isClosed())
-			return;
-		ps.println(httpRuri.getVersion() + " " + responseCode + " " + httpMessage);
-		ps.println(HttpHeaders.CONTENT_LENGTH + ": 0");
+		try
+		{
+			return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+		}
+		catch(DateTimeParseException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * The headers that go with every 200 or 206 for a file: Accept-Ranges or Content-Encoding, and the validators the
+	 * client can send back.
+	 * @param gzipped true if the file is the gzipped version of the one asked for.
+	 */
+	private String[] getFileHeaders(File file, String etag, boolean gzipped)
+	{
+		List<String> rv = Lists.newArrayListWithCapacity(4);
+		rv.add(gzipped ? CONTENT_ENCODING_GZIP : ACCEPT_RANGES);
+		addValidators(rv, file, etag, gzipped || isNegotiated(file));
+		return rv.toArray(new String[rv.size()]);
+	}
+
+	private static void addValidators(List<String> headers, File file, String etag, boolean vary)
+	{
+		if(vary)
+			headers.add(VARY_ACCEPT_ENCODING);
+		if(etag != null)
+			headers.add(HttpHeaders.ETAG + ": " + etag);
+		headers.add(HttpHeaders.LAST_MODIFIED + ": " + HTTP_DATE.format(Instant.ofEpochMilli(file.lastModified())));
+	}
+
+	/**
+	 * A 304 has no body, and carries the validators and Vary a 200 would have.
+	 */
+	private void writeNotModified(File file, String etag, boolean vary)
+	{
+		notModified.mark();
+		ps.println(httpRuri.getVersion() + " 304 Not Modified");
+		List<String> validators = Lists.newArrayListWithCapacity(3);
+		addValidators(validators, file, etag, vary);
+		for(String header : validators)
+			ps.println(header);
 		ps.println();
-		ps.flush();
+	}
+
+	/**
+	 * Sends count bytes of the file from position, and reads nothing else of it.
+	 */
+	private void writeFileRegion(FileChannel channel, long position, long count) throws IOException
+	{
+		//Note: A region that fits in the response buffer is copied, so it goes out in the same write as its headers, and
+		// as any pipelined responses around it. Bigger ones would take several writes through the heap either way.
+		if(count > config.getResponseBufferSize() && config.isSendfileEnabled() && connection.sendFile(channel, position, count))
+			return;
+		channel.position(position);
+		ByteStreams.copy(ByteStreams.limit(Channels.newInputStream(channel), count), out);
 	}
 }
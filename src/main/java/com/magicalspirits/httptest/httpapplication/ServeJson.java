@@ -0,0 +1,132 @@
+package com.magicalspirits.httptest.httpapplication;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import com.google.common.net.HttpHeaders;
+import com.google.inject.Inject;
+import com.magicalspirits.httptest.acceptor.HttpConnection.CloseReason;
+import com.magicalspirits.httptest.httpparser.RequestHeaders.Known;
+
+/**
+ * Answers a GET with a value serialized as json, made for each request. The metrics and monitoring pages are these.
+ * They are never inline, since they serialize the whole registry or run every health check.
+ */
+public abstract class ServeJson extends AbstractApplicationRunner
+{
+	private static final String SERVER_TIMING = "Server-Timing";
+
+	@Inject 
+	private ObjectMapper mapper;
+
+	@Inject
+	private CompressedVariants compressedVariants;
+
+	/**
+	 * @return the value to send, made for this request.
+	 */
+	protected abstract Object getValue();
+
+	@Override
+	public void run() 
+	{
+		try
+		{
+			openResponse();
+			if(!"GET".equalsIgnoreCase(httpRuri.getRequestType()))
+			{
+				returnResponseCode(405, "Method Not Allowed");
+				finish();
+				return;
+			}
+			writeJson(getValue());
+			finish();
+		}
+		catch(IOException ioe)
+		{
+			fail(ioe);
+		}
+	}
+
+	/**
+	 * Streams the value out as pretty printed json while it's serialized, gzipped if the client takes it. It's chunked,
+	 * since the length isn't known until it's done, so no more of the body than a chunk is ever held in memory, however
+	 * big it is. A client that sends TE: trailers is told how long it took in a Server-Timing trailer.
+	 */
+	private void writeJson(Object value) throws IOException
+	{
+		boolean gzip = compressedVariants.isAccepted(headers.getAll(Known.ACCEPT_ENCODING));
+		//HTTP/1.0 has no chunks, so the body ends when the connection does, which it does after a 1.0 response anyway.
+		boolean chunked = httpRuri.getVersion().equalsIgnoreCase("HTTP/1.1");
+		boolean trailers = chunked && headers.containsValue(Known.TE, "trailers");
+		List<String> responseHeaders = Lists.newArrayListWithCapacity(4);
+		if(chunked)
+			responseHeaders.add(HttpHeaders.TRANSFER_ENCODING + ": chunked");
+		if(gzip)
+			responseHeaders.add(CONTENT_ENCODING_GZIP);
+		responseHeaders.add(VARY_ACCEPT_ENCODING);
+		if(trailers)
+			responseHeaders.add(HttpHeaders.TRAILER + ": " + SERVER_TIMING);
+		ps.println(httpRuri.getVersion() + " 200 OK");
+		ps.println(HttpHeaders.CONTENT_TYPE + ": " + getMimeType("txt"));
+		for(String header : responseHeaders)
+			ps.println(header);
+		ps.println();
+
+		long start = System.nanoTime();
+		try
+		{
+			//Note: Room is left for the chunk's size and line ends, so each one fits in the response buffer and goes out in one write.
+			ChunkedOutputStream chunks = chunked ? new ChunkedOutputStream(out, Math.max(config.getResponseBufferSize() - 16, 256)) : null;
+			OutputStream body = chunked ? chunks : new NonClosingOutputStream(out);
+			if(gzip)
+				body = compressedVariants.compress(body);
+			try(JsonGenerator json = mapper.getFactory().createGenerator(body))
+			{
+				//the body is ended below, after the trailers are known. Flushing it along the way would only send a short chunk.
+				json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+				json.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+				json.useDefaultPrettyPrinter();
+				mapper.writeValue(json, value);
+			}
+			if(trailers)
+				chunks.addTrailer(SERVER_TIMING, "serialize;dur=" + String.format(Locale.US, "%.3f", (System.nanoTime() - start) / 1e6));
+			body.close();
+		}
+		catch(IOException | RuntimeException e)
+		{
+			//the headers are gone already, so a 500 is too late. Without its last chunk the client can tell the body is cut short.
+			connection.close(CloseReason.ERROR);
+			throw e;
+		}
+	}
+
+	/**
+	 * Keeps a body that's ended by closing it from closing the connection's stream as well.
+	 */
+	private static class NonClosingOutputStream extends FilterOutputStream
+	{
+		private NonClosingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			flush();
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.magicalspirits.httptest.httpapplication;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+
+/**
+ * The /metrics page, every metric in the registry.
+ */
+public class ServeMetrics extends ServeJson
+{
+	@Inject 
+	private MetricRegistry metricRegistry;
+
+	@Override
+	protected Object getValue()
+	{
+		return metricRegistry;
+	}
+}
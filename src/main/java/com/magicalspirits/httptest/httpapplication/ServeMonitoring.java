@@ -0,0 +1,24 @@
+package com.magicalspirits.httptest.httpapplication;
+
+import java.util.concurrent.ExecutorService;
+
+import com.codahale.metrics.health.HealthCheckRegistry;
+import com.google.inject.Inject;
+
+/**
+ * The /monitoring page, the results of every health check, run for each request.
+ */
+public class ServeMonitoring extends ServeJson
+{
+	@Inject
+	private HealthCheckRegistry healthRegistry;
+
+	@Inject
+	private ExecutorService defaultPool;
+
+	@Override
+	protected Object getValue()
+	{
+		return healthRegistry.runHealthChecks(defaultPool);
+	}
+}
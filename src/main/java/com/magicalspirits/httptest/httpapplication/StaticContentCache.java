@@ -0,0 +1,138 @@
+package com.magicalspirits.httptest.httpapplication;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+import lombok.RequiredArgsConstructor;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+
+/**
+ * Whole responses for small, often asked for files, status line and headers included, each in a direct buffer
+ * that goes to the socket as it is. A hit costs a stat of the file and a write, where a miss opens the file, reads it,
+ * looks its mime type up and formats the headers again.
+ *
+ * The cache is bounded by the bytes it holds, and the least recently used entries go first. An entry is thrown
+ * away when the file's modification time or length no longer match what was read, so an edited or uploaded file
+ * is served fresh on its next request. So is one cached before its entity tag was known, once it is.
+ *
+ * Note: The buffers are direct, so the jvm's -XX:MaxDirectMemorySize has to leave room for httptest.cache.max.bytes.
+ * An evicted buffer's memory goes back once it's collected.
+ */
+@Singleton
+public class StaticContentCache
+{
+	private final long maxBytes;
+
+	private final int maxEntryBytes;
+
+	private final Cache<String, Entry> entries;
+
+	private final LongAdder bytes = new LongAdder();
+
+	private final Meter hits;
+
+	private final Meter misses;
+
+	private final Meter evictions;
+
+	private final Meter invalidations;
+
+	@Inject
+	public StaticContentCache(MetricRegistry registry, ServerConfig config)
+	{
+		maxBytes = config.getCacheMaxBytes();
+		maxEntryBytes = config.getCacheMaxEntryBytes();
+		hits = registry.meter(MetricRegistry.name(StaticContentCache.class, "hits"));
+		misses = registry.meter(MetricRegistry.name(StaticContentCache.class, "misses"));
+		evictions = registry.meter(MetricRegistry.name(StaticContentCache.class, "evictions"));
+		invalidations = registry.meter(MetricRegistry.name(StaticContentCache.class, "invalidations"));
+		entries = CacheBuilder.newBuilder()
+				.maximumWeight(Math.max(maxBytes, 1))
+				.<String, Entry>weigher((key, entry) -> entry.response.capacity())
+				.<String, Entry>removalListener(removal ->
+				{
+					bytes.add(-removal.getValue().response.capacity());
+					if(removal.wasEvicted())
+						evictions.mark();
+				})
+				.build();
+		MetricsModule.replace(registry, StaticContentCache.class, "bytes", (Gauge<Long>) () -> bytes.sum());
+		MetricsModule.replace(registry, StaticContentCache.class, "entries", (Gauge<Long>) () -> entries.size());
+	}
+
+	/**
+	 * The whole response for the file, read in and cached if it wasn't already.
+	 * @param key what the response is cached under. The same file answered in different ways needs different keys.
+	 * @param etag the file's entity tag as the headers will have it, or null if it has none yet.
+	 * @param head encodes the status line and headers for a body of the given length.
+	 * @return a buffer of its own positioned at the start of the response, or null if the file is too big or the
+	 * cache is off, in which case the caller sends it some other way.
+	 */
+	public ByteBuffer get(String key, File file, String etag, LongFunction<byte[]> head) throws IOException
+	{
+		if(maxBytes <= 0)
+			return null;
+		//looked at on every hit, which is what catches a changed file.
+		long lastModified = file.lastModified();
+		long length = file.length();
+		Entry entry = entries.getIfPresent(key);
+		if(entry != null)
+		{
+			if(entry.lastModified == lastModified && entry.length == length && Objects.equals(entry.etag, etag))
+			{
+				hits.mark();
+				return entry.response.duplicate();
+			}
+			invalidations.mark();
+			entries.invalidate(key);
+		}
+		if(length > maxEntryBytes)
+			return null;
+
+		misses.mark();
+		byte[] encodedHead = head.apply(length);
+		ByteBuffer response = ByteBuffer.allocateDirect(encodedHead.length + (int)length);
+		response.put(encodedHead);
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			while(response.hasRemaining())
+			{
+				//it got shorter since the stat. Serve it without caching, and let the caller look again.
+				if(channel.read(response) < 0)
+					return null;
+			}
+		}
+		response.flip();
+		entry = new Entry(lastModified, length, etag, response.asReadOnlyBuffer());
+		bytes.add(response.capacity());
+		entries.put(key, entry);
+		return entry.response.duplicate();
+	}
+
+	@RequiredArgsConstructor
+	private static class Entry
+	{
+		private final long lastModified;
+
+		private final long length;
+
+		private final String etag;
+
+		private final ByteBuffer response;
+	}
+}
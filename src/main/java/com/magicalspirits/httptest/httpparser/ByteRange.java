@@ -0,0 +1,85 @@
+package com.magicalspirits.httptest.httpparser;
+
+import java.util.List;
+
+import lombok.Value;
+
+import com.google.common.collect.Lists;
+
+/**
+ * One satisfiable range of a Range: bytes=... header, already fitted to the length of what's being sent.
+ */
+@Value
+public class ByteRange
+{
+	/**
+	 * More than this many ranges is more likely to be abuse than a download manager, so the header is ignored.
+	 */
+	public static final int MAX_RANGES = 16;
+
+	private static final String BYTES = "bytes=";
+
+	private long first;
+
+	private long last;
+
+	public long getLength()
+	{
+		return last - first + 1;
+	}
+
+	/**
+	 * @return the value of the Content-Range header for this range.
+	 */
+	public String toContentRange(long completeLength)
+	{
+		return "bytes " + first + "-" + last + "/" + completeLength;
+	}
+
+	/**
+	 * Parses a Range header against a representation of the given length, per rfc 7233.
+	 * @return the satisfiable ranges in the order they were asked for, an empty list if none of them can be
+	 * satisfied (a 416), or null if the header should be ignored and the whole thing sent: it isn't in bytes, a range
+	 * doesn't parse, or there are too many of them.
+	 */
+	public static List<ByteRange> parse(String header, long length)
+	{
+		if(header == null || !header.regionMatches(true, 0, BYTES, 0, BYTES.length()))
+			return null;
+		String[] specs = header.substring(BYTES.length()).split(",");
+		if(specs.length > MAX_RANGES)
+			return null;
+		List<ByteRange> rv = Lists.newArrayListWithCapacity(specs.length);
+		for(String spec : specs)
+		{
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if(dash < 0)
+				return null;
+			try
+			{
+				if(dash == 0)
+				{
+					//the last n bytes.
+					long suffix = Long.parseLong(spec.substring(1));
+					if(suffix < 0)
+						return null;
+					if(suffix > 0 && length > 0)
+						rv.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+					continue;
+				}
+				long first = Long.parseLong(spec.substring(0, dash));
+				long last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+				if(first < 0 || last < first)
+					return null;
+				if(first < length)
+					rv.add(new ByteRange(first, Math.min(last, length - 1)));
+			}
+			catch(NumberFormatException e)
+			{
+				return null;
+			}
+		}
+		return rv;
+	}
+}
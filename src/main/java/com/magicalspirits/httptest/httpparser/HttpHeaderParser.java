@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Supplier;
 
 import lombok.Setter;
@@ -12,12 +13,13 @@ import lombok.extern.slf4j.Slf4j;
 import com.codahale.metrics.annotation.ExceptionMetered;
 import com.codahale.metrics.annotation.Metered;
 import com.codahale.metrics.annotation.Timed;
-import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
 import com.google.inject.Inject;
+import com.magicalspirits.httptest.acceptor.HttpConnection;
+import com.magicalspirits.httptest.acceptor.HttpConnection.CloseReason;
+import com.magicalspirits.httptest.acceptor.LoadShedder;
 import com.magicalspirits.httptest.acceptor.SocketRunner;
+import com.magicalspirits.httptest.httpapplication.AdaptiveConcurrencyLimiter;
 import com.magicalspirits.httptest.httpapplication.ApplicationRunner;
 
 @Slf4j
@@ -30,16 +32,19 @@ public class HttpHeaderParser implements SocketRunner
 	private Socket socket;
 
 	@Setter(onMethod=@__(@Override))
-	private BufferedReader bufferedReader;
+	private HttpConnection connection;
 	
 	@Setter
 	private HttpRuriData httpRuri;
 
-	//rfc2616 says that commas split header fields into multiple values
-	private Splitter commaSplitter = Splitter.on(",");
-	
 	@Inject
 	private Supplier<ApplicationRunner> applicationRunnerSuppler;
+
+	@Inject
+	private LoadShedder loadShedder;
+
+	@Inject
+	private AdaptiveConcurrencyLimiter limiter;
 	
 	@Override
 	@Metered(name="run.meter")
@@ -47,9 +52,11 @@ public class HttpHeaderParser implements SocketRunner
 	@ExceptionMetered(name="run.exceptionmeter")
 	public void run() 
 	{
-		ArrayListMultimap<String, String> httpHeaders = ArrayListMultimap.create();
+		RequestHeaders httpHeaders = connection.getRequestHeaders();
+		httpHeaders.clear();
 		try
 		{
+			BufferedReader bufferedReader = connection.getBufferedReader();
 			for(String header = bufferedReader.readLine(); !Strings.isNullOrEmpty(header); header = bufferedReader.readLine())
 			{
 				parseHeader(header, httpHeaders);
@@ -57,30 +64,44 @@ public class HttpHeaderParser implements SocketRunner
 		}
 		catch(IOException ioe)
 		{
-			try
-			{
-				socket.close();
-			}
-			catch(IOException e2)
-			{
-				log.debug("Unable to close socket inside failure case", e2);
-			}
-
+			connection.close(CloseReason.ERROR);
 			throw new RuntimeException(ioe);
 		}
 		
-		ApplicationRunner runner = applicationRunnerSuppler.get();
+		RequestBody requestBody = connection.getRequestBody();
+		//the reader has already taken some of any body as characters, so there's no getting it back as bytes.
+		if(!requestBody.begin(httpHeaders, httpRuri.getVersion()) || requestBody.isPresent())
+			requestBody.beginUnreadable();
+
+		ApplicationRunner runner = connection.getStage(ApplicationRunner.class, applicationRunnerSuppler);
 		runner.setSocket(socket);
-		runner.setBufferedReader(bufferedReader);
+		runner.setConnection(connection);
 		runner.setHttpRuri(httpRuri);
 		runner.setHeaders(httpHeaders);
-		defaultPool.execute(runner);
+		runner.setRequestBody(requestBody);
+		Runnable limited = limiter.acquire(runner);
+		if(limited == null)
+		{
+			//the application stage is already slowing down under what it has. Turn this one away before it queues.
+			loadShedder.shed(connection);
+			return;
+		}
+		try
+		{
+			connection.getPoolOr(defaultPool).execute(limited);
+		}
+		catch(RejectedExecutionException ree)
+		{
+			//the application pool is full. Tell the client to come back later rather than queue up behind everyone else.
+			limiter.abandon(limited);
+			loadShedder.shed(connection);
+		}
 	}
 	
 	@Metered(name="parse.meter")
 	@Timed(name="parse.timed")
 	@ExceptionMetered(name="parse.exceptionmeter")
-	private void parseHeader(String header, Multimap<String, String> httpHeaders)
+	private void parseHeader(String header, RequestHeaders httpHeaders)
 	{
 		int indexOfColon = header.indexOf(":");
 		if(indexOfColon == -1)
@@ -92,6 +113,7 @@ public class HttpHeaderParser implements SocketRunner
 			value = header.substring(indexOfColon + 1).trim();
 		else
 			value = "";
-		httpHeaders.get(key).addAll(commaSplitter.splitToList(value));
+		//rfc2616 says that commas split header fields into multiple values. The store splits them when they're read.
+		httpHeaders.add(key, value);
 	}
 }
@@ -0,0 +1,444 @@
+package com.magicalspirits.httptest.httpparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Decodes an HTTP/1.x request head straight from bytes. There is one of these per connection, and it owns the
+ * connection's read buffer, so nothing is allocated per request unless a request has more headers than any
+ * before it on the connection.
+ *
+ * Decoding is a state machine that picks up where it left off, so a head can arrive over any number of reads.
+ * Nothing is copied out while decoding. The request line and header lines are kept as offsets into the buffer,
+ * and only turned into Strings when someone asks for them.
+ *
+ * Anything read past the end of the head stays in the buffer for the next request.
+ */
+public class HttpRequestDecoder
+{
+	public static enum Result
+	{
+		/**
+		 * Needs more bytes, call readFrom and decode again.
+		 */
+		INCOMPLETE,
+		/**
+		 * The whole head is in, the accessors can be used.
+		 */
+		COMPLETE,
+		/**
+		 * Not a request we can read.
+		 */
+		INVALID
+	}
+
+	private static enum State
+	{
+		START, METHOD, URI, VERSION, LINE_START, NAME, VALUE_START, VALUE, COMPLETE, INVALID
+	}
+
+	//The common ones come back as constants rather than new Strings.
+	private static final String[] KNOWN_METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "TRACE", "CONNECT"};
+	private static final String[] KNOWN_VERSIONS = {"HTTP/1.1", "HTTP/1.0"};
+
+	private static final int NAME_START = 0;
+	private static final int NAME_END = 1;
+	private static final int VALUE_START = 2;
+	private static final int VALUE_END = 3;
+	private static final int OFFSETS_PER_HEADER = 4;
+
+	private final byte[] buffer;
+
+	private final int maxEmptyLines;
+
+	//first byte of the current request, next byte to decode, end of what has been read.
+	private int start;
+	private int position;
+	private int limit;
+
+	private State state = State.START;
+
+	private int emptyLines;
+
+	private int methodStart;
+	private int methodEnd;
+	private int uriStart;
+	private int uriEnd;
+	private int versionStart;
+	private int versionEnd;
+
+	//name start, name end, value start and value end for each header, in order.
+	private int[] headers = new int[OFFSETS_PER_HEADER * 16];
+	private int headerCount;
+	private int tokenStart;
+	private int tokenEnd;
+	private int valueStart;
+
+	//only used when the uri has escapes in it.
+	private byte[] scratch;
+
+	public HttpRequestDecoder(int bufferSize, int maxEmptyLines)
+	{
+		this.buffer = new byte[bufferSize];
+		this.maxEmptyLines = maxEmptyLines;
+	}
+
+	/**
+	 * Get ready to decode the next request, keeping anything already read past the last one.
+	 */
+	public void nextRequest()
+	{
+		start = position;
+		if(start == limit)
+			start = position = limit = 0; //nothing left over, so there's nothing to move when the buffer fills.
+		state = State.START;
+		emptyLines = 0;
+		headerCount = 0;
+	}
+
+	/**
+	 * @return true if there are bytes in the buffer past the current request.
+	 */
+	public boolean hasRemaining()
+	{
+		return position < limit;
+	}
+
+	/**
+	 * Does one read from the stream into the free end of the buffer.
+	 * @return the number of bytes read, -1 at the end of the stream, or 0 if the head has filled the whole buffer.
+	 */
+	public int readFrom(InputStream in) throws IOException
+	{
+		if(limit == buffer.length && start > 0)
+			compact();
+		if(limit == buffer.length)
+			return 0;
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if(read > 0)
+			limit += read;
+		return read;
+	}
+
+	/**
+	 * @return how many bytes past the current request are in the buffer.
+	 */
+	public int getRemaining()
+	{
+		return limit - position;
+	}
+
+	/**
+	 * Takes bytes past the head for the request body. Once the body is being read, the head accessors can't be used.
+	 * @return the number of bytes copied, which is 0 if there are none in the buffer.
+	 */
+	public int readBody(byte[] b, int off, int len)
+	{
+		int rv = Math.min(len, limit - position);
+		System.arraycopy(buffer, position, b, off, rv);
+		position += rv;
+		return rv;
+	}
+
+	/**
+	 * @return the next byte past the head, or -1 if there are none in the buffer.
+	 */
+	public int readBodyByte()
+	{
+		if(position == limit)
+			return -1;
+		return buffer[position++] & 0xFF;
+	}
+
+	/**
+	 * Reads more of the request body into the buffer, once readBody has taken everything that was in it. The body
+	 * can be as big as it likes, the buffer just starts over from the front each time it empties.
+	 * @return the number of bytes read, or -1 at the end of the stream.
+	 */
+	public int readBodyFrom(InputStream in) throws IOException
+	{
+		if(position == limit)
+			start = position = limit = 0;
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if(read > 0)
+			limit += read;
+		return read;
+	}
+
+	private void compact()
+	{
+		int delta = start;
+		System.arraycopy(buffer, start, buffer, 0, limit - start);
+		start = 0;
+		position -= delta;
+		limit -= delta;
+		methodStart -= delta;
+		methodEnd -= delta;
+		uriStart -= delta;
+		uriEnd -= delta;
+		versionStart -= delta;
+		versionEnd -= delta;
+		tokenStart -= delta;
+		tokenEnd -= delta;
+		valueStart -= delta;
+		for(int i = 0; i < headerCount * OFFSETS_PER_HEADER; i++)
+			headers[i] -= delta;
+	}
+
+	/**
+	 * Decodes as far as the bytes read so far allow.
+	 */
+	public Result decode()
+	{
+		byte[] b = buffer;
+		for(; position < limit && state != State.COMPLETE && state != State.INVALID; position++)
+		{
+			byte c = b[position];
+			switch(state)
+			{
+				case START:
+					//some clients are sloppy, especially with http 1.1 handling.
+					//We'll give them a little leeway with empty lines at the beginning.
+					if(c == '\n')
+					{
+						if(++emptyLines >= maxEmptyLines)
+							state = State.INVALID;
+					}
+					else if(c != '\r')
+					{
+						methodStart = position;
+						state = State.METHOD;
+					}
+					break;
+				case METHOD:
+					//from RFC 2616: The elements are separated by SP characters. No CR or LF is allowed except in the final CRLF sequence.
+					if(c == ' ')
+					{
+						methodEnd = position;
+						uriStart = position + 1;
+						state = State.URI;
+					}
+					else if(c == '\r' || c == '\n')
+						state = State.INVALID;
+					break;
+				case URI:
+					if(c == ' ')
+					{
+						uriEnd = position;
+						versionStart = position + 1;
+						state = State.VERSION;
+					}
+					else if(c == '\r' || c == '\n')
+						state = State.INVALID;
+					break;
+				case VERSION:
+					if(c == '\n')
+					{
+						versionEnd = trimEnd(versionStart, position);
+						state = versionEnd > versionStart && methodEnd > methodStart && uriEnd > uriStart ? State.LINE_START : State.INVALID;
+					}
+					else if(c == ' ')
+						state = State.INVALID;
+					break;
+				case LINE_START:
+					if(c == '\n')
+						state = State.COMPLETE; //the empty line that ends the head
+					else if(c != '\r')
+					{
+						tokenStart = position;
+						state = State.NAME;
+					}
+					break;
+				case NAME:
+					if(c == ':')
+					{
+						tokenEnd = trimEnd(tokenStart, position);
+						state = State.VALUE_START;
+					}
+					else if(c == '\n')
+					{
+						//no colon, keep the whole line as the name.
+						addHeader(tokenStart, trimEnd(tokenStart, position), position, position);
+						state = State.LINE_START;
+					}
+					break;
+				case VALUE_START:
+					if(c == '\n')
+					{
+						addHeader(tokenStart, tokenEnd, position, position);
+						state = State.LINE_START;
+					}
+					else if(c != ' ' && c != '\t' && c != '\r')
+					{
+						valueStart = position;
+						state = State.VALUE;
+					}
+					break;
+				case VALUE:
+					if(c == '\n')
+					{
+						addHeader(tokenStart, tokenEnd, valueStart, trimEnd(valueStart, position));
+						state = State.LINE_START;
+					}
+					break;
+				default:
+					break;
+			}
+		}
+		if(state == State.COMPLETE)
+			return Result.COMPLETE;
+		if(state == State.INVALID)
+			return Result.INVALID;
+		return Result.INCOMPLETE;
+	}
+
+	private int trimEnd(int from, int end)
+	{
+		while(end > from && (buffer[end - 1] == ' ' || buffer[end - 1] == '\t' || buffer[end - 1] == '\r'))
+			end--;
+		return end;
+	}
+
+	private void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd)
+	{
+		int offset = headerCount * OFFSETS_PER_HEADER;
+		if(offset == headers.length)
+			headers = Arrays.copyOf(headers, headers.length * 2);
+		headers[offset + NAME_START] = nameStart;
+		headers[offset + NAME_END] = nameEnd;
+		headers[offset + VALUE_START] = valueStart;
+		headers[offset + VALUE_END] = valueEnd;
+		headerCount++;
+	}
+
+	public String getMethod()
+	{
+		return toString(methodStart, methodEnd, KNOWN_METHODS);
+	}
+
+	public String getVersion()
+	{
+		return toString(versionStart, versionEnd, KNOWN_VERSIONS);
+	}
+
+	/**
+	 * The request uri with %xx and + decoded, the same way URLDecoder does it for ISO 8859-1.
+	 * @throws IllegalArgumentException if an escape is broken.
+	 */
+	public String getUri()
+	{
+		int escape = uriStart;
+		while(escape < uriEnd && buffer[escape] != '%' && buffer[escape] != '+')
+			escape++;
+		if(escape == uriEnd)
+			return new String(buffer, uriStart, uriEnd - uriStart, Charsets.ISO_8859_1);
+
+		if(scratch == null)
+			scratch = new byte[buffer.length];
+		int length = 0;
+		for(int i = uriStart; i < uriEnd; i++)
+		{
+			byte c = buffer[i];
+			if(c == '+')
+				c = ' ';
+			else if(c == '%')
+			{
+				int high = i + 2 < uriEnd ? Character.digit(buffer[i + 1], 16) : -1;
+				int low = high >= 0 ? Character.digit(buffer[i + 2], 16) : -1;
+				if(low < 0)
+					throw new IllegalArgumentException("Broken escape in request uri at " + (i - uriStart));
+				c = (byte)((high << 4) + low);
+				i += 2;
+			}
+			scratch[length++] = c;
+		}
+		return new String(scratch, 0, length, Charsets.ISO_8859_1);
+	}
+
+	public int getHeaderCount()
+	{
+		return headerCount;
+	}
+
+	public String getHeaderName(int index)
+	{
+		int offset = index * OFFSETS_PER_HEADER;
+		return new String(buffer, headers[offset + NAME_START], headers[offset + NAME_END] - headers[offset + NAME_START], Charsets.ISO_8859_1);
+	}
+
+	public String getHeaderValue(int index)
+	{
+		int offset = index * OFFSETS_PER_HEADER;
+		return new String(buffer, headers[offset + VALUE_START], headers[offset + VALUE_END] - headers[offset + VALUE_START], Charsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return the value of the first header with this name, ignoring case, or null if there isn't one.
+	 */
+	public String getHeaderValue(String name)
+	{
+		for(int i = 0; i < headerCount; i++)
+		{
+			int offset = i * OFFSETS_PER_HEADER;
+			if(equalsIgnoreCase(headers[offset + NAME_START], headers[offset + NAME_END], name))
+				return getHeaderValue(i);
+		}
+		return null;
+	}
+
+	/**
+	 * Copies every header into the store as bytes. Nothing is split or turned into a String.
+	 */
+	public void copyHeadersTo(RequestHeaders into)
+	{
+		for(int i = 0; i < headerCount; i++)
+		{
+			int offset = i * OFFSETS_PER_HEADER;
+			into.add(buffer, headers[offset + NAME_START], headers[offset + NAME_END], headers[offset + VALUE_START], headers[offset + VALUE_END]);
+		}
+	}
+
+	private String toString(int from, int end, String[] known)
+	{
+		for(String candidate : known)
+		{
+			if(equals(from, end, candidate))
+				return candidate;
+		}
+		return new String(buffer, from, end - from, Charsets.ISO_8859_1);
+	}
+
+	private boolean equals(int from, int end, String value)
+	{
+		if(end - from != value.length())
+			return false;
+		for(int i = 0; i < value.length(); i++)
+		{
+			if((buffer[from + i] & 0xFF) != value.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean equalsIgnoreCase(int from, int end, String value)
+	{
+		if(end - from != value.length())
+			return false;
+		for(int i = 0; i < value.length(); i++)
+		{
+			int c = buffer[from + i] & 0xFF;
+			int v = value.charAt(i);
+			if(c != v && toLowerCase(c) != toLowerCase(v))
+				return false;
+		}
+		return true;
+	}
+
+	private static int toLowerCase(int c)
+	{
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+}
@@ -0,0 +1,233 @@
+package com.magicalspirits.httptest.httpparser;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.codahale.metrics.annotation.ExceptionMetered;
+import com.codahale.metrics.annotation.Metered;
+import com.codahale.metrics.annotation.Timed;
+import com.google.inject.Inject;
+import com.magicalspirits.httptest.acceptor.HttpConnection;
+import com.magicalspirits.httptest.acceptor.HttpConnection.CloseReason;
+import com.magicalspirits.httptest.acceptor.IdleConnectionParker;
+import com.magicalspirits.httptest.acceptor.LoadShedder;
+import com.magicalspirits.httptest.acceptor.SocketRunner;
+import com.magicalspirits.httptest.httpapplication.AdaptiveConcurrencyLimiter;
+import com.magicalspirits.httptest.httpapplication.ApplicationRunner;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+
+/**
+ * Reads the whole request head in one stage, straight from the socket into the connection's {@link HttpRequestDecoder},
+ * and hands the request to the application. This replaces the {@link HttpRuriParser} to {@link HttpHeaderParser} pair,
+ * which decode through a reader and build Strings for every line. Those are still around to compare against.
+ *
+ * Requests the application says are cheap are run right here, parse to response on one thread. Everything else goes
+ * to the application pool, so slow or blocking work doesn't tie up the server pool.
+ *
+ * When the client pipelines, the requests it has already sent are worked through in order on this thread, as long as
+ * they run inline, and their responses are only flushed once the next request would mean waiting on the client.
+ */
+@Slf4j
+public class HttpRequestParser implements SocketRunner
+{
+	@Setter(onMethod=@__(@Override))
+	private Socket socket;
+
+	@Setter(onMethod=@__(@Override))
+	private HttpConnection connection;
+
+	@Inject
+	private ExecutorService defaultPool;
+
+	@Inject
+	private Supplier<ApplicationRunner> applicationRunnerSuppler;
+
+	@Inject
+	private LoadShedder loadShedder;
+
+	@Inject
+	private IdleConnectionParker idleConnectionParker;
+
+	@Inject
+	private AdaptiveConcurrencyLimiter limiter;
+
+	@Inject
+	private ServerConfig config;
+
+	@Override
+	@Metered(name="run.meter")
+	@Timed(name="run.timed")
+	@ExceptionMetered(name="run.exceptionmeter")
+	public void run()
+	{
+		HttpRequestDecoder decoder = connection.getRequestDecoder();
+		if(decoder == null)
+		{
+			decoder = new HttpRequestDecoder(config.getRequestBufferSize(), config.getMaxEmptyLinesBeforeRuri());
+			connection.setRequestDecoder(decoder);
+		}
+		//pipelined requests behind one that ran inline come back round here rather than through the pool.
+		while(nextRequest(decoder))
+			pipelined();
+	}
+
+	/**
+	 * Reads, parses and dispatches one request.
+	 * @return true if the request ran inline and the client had already sent the next one.
+	 */
+	private boolean nextRequest(HttpRequestDecoder decoder)
+	{
+		decoder.nextRequest();
+		try
+		{
+			for(HttpRequestDecoder.Result result = decoder.decode(); result != HttpRequestDecoder.Result.COMPLETE; result = decoder.decode())
+			{
+				if(result == HttpRequestDecoder.Result.INVALID)
+				{
+					log.info("Unreadable request head from {}, request will not be processed", socket);
+					connection.close(CloseReason.ERROR); //not http, just close it.
+					return false;
+				}
+				//responses held back for pipelining have to go out before waiting on the client, it may be waiting on them.
+				connection.flushResponse();
+				int read = decoder.readFrom(connection.getInputStream());
+				if(read < 0)
+				{
+					log.debug("Connection closed on {} before a complete request", socket);
+					connection.close(CloseReason.CLIENT_CLOSE);
+					return false;
+				}
+				if(read == 0)
+				{
+					log.info("Request head from {} doesn't fit in {} bytes, request will not be processed", socket, config.getRequestBufferSize());
+					connection.close(CloseReason.ERROR);
+					return false;
+				}
+			}
+		}
+		catch(SocketTimeoutException ste)
+		{
+			timeout();
+			connection.close(CloseReason.TIMEOUT);
+			return false;
+		}
+		catch(IOException e)
+		{
+			log.warn("Unable to read request for {}", socket, e);
+			connection.close(CloseReason.ERROR); //Unable to read. is it http? who knows, just close it.
+			return false;
+		}
+		connection.requestStarted();
+
+		HttpRuriData data;
+		try
+		{
+			data = new HttpRuriData(decoder.getMethod(), decoder.getUri(), decoder.getVersion());
+		}
+		catch(IllegalArgumentException e)
+		{
+			log.info("Bad escape in request uri from {}, request will not be processed", socket);
+			connection.close(CloseReason.ERROR);
+			return false;
+		}
+		RequestHeaders httpHeaders = connection.getRequestHeaders();
+		httpHeaders.clear();
+		decoder.copyHeadersTo(httpHeaders);
+		RequestBody requestBody = connection.getRequestBody();
+		if(!requestBody.begin(httpHeaders, data.getVersion()))
+		{
+			log.info("Unreadable request body framing from {}, request will not be processed", socket);
+			connection.close(CloseReason.ERROR);
+			return false;
+		}
+
+		ApplicationRunner runner = connection.getStage(ApplicationRunner.class, applicationRunnerSuppler);
+		runner.setSocket(socket);
+		runner.setConnection(connection);
+		runner.setHttpRuri(data);
+		runner.setHeaders(httpHeaders);
+		runner.setRequestBody(requestBody);
+		Runnable limited = limiter.acquire(runner);
+		if(limited == null)
+		{
+			//the application stage is already slowing down under what it has. Turn this one away before it queues.
+			loadShedder.shed(connection);
+			return false;
+		}
+		if(config.isInlineEnabled() && runner.isInline())
+		{
+			//cheap enough that handing it to the other pool would cost more than running it.
+			connection.startInline();
+			boolean keepAlive;
+			try
+			{
+				runInline(limited);
+			}
+			finally
+			{
+				keepAlive = connection.finishInline();
+			}
+			return keepAlive && parkInline();
+		}
+		try
+		{
+			connection.getPoolOr(defaultPool).execute(limited);
+		}
+		catch(RejectedExecutionException ree)
+		{
+			//the application pool is full. Tell the client to come back later rather than queue up behind everyone else.
+			limiter.abandon(limited);
+			loadShedder.shed(connection);
+		}
+		return false;
+	}
+
+	/**
+	 * Parks a connection whose request ran inline, now that it's back in this thread's hands.
+	 * @return true if the client has already sent the next request, and this parser should carry on with it.
+	 */
+	private boolean parkInline()
+	{
+		try
+		{
+			//a pipelined request behind one that ran inline is picked up by the same parser, without a trip through the pool.
+			if(config.isPipeliningEnabled() && connection.hasBufferedInput())
+				return true;
+		}
+		catch(IOException e)
+		{
+			log.debug("Unable to check for a pipelined request on {}", socket, e);
+			connection.close(CloseReason.ERROR);
+			return false;
+		}
+		idleConnectionParker.park(connection);
+		return false;
+	}
+
+	@Metered(name="inline.meter")
+	protected void runInline(Runnable runner)
+	{
+		//Separate method to count the requests that never left this thread
+		runner.run();
+	}
+
+	@Metered(name="pipelined.meter")
+	protected void pipelined()
+	{
+		//Separate method to count the requests picked up straight after the one before them
+	}
+
+	@Metered
+	protected void timeout()
+	{
+		//Separate method to take advantage of a meter on this method
+		log.warn("Timeout reading request for {}", socket);
+	}
+}
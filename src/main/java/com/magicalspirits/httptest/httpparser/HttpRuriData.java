@@ -8,4 +8,12 @@ public class HttpRuriData
 	private String requestType;
 	private String ruriPath;
 	private String version;
+
+	/**
+	 * @return false for a path that doesn't start with /, or that climbs out of wherever it's served from with /..
+	 */
+	public boolean isSafePath()
+	{
+		return ruriPath.startsWith("/") && !ruriPath.contains("/..");
+	}
 }
@@ -1,12 +1,12 @@
 package com.magicalspirits.httptest.httpparser;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Supplier;
 
 import lombok.Setter;
@@ -19,8 +19,12 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
+import com.magicalspirits.httptest.acceptor.HttpConnection;
+import com.magicalspirits.httptest.acceptor.HttpConnection.CloseReason;
+import com.magicalspirits.httptest.acceptor.LoadShedder;
 import com.magicalspirits.httptest.acceptor.SocketRunner;
 import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
 
 @Slf4j
 public class HttpRuriParser implements SocketRunner
@@ -30,7 +34,7 @@ public class HttpRuriParser implements SocketRunner
 	private Socket socket;
 
 	@Setter(onMethod=@__(@Override))
-	private BufferedReader bufferedReader;
+	private HttpConnection connection;
 	
 	@Inject
 	@Named(ExecutorsModule.HTTP_SERVER_POOL)
@@ -40,8 +44,12 @@ public class HttpRuriParser implements SocketRunner
 	
 	@Inject
 	private Supplier<HttpHeaderParser> httpHeaderParserSupplier;
-	
-	private static final int MAX_EMPTY_LINES_BEFORE_RURI = 10;
+
+	@Inject
+	private LoadShedder loadShedder;
+
+	@Inject
+	private ServerConfig config;
 	
 	@Override
 	@Metered(name="run.meter")
@@ -54,14 +62,17 @@ public class HttpRuriParser implements SocketRunner
 			String rUriLine = "";
 			try 
 			{
+				//a line reader can't tell if the next readLine will block, so anything held back for pipelining goes out first.
+				connection.flushResponse();
 				//some clients are sloppy, especially with http 1.1 handling.
 				//We'll give them a little leeway with empty lines at the beginning.
-				for(int i = 0; i < MAX_EMPTY_LINES_BEFORE_RURI && "".equals(rUriLine); i++)
+				for(int i = 0; i < config.getMaxEmptyLinesBeforeRuri() && "".equals(rUriLine); i++)
 				{
-					rUriLine = bufferedReader.readLine();
+					rUriLine = connection.getBufferedReader().readLine();
 					if(rUriLine == null)
 					{
 						log.warn("Connection closed on {} before initial request", socket);
+						connection.close(CloseReason.CLIENT_CLOSE);
 						return;
 					}
 				}
@@ -69,19 +80,19 @@ public class HttpRuriParser implements SocketRunner
 			catch(SocketTimeoutException ste)
 			{
 				timeout();
-				socket.close();
+				connection.close(CloseReason.TIMEOUT);
 				return;
 			}
 			catch (IOException e) 
 			{
 				log.warn("Unable to read ruri line for {}", socket, e);
-				socket.close(); //Unable to read. is it http? who knows, just close it.
+				connection.close(CloseReason.ERROR); //Unable to read. is it http? who knows, just close it.
 				return;
 			}
 			if("".equals(rUriLine))
 			{
 				log.info("Initial line empty for {} request will not be processed", socket);
-				socket.close(); //not http, just close it.
+				connection.close(CloseReason.ERROR); //not http, just close it.
 				return;
 			}
 			//from RFC 2616:
@@ -94,10 +105,11 @@ public class HttpRuriParser implements SocketRunner
 			if(header.size() != 3)
 			{
 				log.info("Initial line incorrect length {} for {} request will not be processed", header, socket);
-				socket.close(); //not http, just close it.
+				connection.close(CloseReason.ERROR); //not http, just close it.
 			}
 
 			//This is http.
+			connection.requestStarted();
 
 			//use java built in url decoder to decode %xx and +
 			HttpRuriData data = new HttpRuriData(
@@ -105,23 +117,23 @@ public class HttpRuriParser implements SocketRunner
 							header.get(1), Charsets.ISO_8859_1.name()), 
 					header.get(2));
 			
-			HttpHeaderParser parser =  httpHeaderParserSupplier.get();
-			parser.setBufferedReader(bufferedReader);
+			HttpHeaderParser parser = connection.getStage(HttpHeaderParser.class, httpHeaderParserSupplier);
 			parser.setSocket(socket);
+			parser.setConnection(connection);
 			parser.setHttpRuri(data);
-			serverPool.execute(parser);
-		}
-		catch(IOException e)
-		{
 			try
 			{
-				socket.close();
+				connection.getPoolOr(serverPool).execute(parser);
 			}
-			catch(IOException e2)
+			catch(RejectedExecutionException ree)
 			{
-				log.debug("Unable to close socket inside failure case", e2);
+				loadShedder.shed(connection);
 			}
-			throw new RuntimeException(e); // unable to close socket.
+		}
+		catch(IOException e)
+		{
+			connection.close(CloseReason.ERROR);
+			throw new RuntimeException(e);
 		}
 	}
 
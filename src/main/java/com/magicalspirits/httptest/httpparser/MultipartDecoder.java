@@ -0,0 +1,390 @@
+package com.magicalspirits.httptest.httpparser;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.google.common.base.Charsets;
+import com.google.common.net.HttpHeaders;
+import com.magicalspirits.httptest.httpparser.RequestHeaders.Known;
+
+/**
+ * Reads a multipart/form-data body one part at a time, as it comes off the connection. Each part is a stream of
+ * its own, and only one buffer of the body is ever in memory, however big the parts are.
+ *
+ * The delimiter is found with Knuth-Morris-Pratt, with the match carried from one read to the next, so every byte
+ * of the body is looked at once whatever the boundary looks like. Bytes that could be the start of a delimiter are
+ * held back in the buffer until the next read settles it.
+ *
+ * Parts have to be read in order. Asking for the next part skips whatever is left of the current one.
+ */
+public class MultipartDecoder
+{
+	private static enum State
+	{
+		PREAMBLE, PART, DONE
+	}
+
+	//rfc2046
+	private static final int MAX_BOUNDARY = 70;
+
+	private static final int MIN_BUFFER = 1024;
+
+	private final InputStream in;
+
+	//CRLF -- boundary. The one before the first part has no CRLF, so the buffer starts with one.
+	private final byte[] delimiter;
+
+	//for each prefix of the delimiter, the length of the longest proper prefix that's also a suffix of it.
+	private final int[] failure;
+
+	private final byte[] buffer;
+
+	private final ByteBuffer view;
+
+	//next byte to hand out, next byte to search, end of what has been read.
+	private int position;
+	private int scan;
+	private int limit;
+
+	//how much of the delimiter ends at scan.
+	private int matched;
+
+	//where the delimiter that ends the current part starts, once it's been found.
+	private int delimiterAt = -1;
+
+	private State state = State.PREAMBLE;
+
+	private final RequestHeaders partHeaders = new RequestHeaders();
+
+	private Part current;
+
+	/**
+	 * @return a decoder for the request body, or null if the request isn't multipart/form-data.
+	 * @throws ProtocolException if it is, but there's no usable boundary.
+	 */
+	public static MultipartDecoder forRequest(RequestHeaders headers, InputStream body, int bufferSize) throws ProtocolException
+	{
+		String contentType = headers.get(Known.CONTENT_TYPE);
+		if(contentType == null)
+			return null;
+		int semicolon = contentType.indexOf(';');
+		if(!"multipart/form-data".equalsIgnoreCase((semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim()))
+			return null;
+		String boundary = getParameter(contentType, "boundary");
+		if(boundary == null || boundary.isEmpty() || boundary.length() > MAX_BOUNDARY)
+			throw new ProtocolException("multipart/form-data without a usable boundary");
+		return new MultipartDecoder(body, boundary, bufferSize);
+	}
+
+	public MultipartDecoder(InputStream in, String boundary, int bufferSize)
+	{
+		this.in = in;
+		this.delimiter = ("\r\n--" + boundary).getBytes(Charsets.ISO_8859_1);
+		this.failure = new int[delimiter.length];
+		for(int i = 1, k = 0; i < delimiter.length; i++)
+		{
+			while(k > 0 && delimiter[i] != delimiter[k])
+				k = failure[k - 1];
+			if(delimiter[i] == delimiter[k])
+				k++;
+			failure[i] = k;
+		}
+		//it has to hold a whole part header line, so not too small.
+		this.buffer = new byte[Math.max(bufferSize, MIN_BUFFER)];
+		this.view = ByteBuffer.wrap(buffer);
+		buffer[0] = '\r';
+		buffer[1] = '\n';
+		limit = 2;
+	}
+
+	/**
+	 * @return the next part, or null once the closing boundary has gone by. The part before it can't be read after this.
+	 */
+	public Part nextPart() throws IOException
+	{
+		if(state == State.DONE)
+			return null;
+		//skip the preamble, or what's left of the last part.
+		for(int ready = ready(); ready > 0; ready = ready())
+			position += ready;
+		position = scan;
+		delimiterAt = -1;
+		current = null;
+
+		if(!ensure(2))
+			throw new EOFException("Multipart body ended after a boundary");
+		if(buffer[position] == '-' && buffer[position + 1] == '-')
+		{
+			state = State.DONE;
+			//the epilogue means nothing, but the request body has to be read to its end to keep the connection.
+			while(in.read(buffer, 0, buffer.length) >= 0)
+				;
+			position = scan = limit = 0;
+			return null;
+		}
+		//transport padding after the boundary.
+		position = findLineEnd() + 1;
+
+		partHeaders.clear();
+		for(int lineEnd = findLineEnd(); ; lineEnd = findLineEnd())
+		{
+			int end = lineEnd;
+			if(end > position && buffer[end - 1] == '\r')
+				end--;
+			if(end == position)
+			{
+				position = lineEnd + 1;
+				break;
+			}
+			int colon = position;
+			while(colon < end && buffer[colon] != ':')
+				colon++;
+			if(colon == end)
+				throw new ProtocolException("Multipart part header without a colon");
+			int nameEnd = colon;
+			while(nameEnd > position && (buffer[nameEnd - 1] == ' ' || buffer[nameEnd - 1] == '\t'))
+				nameEnd--;
+			int valueStart = colon + 1;
+			while(valueStart < end && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t'))
+				valueStart++;
+			while(end > valueStart && (buffer[end - 1] == ' ' || buffer[end - 1] == '\t'))
+				end--;
+			partHeaders.add(buffer, position, nameEnd, valueStart, end);
+			position = lineEnd + 1;
+		}
+		scan = position;
+		matched = 0;
+		state = State.PART;
+		current = new Part();
+		return current;
+	}
+
+	/**
+	 * Gets the current part's next bytes into the buffer, from position on.
+	 * @return how many are ready, or 0 at the end of the part.
+	 */
+	private int ready() throws IOException
+	{
+		for(;;)
+		{
+			if(delimiterAt >= 0)
+				return delimiterAt - position;
+			int end = scan - matched;
+			if(position < end)
+				return end - position;
+			if(scan < limit)
+				search();
+			else if(!fill())
+				throw new EOFException("Multipart body ended before its closing boundary");
+		}
+	}
+
+	private void search()
+	{
+		byte[] b = buffer;
+		byte[] d = delimiter;
+		int m = matched;
+		for(int i = scan; i < limit; i++)
+		{
+			byte c = b[i];
+			while(m > 0 && d[m] != c)
+				m = failure[m - 1];
+			if(d[m] == c)
+				m++;
+			if(m == d.length)
+			{
+				delimiterAt = i + 1 - d.length;
+				scan = i + 1;
+				matched = 0;
+				return;
+			}
+		}
+		scan = limit;
+		matched = m;
+	}
+
+	/**
+	 * Moves what hasn't been handed out yet to the front of the buffer, and reads more after it.
+	 * @return false at the end of the body.
+	 */
+	private boolean fill() throws IOException
+	{
+		if(position > 0)
+		{
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			scan -= position;
+			limit -= position;
+			position = 0;
+		}
+		if(limit == buffer.length)
+			throw new ProtocolException("Multipart part header line over " + buffer.length + " bytes");
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if(read < 0)
+			return false;
+		limit += read;
+		return true;
+	}
+
+	private boolean ensure(int count) throws IOException
+	{
+		while(limit - position < count)
+		{
+			if(!fill())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return where the line that starts at position ends, reading more if it isn't all in yet.
+	 */
+	private int findLineEnd() throws IOException
+	{
+		for(int i = position; ; i++)
+		{
+			if(i == limit)
+			{
+				i -= position;
+				if(!fill())
+					throw new EOFException("Multipart body ended in the part headers");
+			}
+			if(buffer[i] == '\n')
+				return i;
+		}
+	}
+
+	/**
+	 * A parameter from a header value like Content-Type or Content-Disposition, with any quotes taken off.
+	 * @return null if it isn't there.
+	 */
+	public static String getParameter(String headerValue, String name)
+	{
+		if(headerValue == null)
+			return null;
+		int length = headerValue.length();
+		for(int i = headerValue.indexOf(';'); i >= 0 && i < length; )
+		{
+			int equals = headerValue.indexOf('=', i + 1);
+			if(equals < 0)
+				return null;
+			String key = headerValue.substring(i + 1, equals).trim();
+			String value;
+			int valueStart = equals + 1;
+			while(valueStart < length && headerValue.charAt(valueStart) == ' ')
+				valueStart++;
+			if(valueStart < length && headerValue.charAt(valueStart) == '"')
+			{
+				StringBuilder sb = new StringBuilder();
+				int at = valueStart + 1;
+				for(; at < length && headerValue.charAt(at) != '"'; at++)
+				{
+					if(headerValue.charAt(at) == '\\' && at + 1 < length)
+						at++;
+					sb.append(headerValue.charAt(at));
+				}
+				value = sb.toString();
+				i = headerValue.indexOf(';', at);
+			}
+			else
+			{
+				i = headerValue.indexOf(';', valueStart);
+				value = headerValue.substring(valueStart, i < 0 ? length : i).trim();
+			}
+			if(key.equalsIgnoreCase(name))
+				return value;
+		}
+		return null;
+	}
+
+	/**
+	 * One part of the body. It reads straight out of the decoder's buffer, and ends where the next boundary starts.
+	 */
+	public class Part extends InputStream
+	{
+		/**
+		 * Only good until the next part.
+		 */
+		public RequestHeaders getHeaders()
+		{
+			return partHeaders;
+		}
+
+		/**
+		 * The form field name, from Content-Disposition.
+		 */
+		public String getName()
+		{
+			return getParameter(partHeaders.get(HttpHeaders.CONTENT_DISPOSITION), "name");
+		}
+
+		/**
+		 * The file name the client gave, or null if this part isn't a file.
+		 */
+		public String getFileName()
+		{
+			return getParameter(partHeaders.get(HttpHeaders.CONTENT_DISPOSITION), "filename");
+		}
+
+		public String getContentType()
+		{
+			return partHeaders.get(Known.CONTENT_TYPE);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if(current != this || ready() == 0)
+				return -1;
+			return buffer[position++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if(len == 0)
+				return 0;
+			int ready = current == this ? ready() : 0;
+			if(ready == 0)
+				return -1;
+			int rv = Math.min(len, ready);
+			System.arraycopy(buffer, position, b, off, rv);
+			position += rv;
+			return rv;
+		}
+
+		@Override
+		public int available()
+		{
+			if(current != this)
+				return 0;
+			return (delimiterAt >= 0 ? delimiterAt : scan - matched) - position;
+		}
+
+		/**
+		 * Writes the part to a channel straight out of the decoder's buffer, with no copy in between.
+		 * @return the number of bytes written, which is max if the part goes on past max.
+		 */
+		public long transferTo(WritableByteChannel channel, long max) throws IOException
+		{
+			if(current != this)
+				return 0;
+			long rv = 0;
+			for(int ready; rv < max && (ready = ready()) > 0; )
+			{
+				int count = (int)Math.min(ready, max - rv);
+				view.clear();
+				view.limit(position + count);
+				view.position(position);
+				while(view.hasRemaining())
+					channel.write(view);
+				position += count;
+				rv += count;
+			}
+			return rv;
+		}
+	}
+}
@@ -0,0 +1,357 @@
+package com.magicalspirits.httptest.httpparser;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.List;
+
+import lombok.Getter;
+
+import com.google.common.base.Charsets;
+import com.magicalspirits.httptest.acceptor.HttpConnection;
+import com.magicalspirits.httptest.httpparser.RequestHeaders.Known;
+
+/**
+ * The body of the current request, as a stream of bytes. There is one of these per connection, and each request
+ * starts it over from its own headers, so reading a body allocates nothing.
+ *
+ * It reads whatever the decoder already has past the head first, then the socket, and never past the end of the body,
+ * so the next request on the connection is left where the decoder expects it. Content-Length and chunked bodies are
+ * both read. Nothing is read ahead of the application, so a slow reader holds the client back through tcp rather than
+ * filling up the heap.
+ *
+ * If the client sent Expect: 100-continue, the 100 Continue goes out on the first read. An application that answers
+ * without reading the body never asks the client to send it.
+ */
+public class RequestBody extends InputStream
+{
+	public static enum Framing
+	{
+		/**
+		 * No body, or a Content-Length of 0.
+		 */
+		NONE,
+		LENGTH,
+		CHUNKED,
+		/**
+		 * The request came through the line based parsers, which have already read an unknown amount of it as characters.
+		 */
+		UNREADABLE
+	}
+
+	private static enum ChunkState
+	{
+		SIZE, DATA, DATA_END, DONE
+	}
+
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(Charsets.ISO_8859_1);
+
+	//longest chunk size line, and the most trailer bytes, we'll read before calling it an attack.
+	private static final int MAX_LINE = 4096;
+
+	private final HttpConnection connection;
+
+	@Getter
+	private Framing framing = Framing.NONE;
+
+	private ChunkState chunkState;
+
+	//bytes left in the whole body, or in the current chunk.
+	private long remaining;
+
+	private long contentLength;
+
+	/**
+	 * How much of the body the application has read.
+	 */
+	@Getter
+	private long received;
+
+	private boolean expectContinue;
+
+	public RequestBody(HttpConnection connection)
+	{
+		this.connection = connection;
+	}
+
+	/**
+	 * Starts over for a new request.
+	 * @return false if the headers don't say how long the body is in a way we can read. The connection can't be used after that.
+	 */
+	public boolean begin(RequestHeaders headers, String version)
+	{
+		framing = Framing.NONE;
+		chunkState = null;
+		remaining = 0;
+		contentLength = 0;
+		received = 0;
+		expectContinue = false;
+
+		boolean chunked = headers.contains(Known.TRANSFER_ENCODING);
+		boolean lengthed = headers.contains(Known.CONTENT_LENGTH);
+		if(chunked && lengthed)
+			return false; //rfc7230 lets us pick one, but a request with both is usually someone trying to smuggle a second one past a proxy.
+		if(chunked)
+		{
+			//we don't do any other transfer codings, and chunked has to be the last one anyway.
+			List<String> codings = headers.getAll(Known.TRANSFER_ENCODING);
+			if(codings.size() != 1 || !"chunked".equalsIgnoreCase(codings.get(0)))
+				return false;
+			framing = Framing.CHUNKED;
+			chunkState = ChunkState.SIZE;
+		}
+		else if(lengthed)
+		{
+			//repeats are allowed as long as they all agree.
+			List<String> lengths = headers.getAll(Known.CONTENT_LENGTH);
+			for(String length : lengths)
+			{
+				if(!length.equals(lengths.get(0)))
+					return false;
+			}
+			try
+			{
+				contentLength = Long.parseLong(lengths.get(0));
+			}
+			catch(NumberFormatException e)
+			{
+				return false;
+			}
+			if(contentLength < 0)
+				return false;
+			remaining = contentLength;
+			framing = contentLength == 0 ? Framing.NONE : Framing.LENGTH;
+		}
+		expectContinue = framing != Framing.NONE && "HTTP/1.1".equalsIgnoreCase(version) && headers.containsValue(Known.EXPECT, "100-continue");
+		return true;
+	}
+
+	/**
+	 * For the line based parsers, which can't hand over a body.
+	 */
+	public void beginUnreadable()
+	{
+		framing = Framing.UNREADABLE;
+		chunkState = null;
+		remaining = 0;
+		contentLength = 0;
+		received = 0;
+		expectContinue = false;
+	}
+
+	/**
+	 * @return true if the request has a body, even an unreadable one.
+	 */
+	public boolean isPresent()
+	{
+		return framing != Framing.NONE;
+	}
+
+	/**
+	 * @return the Content-Length, or -1 for a chunked body, where nobody knows until it's over.
+	 */
+	public long getContentLength()
+	{
+		return framing == Framing.LENGTH || framing == Framing.NONE ? contentLength : -1;
+	}
+
+	/**
+	 * @return true once the whole body has been read, so the next request on the connection can be. A body
+	 * the application leaves unread means the connection has to close.
+	 */
+	public boolean isFinished()
+	{
+		switch(framing)
+		{
+			case LENGTH:
+				return remaining == 0;
+			case CHUNKED:
+				return chunkState == ChunkState.DONE;
+			default:
+				//Note: the line based parsers never knew, and have always kept the connection open.
+				return true;
+		}
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if(!prepare())
+			return -1;
+		HttpRequestDecoder decoder = connection.getRequestDecoder();
+		if(decoder.getRemaining() == 0 && decoder.readBodyFrom(connection.getInputStream()) < 0)
+			throw new EOFException("Request body ended after " + received + " bytes");
+		consumed(1);
+		return decoder.readBodyByte();
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if(len == 0)
+			return 0;
+		if(!prepare())
+			return -1;
+		int max = (int)Math.min(len, remaining);
+		HttpRequestDecoder decoder = connection.getRequestDecoder();
+		int rv;
+		if(decoder.getRemaining() > 0)
+			rv = decoder.readBody(b, off, max);
+		else
+			rv = connection.getInputStream().read(b, off, max); //straight into the caller's array, and no further than this body or chunk goes.
+		if(rv < 0)
+			throw new EOFException("Request body ended after " + received + " bytes");
+		consumed(rv);
+		return rv;
+	}
+
+	@Override
+	public int available()
+	{
+		if(remaining == 0 || connection.getRequestDecoder() == null)
+			return 0;
+		return (int)Math.min(remaining, connection.getRequestDecoder().getRemaining());
+	}
+
+	/**
+	 * Does nothing, the socket belongs to the connection.
+	 */
+	@Override
+	public void close()
+	{
+	}
+
+	private void consumed(int count)
+	{
+		remaining -= count;
+		received += count;
+		if(remaining == 0 && framing == Framing.CHUNKED)
+			chunkState = ChunkState.DATA_END;
+	}
+
+	/**
+	 * Gets to the next byte of data, through any chunk framing in the way.
+	 * @return false at the end of the body.
+	 */
+	private boolean prepare() throws IOException
+	{
+		switch(framing)
+		{
+			case NONE:
+				return false;
+			case UNREADABLE:
+				throw new IOException("The line based parsers can't read request bodies");
+			default:
+				break;
+		}
+		if(expectContinue)
+		{
+			expectContinue = false;
+			//responses held back for pipelining go first, they're for earlier requests.
+			connection.flushResponse();
+			connection.getOutputStream().write(CONTINUE);
+			connection.getOutputStream().flush();
+		}
+		if(framing == Framing.LENGTH)
+			return remaining > 0;
+
+		while(remaining == 0)
+		{
+			switch(chunkState)
+			{
+				case DATA_END:
+					readLineEnd();
+					chunkState = ChunkState.SIZE;
+					break;
+				case SIZE:
+					remaining = readChunkSize();
+					if(remaining == 0)
+					{
+						skipTrailers();
+						chunkState = ChunkState.DONE;
+						return false;
+					}
+					chunkState = ChunkState.DATA;
+					break;
+				case DONE:
+					return false;
+				default:
+					throw new IllegalStateException("Empty chunk in state " + chunkState);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a chunk size line. Chunk extensions are allowed and ignored.
+	 */
+	private long readChunkSize() throws IOException
+	{
+		long size = 0;
+		int digits = 0;
+		boolean extension = false;
+		for(int length = 0; ; length++)
+		{
+			int c = nextFramingByte();
+			if(c == '\n')
+				break;
+			if(length > MAX_LINE)
+				throw new ProtocolException("Chunk size line over " + MAX_LINE + " bytes");
+			if(extension || c == '\r')
+				continue;
+			if(c == ';' || c == ' ' || c == '\t')
+			{
+				extension = true;
+				continue;
+			}
+			int digit = Character.digit(c, 16);
+			//15 hex digits is already more than anyone will send.
+			if(digit < 0 || ++digits > 15)
+				throw new ProtocolException("Bad chunk size in request body");
+			size = (size << 4) + digit;
+		}
+		if(digits == 0)
+			throw new ProtocolException("Missing chunk size in request body");
+		return size;
+	}
+
+	private void readLineEnd() throws IOException
+	{
+		int c = nextFramingByte();
+		if(c == '\r')
+			c = nextFramingByte();
+		if(c != '\n')
+			throw new ProtocolException("Chunk in request body doesn't end with a line break");
+	}
+
+	/**
+	 * Trailers aren't given to the application, there's nothing in this server that would use them.
+	 */
+	private void skipTrailers() throws IOException
+	{
+		int lineLength = 0;
+		for(int total = 0; ; total++)
+		{
+			int c = nextFramingByte();
+			if(total > MAX_LINE)
+				throw new ProtocolException("Request body trailers over " + MAX_LINE + " bytes");
+			if(c == '\n')
+			{
+				if(lineLength == 0)
+					return;
+				lineLength = 0;
+			}
+			else if(c != '\r')
+				lineLength++;
+		}
+	}
+
+	private int nextFramingByte() throws IOException
+	{
+		HttpRequestDecoder decoder = connection.getRequestDecoder();
+		if(decoder.getRemaining() == 0 && decoder.readBodyFrom(connection.getInputStream()) < 0)
+			throw new EOFException("Request body ended inside the chunk framing");
+		return decoder.readBodyByte();
+	}
+}
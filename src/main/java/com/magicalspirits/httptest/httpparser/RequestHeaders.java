@@ -0,0 +1,337 @@
+package com.magicalspirits.httptest.httpparser;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.net.HttpHeaders;
+
+/**
+ * The headers of one request. There is one of these per connection, cleared and refilled for each request, so once
+ * it has grown to fit the connection's requests, filling it allocates nothing.
+ *
+ * Names and values are kept as ISO 8859-1 bytes in one array, exactly as they arrived. Strings are only made for
+ * what is actually read, and values are only split on commas when they're read as a list. Lookups ignore case.
+ * The headers in {@link Known} also get a slot each, so finding them doesn't mean scanning every header.
+ */
+public class RequestHeaders
+{
+	/**
+	 * Headers the server itself looks at.
+	 */
+	public static enum Known
+	{
+		HOST(HttpHeaders.HOST),
+		CONNECTION(HttpHeaders.CONNECTION),
+		CONTENT_LENGTH(HttpHeaders.CONTENT_LENGTH),
+		CONTENT_TYPE(HttpHeaders.CONTENT_TYPE),
+		TRANSFER_ENCODING(HttpHeaders.TRANSFER_ENCODING),
+		EXPECT(HttpHeaders.EXPECT),
+		ACCEPT_ENCODING(HttpHeaders.ACCEPT_ENCODING),
+		RANGE(HttpHeaders.RANGE),
+		IF_RANGE(HttpHeaders.IF_RANGE),
+		IF_NONE_MATCH(HttpHeaders.IF_NONE_MATCH),
+		IF_MODIFIED_SINCE(HttpHeaders.IF_MODIFIED_SINCE),
+		TE(HttpHeaders.TE);
+
+		private final String headerName;
+
+		private Known(String headerName)
+		{
+			this.headerName = headerName;
+		}
+
+		public String getHeaderName()
+		{
+			return headerName;
+		}
+	}
+
+	private static final Known[] KNOWN = Known.values();
+
+	private static final Map<String, Known> KNOWN_BY_NAME = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+	static
+	{
+		for(Known known : KNOWN)
+			KNOWN_BY_NAME.put(known.getHeaderName(), known);
+	}
+
+	private static final int NAME_START = 0;
+	private static final int NAME_END = 1;
+	private static final int VALUE_START = 2;
+	private static final int VALUE_END = 3;
+	private static final int OFFSETS_PER_HEADER = 4;
+
+	private static final int NONE = -1;
+
+	private byte[] data = new byte[1024];
+	private int length;
+
+	//name start, name end, value start and value end for each header, in order.
+	private int[] offsets = new int[OFFSETS_PER_HEADER * 16];
+	private int count;
+
+	//for each header, the next one with the same known name.
+	private int[] next = new int[16];
+
+	//the first and last header for each known name.
+	private final int[] first = new int[KNOWN.length];
+	private final int[] last = new int[KNOWN.length];
+
+	public RequestHeaders()
+	{
+		clear();
+	}
+
+	/**
+	 * Empties this for the next request. The space it has grown to is kept.
+	 */
+	public void clear()
+	{
+		length = 0;
+		count = 0;
+		Arrays.fill(first, NONE);
+		Arrays.fill(last, NONE);
+	}
+
+	/**
+	 * Adds a header that is still in a read buffer.
+	 */
+	public void add(byte[] buffer, int nameStart, int nameEnd, int valueStart, int valueEnd)
+	{
+		int nameLength = nameEnd - nameStart;
+		int valueLength = valueEnd - valueStart;
+		ensureData(nameLength + valueLength);
+		System.arraycopy(buffer, nameStart, data, length, nameLength);
+		System.arraycopy(buffer, valueStart, data, length + nameLength, valueLength);
+		added(nameLength, valueLength);
+	}
+
+	public void add(String name, String value)
+	{
+		ensureData(name.length() + value.length());
+		int at = length;
+		for(int i = 0; i < name.length(); i++)
+			data[at++] = toByte(name.charAt(i));
+		for(int i = 0; i < value.length(); i++)
+			data[at++] = toByte(value.charAt(i));
+		added(name.length(), value.length());
+	}
+
+	private void added(int nameLength, int valueLength)
+	{
+		if(count == next.length)
+		{
+			next = Arrays.copyOf(next, count * 2);
+			offsets = Arrays.copyOf(offsets, count * 2 * OFFSETS_PER_HEADER);
+		}
+		int offset = count * OFFSETS_PER_HEADER;
+		offsets[offset + NAME_START] = length;
+		offsets[offset + NAME_END] = length + nameLength;
+		offsets[offset + VALUE_START] = length + nameLength;
+		offsets[offset + VALUE_END] = length + nameLength + valueLength;
+		length += nameLength + valueLength;
+		next[count] = NONE;
+
+		for(Known known : KNOWN)
+		{
+			if(nameEquals(count, known.getHeaderName()))
+			{
+				int slot = known.ordinal();
+				if(first[slot] == NONE)
+					first[slot] = count;
+				else
+					next[last[slot]] = count;
+				last[slot] = count;
+				break;
+			}
+		}
+		count++;
+	}
+
+	private void ensureData(int more)
+	{
+		if(length + more > data.length)
+			data = Arrays.copyOf(data, Math.max(data.length * 2, length + more));
+	}
+
+	private static byte toByte(char c)
+	{
+		return c <= 0xFF ? (byte)c : (byte)'?';
+	}
+
+	public int size()
+	{
+		return count;
+	}
+
+	public String getName(int index)
+	{
+		int offset = index * OFFSETS_PER_HEADER;
+		return new String(data, offsets[offset + NAME_START], offsets[offset + NAME_END] - offsets[offset + NAME_START], Charsets.ISO_8859_1);
+	}
+
+	/**
+	 * The value as it arrived, without splitting on commas.
+	 */
+	public String getValue(int index)
+	{
+		int offset = index * OFFSETS_PER_HEADER;
+		return new String(data, offsets[offset + VALUE_START], offsets[offset + VALUE_END] - offsets[offset + VALUE_START], Charsets.ISO_8859_1);
+	}
+
+	public boolean contains(Known name)
+	{
+		return first[name.ordinal()] != NONE;
+	}
+
+	public boolean contains(String name)
+	{
+		return indexOf(name) != NONE;
+	}
+
+	/**
+	 * @return the whole value of the first header with this name, or null if there isn't one.
+	 */
+	public String get(Known name)
+	{
+		int index = first[name.ordinal()];
+		return index == NONE ? null : getValue(index);
+	}
+
+	/**
+	 * @return the whole value of the first header with this name, ignoring case, or null if there isn't one.
+	 */
+	public String get(String name)
+	{
+		int index = indexOf(name);
+		return index == NONE ? null : getValue(index);
+	}
+
+	/**
+	 * Every value for this name, with each header split on commas the way rfc2616 says they can be.
+	 */
+	public List<String> getAll(Known name)
+	{
+		List<String> rv = Collections.emptyList();
+		for(int index = first[name.ordinal()]; index != NONE; index = next[index])
+			rv = split(index, rv);
+		return rv;
+	}
+
+	/**
+	 * Every value for this name, ignoring case, with each header split on commas the way rfc2616 says they can be.
+	 */
+	public List<String> getAll(String name)
+	{
+		Known known = KNOWN_BY_NAME.get(name);
+		if(known != null)
+			return getAll(known);
+		List<String> rv = Collections.emptyList();
+		for(int index = 0; index < count; index++)
+		{
+			if(nameEquals(index, name))
+				rv = split(index, rv);
+		}
+		return rv;
+	}
+
+	/**
+	 * @return true if one of the comma separated values for this name is the token, ignoring case. Nothing is allocated.
+	 */
+	public boolean containsValue(Known name, String token)
+	{
+		for(int index = first[name.ordinal()]; index != NONE; index = next[index])
+		{
+			int offset = index * OFFSETS_PER_HEADER;
+			int from = offsets[offset + VALUE_START];
+			int end = offsets[offset + VALUE_END];
+			for(int comma = from; comma <= end; comma++)
+			{
+				if(comma == end || data[comma] == ',')
+				{
+					int valueFrom = trimStart(from, comma);
+					if(equalsIgnoreCase(valueFrom, trimEnd(valueFrom, comma), token))
+						return true;
+					from = comma + 1;
+				}
+			}
+		}
+		return false;
+	}
+
+	private int indexOf(String name)
+	{
+		Known known = KNOWN_BY_NAME.get(name);
+		if(known != null)
+			return first[known.ordinal()];
+		for(int index = 0; index < count; index++)
+		{
+			if(nameEquals(index, name))
+				return index;
+		}
+		return NONE;
+	}
+
+	private List<String> split(int index, List<String> into)
+	{
+		if(into.isEmpty())
+			into = Lists.newArrayList();
+		int offset = index * OFFSETS_PER_HEADER;
+		int from = offsets[offset + VALUE_START];
+		int end = offsets[offset + VALUE_END];
+		for(int comma = from; comma <= end; comma++)
+		{
+			if(comma == end || data[comma] == ',')
+			{
+				int valueFrom = trimStart(from, comma);
+				into.add(new String(data, valueFrom, trimEnd(valueFrom, comma) - valueFrom, Charsets.ISO_8859_1));
+				from = comma + 1;
+			}
+		}
+		return into;
+	}
+
+	private int trimStart(int from, int end)
+	{
+		while(from < end && (data[from] == ' ' || data[from] == '\t'))
+			from++;
+		return from;
+	}
+
+	private int trimEnd(int from, int end)
+	{
+		while(end > from && (data[end - 1] == ' ' || data[end - 1] == '\t'))
+			end--;
+		return end;
+	}
+
+	private boolean nameEquals(int index, String name)
+	{
+		int offset = index * OFFSETS_PER_HEADER;
+		return equalsIgnoreCase(offsets[offset + NAME_START], offsets[offset + NAME_END], name);
+	}
+
+	private boolean equalsIgnoreCase(int from, int end, String value)
+	{
+		if(end - from != value.length())
+			return false;
+		for(int i = 0; i < value.length(); i++)
+		{
+			int c = data[from + i] & 0xFF;
+			int v = value.charAt(i);
+			if(c != v && toLowerCase(c) != toLowerCase(v))
+				return false;
+		}
+		return true;
+	}
+
+	private static int toLowerCase(int c)
+	{
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+}
@@ -1,11 +1,23 @@
 package com.magicalspirits.httptest.launcher;
 
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PreDestroy;
 
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.AbstractModule;
@@ -13,12 +25,104 @@ import com.google.inject.Inject;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
 import com.magicalspirits.httptest.thirdparty.InstrumentedExecutorService;
 
+@Slf4j
 public class ExecutorsModule extends AbstractModule 
 {
 	public static final String HTTP_SERVER_POOL = "http-server-pool";
 
+	/**
+	 * Runs the acceptors and the selector loops. Each of those holds its thread for as long as the server runs, so they
+	 * get their own platform threads rather than taking some of the server pool's.
+	 */
+	public static final String ACCEPTOR_POOL = "acceptor-pool";
+
+	//set while a selector thread submits, see executeWithoutBlocking.
+	private static final ThreadLocal<Boolean> WITHOUT_BLOCKING = new ThreadLocal<>();
+
+	public static enum Mode
+	{
+		/**
+		 * A cached pool of platform threads.
+		 */
+		CACHED,
+		/**
+		 * A new virtual thread per task. Needs java 21 or above, otherwise it falls back to cached.
+		 */
+		VIRTUAL,
+		/**
+		 * A fixed number of platform threads with a bounded queue. Work beyond that is handed to the {@link RejectionPolicy}.
+		 */
+		BOUNDED
+	}
+
+	/**
+	 * What a bounded pool does with work once its threads are busy and its queue is full.
+	 */
+	public static enum RejectionPolicy
+	{
+		/**
+		 * Throw a RejectedExecutionException back at the submitter. The pipeline answers those with a 503 and closes the connection.
+		 */
+		ABORT,
+		/**
+		 * Run the work on the submitting thread. That slows down whoever is feeding the pool, all the way back to the acceptor.
+		 * Except for a selector thread, which is refused like ABORT, see {@link ExecutorsModule#executeWithoutBlocking}.
+		 */
+		CALLER_RUNS
+	}
+
+	/**
+	 * Size of a bounded pool. A queue size of 0 means hand off directly to a thread or reject.
+	 */
+	@Value
+	public static class PoolSettings
+	{
+		private int threads;
+		private int queueSize;
+	}
+
+	private final Mode mode;
+
+	private final PoolSettings serverPoolSettings;
+
+	private final PoolSettings defaultPoolSettings;
+
+	private final RejectionPolicy rejectionPolicy;
+
+	public ExecutorsModule()
+	{
+		this(new ServerConfig());
+	}
+
+	/**
+	 * Pools are built as the injector is created, so they are sized from the config this module is given rather than the one bound in the injector.
+	 */
+	public ExecutorsModule(ServerConfig config)
+	{
+		this(config.getExecutorMode(), config);
+	}
+
+	public ExecutorsModule(Mode mode)
+	{
+		this(mode, new ServerConfig());
+	}
+
+	private ExecutorsModule(Mode mode, ServerConfig config)
+	{
+		this(mode, config.getServerPoolSettings(), config.getDefaultPoolSettings(), config.getRejectionPolicy());
+	}
+
+	public ExecutorsModule(Mode mode, PoolSettings serverPoolSettings, PoolSettings defaultPoolSettings, RejectionPolicy rejectionPolicy)
+	{
+		this.mode = mode;
+		this.serverPoolSettings = serverPoolSettings;
+		this.defaultPoolSettings = defaultPoolSettings;
+		this.rejectionPolicy = rejectionPolicy;
+	}
+
 	@Override
 	protected void configure() 
 	{
@@ -29,9 +133,8 @@ public class ExecutorsModule extends AbstractModule
 	@Singleton
 	public ExecutorService getDefaultExecutorService(MetricRegistry registry, UncaughtExceptionHandler uncaughtExceptionHandler)
 	{
-		//Note: I dont know the performance profile I'm aiming for here, so we'll leave it
-		//unbounded. This would be the place to make it bounded if had some specific settings
-		return getService("default-pool", registry, uncaughtExceptionHandler);
+		//Note: Unbounded unless the mode says otherwise, see getService.
+		return getService("default-pool", defaultPoolSettings, registry, uncaughtExceptionHandler);
 	}
 	
 	@Provides
@@ -39,11 +142,39 @@ public class ExecutorsModule extends AbstractModule
 	@Singleton
 	public ExecutorService getServerPoolExecutorService(MetricRegistry registry, UncaughtExceptionHandler uncaughtExceptionHandler)
 	{
-		//Note: I dont know the performance profile I'm aiming for here, so we'll leave it
-		//unbounded. This would be the place to make it bounded if had some specific settings
-		return getService(HTTP_SERVER_POOL, registry, uncaughtExceptionHandler);
+		//Note: Unbounded unless the mode says otherwise, see getService.
+		return getService(HTTP_SERVER_POOL, serverPoolSettings, registry, uncaughtExceptionHandler);
 	}
 	
+	@Provides
+	@Named(ACCEPTOR_POOL)
+	@Singleton
+	public ExecutorService getAcceptorPoolExecutorService(MetricRegistry registry, UncaughtExceptionHandler uncaughtExceptionHandler)
+	{
+		//Note: Always cached, whatever the mode. There's a thread per acceptor and selector, so it never grows far.
+		return new InstrumentedExecutorService(Executors.newCachedThreadPool(
+				new ThreadFactoryBuilder().setNameFormat(ACCEPTOR_POOL + "-%d").setDaemon(true)
+					.setUncaughtExceptionHandler(uncaughtExceptionHandler).build()), registry, ACCEPTOR_POOL);
+	}
+
+	/**
+	 * Submit from a thread that must never run the work itself, like a selector loop, which every connection it
+	 * watches would be waiting on. Under {@link RejectionPolicy#CALLER_RUNS} a full pool throws a
+	 * RejectedExecutionException back instead, the same as it does under ABORT.
+	 */
+	public static void executeWithoutBlocking(ExecutorService pool, Runnable task)
+	{
+		WITHOUT_BLOCKING.set(Boolean.TRUE);
+		try
+		{
+			pool.execute(task);
+		}
+		finally
+		{
+			WITHOUT_BLOCKING.remove();
+		}
+	}
+
 	@Provides
 	@Singleton
 	public UncaughtExceptionHandler getUncaughtExceptionHandler(LoggingUncaughtExceptionHandler internal)
@@ -52,13 +183,78 @@ public class ExecutorsModule extends AbstractModule
 	}
 	
 	
-	private InstrumentedExecutorService getService(String poolName, MetricRegistry registry, UncaughtExceptionHandler uncaughtExceptionHandler)
+	private InstrumentedExecutorService getService(String poolName, PoolSettings settings, MetricRegistry registry, UncaughtExceptionHandler uncaughtExceptionHandler)
 	{
-		ExecutorService es = Executors.newCachedThreadPool(
+		ExecutorService es = null;
+		if(mode == Mode.BOUNDED)
+		{
+			es = getBoundedService(poolName, settings, registry, uncaughtExceptionHandler);
+		}
+		if(mode == Mode.VIRTUAL)
+		{
+			es = getVirtualThreadService(poolName, uncaughtExceptionHandler);
+			if(es == null)
+				log.warn("Virtual threads aren't available on this jvm, {} will use a cached pool", poolName);
+		}
+		if(es == null)
+		{
+			es = Executors.newCachedThreadPool(
 				new ThreadFactoryBuilder().setNameFormat(poolName + "-%d").setDaemon(true)
 					.setUncaughtExceptionHandler(uncaughtExceptionHandler).build());
+		}
 		return new InstrumentedExecutorService(es, registry);	
 	}
+
+	private ExecutorService getBoundedService(String poolName, PoolSettings settings, MetricRegistry registry, UncaughtExceptionHandler uncaughtExceptionHandler)
+	{
+		BlockingQueue<Runnable> queue;
+		if(settings.getQueueSize() > 0)
+			queue = new ArrayBlockingQueue<>(settings.getQueueSize());
+		else
+			queue = new SynchronousQueue<>();
+
+		final Meter rejected = registry.meter(MetricRegistry.name(poolName, "rejected"));
+		final RejectedExecutionHandler abort = new ThreadPoolExecutor.AbortPolicy();
+		final RejectedExecutionHandler policy = rejectionPolicy == RejectionPolicy.CALLER_RUNS ? 
+				new ThreadPoolExecutor.CallerRunsPolicy() : abort;
+
+		ThreadPoolExecutor tpe = new ThreadPoolExecutor(settings.getThreads(), settings.getThreads(), 60L, TimeUnit.SECONDS, queue,
+				new ThreadFactoryBuilder().setNameFormat(poolName + "-%d").setDaemon(true)
+					.setUncaughtExceptionHandler(uncaughtExceptionHandler).build(),
+				(r, executor) -> 
+				{
+					rejected.mark();
+					(WITHOUT_BLOCKING.get() == null ? policy : abort).rejectedExecution(r, executor);
+				});
+		//let an idle bounded pool shrink back down like the cached pool does.
+		tpe.allowCoreThreadTimeOut(true);
+
+		MetricsModule.replace(registry, MetricRegistry.name(poolName, "queue-depth"), (Gauge<Integer>) () -> queue.size());
+		return tpe;
+	}
+
+	/**
+	 * @return a thread per task executor on virtual threads, or null if this jvm doesn't have them.
+	 */
+	private static ExecutorService getVirtualThreadService(String poolName, UncaughtExceptionHandler uncaughtExceptionHandler)
+	{
+		//Virtual threads showed up in java 21 and we still build for 8, so this has to be done reflectively. It is the same as
+		// Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(poolName + "-", 0).uncaughtExceptionHandler(ueh).factory())
+		try
+		{
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, poolName + "-", 0L);
+			builder = builderClass.getMethod("uncaughtExceptionHandler", UncaughtExceptionHandler.class).invoke(builder, uncaughtExceptionHandler);
+			ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+			return (ExecutorService)Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+		}
+		catch(ReflectiveOperationException e)
+		{
+			//includes java 19 and 20, where they are a preview feature and ofVirtual throws unless previews are enabled.
+			return null;
+		}
+	}
 	
 	public static class ExecutorsService
 	{
@@ -68,6 +264,10 @@ public class ExecutorsModule extends AbstractModule
 		
 		@Inject
 		private ExecutorService defaultPool;
+
+		@Inject
+		@Named(ExecutorsModule.ACCEPTOR_POOL)
+		private ExecutorService acceptorPool;
 		
 		
 		@PreDestroy
@@ -76,6 +276,7 @@ public class ExecutorsModule extends AbstractModule
 			//shutdwn the pools to prevent future work from happening on this instance.
 			serverPool.shutdown();
 			defaultPool.shutdown();
+			acceptorPool.shutdown();
 		}
 	}
 }
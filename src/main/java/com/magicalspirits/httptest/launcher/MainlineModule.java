@@ -1,7 +1,10 @@
 package com.magicalspirits.httptest.launcher;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Supplier;
@@ -11,16 +14,25 @@ import lombok.extern.slf4j.Slf4j;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.AbstractModule;
+import com.google.inject.Binder;
 import com.google.inject.Injector;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
+import com.google.inject.multibindings.MapBinder;
+import com.magicalspirits.httptest.acceptor.Acceptor;
 import com.magicalspirits.httptest.acceptor.AcceptorService;
 import com.magicalspirits.httptest.acceptor.ServerSocketAcceptor;
 import com.magicalspirits.httptest.acceptor.SocketRunner;
 import com.magicalspirits.httptest.httpapplication.ApplicationRunner;
+import com.magicalspirits.httptest.httpapplication.ContentHashes;
+import com.magicalspirits.httptest.httpapplication.Router;
+import com.magicalspirits.httptest.httpapplication.Routes;
 import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpapplication.ServeMetrics;
+import com.magicalspirits.httptest.httpapplication.ServeMonitoring;
 import com.magicalspirits.httptest.httpparser.HttpHeaderParser;
-import com.magicalspirits.httptest.httpparser.HttpRuriParser;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
 
 @Slf4j
 public class MainlineModule extends AbstractModule 
@@ -28,20 +40,34 @@ public class MainlineModule extends AbstractModule
 	@Override
 	protected void configure() 
 	{
-		bind(SocketRunner.class).to(HttpRuriParser.class); //this is the
+		bind(SocketRunner.class).to(HttpRequestParser.class); //this is the
 		bind(AcceptorService.class).asEagerSingleton();
-		bind(ApplicationRunner.class).to(ServeHttpFile.class);
+		bind(ApplicationRunner.class).to(Router.class);
+		bindRoutes(binder(), ServeHttpFile.class);
+		bind(ContentHashes.class).asEagerSingleton(); //hashes the content root while the server starts.
 		
 	}
 	
+	/**
+	 * The metrics and monitoring pages, and content for every other path. More routes can be added from any module
+	 * with Routes.newRouteBinder.
+	 */
+	public static void bindRoutes(Binder binder, Class<? extends ApplicationRunner> content)
+	{
+		MapBinder<String, ApplicationRunner> routes = Routes.newRouteBinder(binder);
+		routes.addBinding("/metrics").to(ServeMetrics.class);
+		routes.addBinding("/monitoring").to(ServeMonitoring.class);
+		routes.addBinding("/**").to(content);
+	}
+	
 	@Provides
 	@Singleton
-	public ServerSocket getServerSocket()
+	public ServerSocket getServerSocket(ServerConfig config)
 	{
-		//Note: Port could come from config, or system properties, or wherever. This wouldn't be hardcoded on a prod system
 		try 
 		{
-			return new ServerSocket(8080);
+			//opened through a channel so accepted sockets have one too, which lets idle keep alive connections be parked on a selector.
+			return bindServerChannel(ServerSocketChannel.open(), config.getPort(), config).socket();
 		} 
 		catch (IOException e) 
 		{
@@ -51,13 +77,26 @@ public class MainlineModule extends AbstractModule
 		}
 	}
 	
+	/**
+	 * Binds a listening channel with the backlog and receive buffer from the config.
+	 */
+	public static ServerSocketChannel bindServerChannel(ServerSocketChannel channel, int port, ServerConfig config) throws IOException
+	{
+		//the receive buffer has to be set on the listener, before bind, for the window to be advertised on the handshake.
+		if(config.getReceiveBufferSize() > 0)
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+		channel.bind(new InetSocketAddress(port), config.getBacklog());
+		return channel;
+	}
+	
 	/**
 	 * This supplier is guaranteed to always return a new instance.
 	 */
 	@Provides
 	public Supplier<SocketRunner> getSocketRunnerSupplier(final Injector i)
 	{
-		return () -> i.getInstance(SocketRunner.class);
+		//the binding is looked up once, here, rather than every time an instance is made.
+		return i.getProvider(SocketRunner.class)::get;
 	}
 	
 	/**
@@ -66,7 +105,7 @@ public class MainlineModule extends AbstractModule
 	@Provides
 	public Supplier<HttpHeaderParser> getHeaderParser(final Injector i)
 	{
-		return () -> i.getInstance(HttpHeaderParser.class);
+		return i.getProvider(HttpHeaderParser.class)::get;
 	}
 	
 	/**
@@ -75,15 +114,17 @@ public class MainlineModule extends AbstractModule
 	@Provides
 	public Supplier<ApplicationRunner> getApplicationRunner(final Injector i)
 	{
-		return () -> i.getInstance(ApplicationRunner.class);
+		return i.getProvider(ApplicationRunner.class)::get;
 	}
 	
 	@Provides
 	@Singleton
-	public List<ServerSocketAcceptor> getAcceptors(ServerSocketAcceptor ss1, ServerSocketAcceptor ss2)
+	public List<Acceptor> getAcceptors(Provider<ServerSocketAcceptor> acceptorProvider, ServerConfig config)
 	{
-		//a production instance really shouldn't need more than 2 unless something in wrong with the handoff to the executor service.
-		return Lists.newArrayList(ss1, ss2);
+		List<Acceptor> rv = Lists.newArrayList();
+		for(int i = 0; i < config.getAcceptors(); i++)
+			rv.add(acceptorProvider.get());
+		return rv;
 	}
 	
 	@Provides
@@ -97,6 +138,10 @@ public class MainlineModule extends AbstractModule
 		rv.put("txt", "text/plain");
 		rv.put("htm", "text/html");
 		rv.put("html", "text/html");
+		rv.put("css", "text/css");
+		rv.put("js", "application/javascript");
+		rv.put("json", "application/json");
+		rv.put("xml", "application/xml");
 		return rv;
 	}
 }
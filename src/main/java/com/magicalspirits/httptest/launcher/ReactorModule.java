@@ -0,0 +1,115 @@
+package com.magicalspirits.httptest.launcher;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Injector;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import com.magicalspirits.httptest.acceptor.Acceptor;
+import com.magicalspirits.httptest.acceptor.AcceptorService;
+import com.magicalspirits.httptest.acceptor.SelectorAcceptor;
+import com.magicalspirits.httptest.acceptor.SocketRunner;
+import com.magicalspirits.httptest.httpapplication.ApplicationRunner;
+import com.magicalspirits.httptest.httpapplication.ContentHashes;
+import com.magicalspirits.httptest.httpapplication.Router;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpHeaderParser;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+
+/**
+ * Drop in replacement for the {@link MainlineModule} that accepts connections with a non blocking
+ * {@link SelectorAcceptor} instead of blocking {@link com.magicalspirits.httptest.acceptor.ServerSocketAcceptor}s.
+ * Use it by setting the specify-all-modules system property and listing this module in place of the MainlineModule.
+ */
+@Slf4j
+public class ReactorModule extends AbstractModule
+{
+	private MainlineModule mmm = new MainlineModule(); //reference for delegation
+
+	@Override
+	protected void configure()
+	{
+		bind(SocketRunner.class).to(HttpRequestParser.class);
+		bind(AcceptorService.class).asEagerSingleton();
+		bind(ApplicationRunner.class).to(Router.class);
+		MainlineModule.bindRoutes(binder(), ServeHttpFile.class);
+		bind(ContentHashes.class).asEagerSingleton(); //hashes the content root while the server starts.
+	}
+
+	@Provides
+	@Singleton
+	public ServerSocketChannel getServerSocketChannel(ServerConfig config)
+	{
+		try
+		{
+			return MainlineModule.bindServerChannel(ServerSocketChannel.open(), config.getPort(), config);
+		}
+		catch (IOException e)
+		{
+			log.error("Unable to open server socket channel", e);
+			System.exit(1);
+			return null; //for the compiler.
+		}
+	}
+
+	/**
+	 * The selector owns the channel, this is only here for things that want to know the local port.
+	 */
+	@Provides
+	@Singleton
+	public ServerSocket getServerSocket(ServerSocketChannel channel)
+	{
+		return channel.socket();
+	}
+
+	/**
+	 * This supplier is guaranteed to always return a new instance.
+	 */
+	@Provides
+	public Supplier<SocketRunner> getSocketRunnerSupplier(final Injector i)
+	{
+		return mmm.getSocketRunnerSupplier(i);
+	}
+
+	/**
+	 * This supplier is guaranteed to always return a new instance.
+	 */
+	@Provides
+	public Supplier<HttpHeaderParser> getHeaderParser(final Injector i)
+	{
+		return mmm.getHeaderParser(i);
+	}
+
+	/**
+	 * This supplier is guaranteed to always return a new instance.
+	 */
+	@Provides
+	public Supplier<ApplicationRunner> getApplicationRunner(final Injector i)
+	{
+		return mmm.getApplicationRunner(i);
+	}
+
+	@Provides
+	@Singleton
+	public List<Acceptor> getAcceptors(SelectorAcceptor reactor)
+	{
+		//one selector thread is plenty, it never blocks on a single connection.
+		return Lists.newArrayList(reactor);
+	}
+
+	@Provides
+	@Singleton
+	public Map<String, String> getMimeTypeRegistry()
+	{
+		return mmm.getMimeTypeRegistry();
+	}
+}
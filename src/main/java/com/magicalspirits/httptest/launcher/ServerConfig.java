@@ -0,0 +1,390 @@
+package com.magicalspirits.httptest.launcher;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.Map;
+import java.util.Properties;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.inject.Singleton;
+import com.magicalspirits.httptest.launcher.ExecutorsModule.Mode;
+import com.magicalspirits.httptest.launcher.ExecutorsModule.PoolSettings;
+import com.magicalspirits.httptest.launcher.ExecutorsModule.RejectionPolicy;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule.Instrumentation;
+
+/**
+ * Every tuning knob the server has, in one place. Values come from a properties file named by the
+ * httptest.config system property, if there is one, and system properties override whatever is in the file.
+ * Anything not set falls back to the defaults here.
+ *
+ * Buffer sizes of 0 mean leave it to the os.
+ */
+@Slf4j
+@Singleton
+@Getter
+public class ServerConfig
+{
+	public static final String CONFIG_FILE = "httptest.config";
+
+	public static final String PORT = "httptest.port";
+	public static final String BACKLOG = "httptest.backlog";
+	public static final String TCP_NODELAY = "httptest.tcp.nodelay";
+	public static final String SEND_BUFFER_SIZE = "httptest.so.sndbuf";
+	public static final String RECEIVE_BUFFER_SIZE = "httptest.so.rcvbuf";
+	public static final String SOCKET_TIMEOUT = "httptest.socket.timeout";
+	public static final String KEEP_ALIVE_TIMEOUT = "httptest.keepalive.timeout";
+	public static final String RESPONSE_BUFFER_SIZE = "httptest.response.buffer";
+	public static final String REQUEST_BUFFER_SIZE = "httptest.request.buffer";
+	public static final String ACCEPTORS = "httptest.acceptors";
+	public static final String MAX_EMPTY_LINES_BEFORE_RURI = "httptest.parser.max.empty.lines";
+	public static final String RETRY_AFTER = "httptest.retry.after";
+	public static final String INLINE_ENABLED = "httptest.inline.enabled";
+	public static final String INLINE_MAX_BYTES = "httptest.inline.max.bytes";
+	public static final String PIPELINING_ENABLED = "httptest.pipelining.enabled";
+	public static final String PUT_ENABLED = "httptest.put.enabled";
+	public static final String PUT_MAX_BYTES = "httptest.put.max.bytes";
+	public static final String CONTENT_ROOT = "httptest.content.root";
+	public static final String STAGE_REUSE = "httptest.stages.reuse";
+	public static final String SENDFILE_ENABLED = "httptest.sendfile.enabled";
+	public static final String CACHE_MAX_BYTES = "httptest.cache.max.bytes";
+	public static final String CACHE_MAX_ENTRY_BYTES = "httptest.cache.max.entry.bytes";
+	public static final String MMAP_MIN_BYTES = "httptest.mmap.min.bytes";
+	public static final String MMAP_MAX_BYTES = "httptest.mmap.max.bytes";
+	public static final String GZIP_ENABLED = "httptest.gzip.enabled";
+	public static final String GZIP_MIN_BYTES = "httptest.gzip.min.bytes";
+	public static final String GZIP_MAX_BYTES = "httptest.gzip.max.bytes";
+	public static final String GZIP_CACHE_MAX_BYTES = "httptest.gzip.cache.max.bytes";
+
+	public static final String EXECUTOR_MODE = "httptest.executors.mode";
+	public static final String SERVER_POOL_THREADS = "httptest.executors.server.threads";
+	public static final String SERVER_POOL_QUEUE = "httptest.executors.server.queue";
+	public static final String DEFAULT_POOL_THREADS = "httptest.executors.default.threads";
+	public static final String DEFAULT_POOL_QUEUE = "httptest.executors.default.queue";
+	public static final String REJECTION_POLICY = "httptest.executors.rejection";
+
+	public static final String SHARDS = "httptest.shards";
+	public static final String THREADS_PER_SHARD = "httptest.shard.threads";
+	public static final String SHARD_QUEUE = "httptest.shard.queue";
+
+	public static final String LIMITER_ENABLED = "httptest.limiter.enabled";
+	public static final String LIMITER_INITIAL = "httptest.limiter.initial";
+	public static final String LIMITER_MIN = "httptest.limiter.min";
+	public static final String LIMITER_MAX = "httptest.limiter.max";
+
+	public static final String METRICS_INSTRUMENTATION = "httptest.metrics.instrumentation";
+	public static final String METRICS_SAMPLE_EVERY = "httptest.metrics.sample.every";
+
+	private final int port;
+
+	/**
+	 * Length of the listen queue. 0 takes the jvm default.
+	 */
+	private final int backlog;
+
+	private final boolean tcpNoDelay;
+
+	private final int sendBufferSize;
+
+	private final int receiveBufferSize;
+
+	private final int socketTimeoutMillis;
+
+	/**
+	 * How long a connection may sit between requests, or before its first one, when it is held by a selector.
+	 */
+	private final int keepAliveTimeoutMillis;
+
+	//4096 is generally a good size for data traversing the internet. IF this were local, we might want something bigger.
+	private final int responseBufferSize;
+
+	/**
+	 * Per connection read buffer for the byte level parser. A request head has to fit in it.
+	 */
+	private final int requestBufferSize;
+
+	/**
+	 * Number of blocking acceptors. A production instance really shouldn't need more than 2 unless something is wrong with the handoff to the executor service.
+	 */
+	private final int acceptors;
+
+	private final int maxEmptyLinesBeforeRuri;
+
+	private final int retryAfterSeconds;
+
+	/**
+	 * Lets the parser run cheap requests itself instead of handing them to the application pool.
+	 */
+	private final boolean inlineEnabled;
+
+	/**
+	 * Largest file that still counts as cheap enough to serve on the parser's thread.
+	 */
+	private final int inlineMaxBytes;
+
+	/**
+	 * Lets requests the client has already sent be worked through back to back, with their responses held
+	 * until there's nothing left to answer. Off, every response is flushed as soon as it's written.
+	 */
+	private final boolean pipeliningEnabled;
+
+	/**
+	 * Lets clients PUT files, or POST them as multipart/form-data, into the content root. Off unless asked for, since
+	 * anyone who can reach the port can write.
+	 */
+	private final boolean putEnabled;
+
+	/**
+	 * Largest upload accepted, or largest file in a form post. Bigger ones get a 413.
+	 */
+	private final long putMaxBytes;
+
+	/**
+	 * Directory files are served from and uploaded into. Defaults to the wwwroot directory on the classpath.
+	 */
+	private final String contentRoot;
+
+	/**
+	 * Keeps each connection's pipeline stages for its later requests, rather than having the injector make new ones every time.
+	 */
+	private final boolean stageReuseEnabled;
+
+	/**
+	 * Sends files bigger than the response buffer with FileChannel.transferTo, straight from the page cache to the socket.
+	 */
+	private final boolean sendfileEnabled;
+
+	/**
+	 * Direct memory the static content cache may hold, headers included. 0 turns it off.
+	 */
+	private final long cacheMaxBytes;
+
+	/**
+	 * Largest file the static content cache takes. Bigger ones go with sendfile anyway.
+	 */
+	private final int cacheMaxEntryBytes;
+
+	/**
+	 * Files at least this big are served from a shared memory mapping. 0, the default, leaves them to sendfile.
+	 */
+	private final long mmapMinBytes;
+
+	/**
+	 * How much the mapped files may add up to before the least recently used are unmapped.
+	 */
+	private final long mmapMaxBytes;
+
+	/**
+	 * Sends a gzipped response to clients that accept one, from a .gz file next to the one asked for if there is one.
+	 */
+	private final boolean gzipEnabled;
+
+	/**
+	 * Smaller responses aren't worth compressing. The gzip header and trailer alone are 18 bytes.
+	 */
+	private final int gzipMinBytes;
+
+	/**
+	 * Largest file compressed on the fly. Bigger ones are only sent gzipped when there's a .gz of them.
+	 */
+	private final long gzipMaxBytes;
+
+	/**
+	 * Heap the compressed copies of files may take. 0 compresses files for every request instead.
+	 */
+	private final long gzipCacheMaxBytes;
+
+	private final Mode executorMode;
+
+	//the acceptors and selector loops have a pool of their own, so both bounded pools default to the same size.
+	private final PoolSettings serverPoolSettings;
+
+	private final PoolSettings defaultPoolSettings;
+
+	private final RejectionPolicy rejectionPolicy;
+
+	private final int shards;
+
+	private final int threadsPerShard;
+
+	/**
+	 * Work each shard's pool will queue before its connections are shed. 0 hands off directly to a thread or sheds.
+	 */
+	private final int shardQueueSize;
+
+	private final boolean limiterEnabled;
+
+	private final int limiterInitial;
+
+	private final int limiterMin;
+
+	private final int limiterMax;
+
+	private final Instrumentation metricsInstrumentation;
+
+	/**
+	 * Striped instrumentation times one call in this many, picked at random. Every call is still counted.
+	 */
+	private final int metricsSampleEvery;
+
+	/**
+	 * Every value above, keyed by its property name, as it was resolved.
+	 */
+	private final Map<String, String> effectiveValues;
+
+	public ServerConfig()
+	{
+		this(loadProperties());
+	}
+
+	public ServerConfig(Properties properties)
+	{
+		Map<String, String> effective = Maps.newHashMap();
+		port = getInt(properties, effective, PORT, 8080);
+		backlog = getInt(properties, effective, BACKLOG, 0);
+		tcpNoDelay = getBoolean(properties, effective, TCP_NODELAY, false);
+		sendBufferSize = getInt(properties, effective, SEND_BUFFER_SIZE, 0);
+		receiveBufferSize = getInt(properties, effective, RECEIVE_BUFFER_SIZE, 0);
+		socketTimeoutMillis = getInt(properties, effective, SOCKET_TIMEOUT, 10000);
+		keepAliveTimeoutMillis = getInt(properties, effective, KEEP_ALIVE_TIMEOUT, socketTimeoutMillis);
+		responseBufferSize = getInt(properties, effective, RESPONSE_BUFFER_SIZE, 4096);
+		requestBufferSize = getInt(properties, effective, REQUEST_BUFFER_SIZE, 8192);
+		acceptors = getInt(properties, effective, ACCEPTORS, 2);
+		maxEmptyLinesBeforeRuri = getInt(properties, effective, MAX_EMPTY_LINES_BEFORE_RURI, 10);
+		retryAfterSeconds = getInt(properties, effective, RETRY_AFTER, 1);
+		inlineEnabled = getBoolean(properties, effective, INLINE_ENABLED, true);
+		inlineMaxBytes = getInt(properties, effective, INLINE_MAX_BYTES, 65536);
+		pipeliningEnabled = getBoolean(properties, effective, PIPELINING_ENABLED, true);
+		putEnabled = getBoolean(properties, effective, PUT_ENABLED, false);
+		putMaxBytes = getLong(properties, effective, PUT_MAX_BYTES, 1L << 30);
+		contentRoot = getString(properties, effective, CONTENT_ROOT, getClasspathContentRoot());
+		stageReuseEnabled = getBoolean(properties, effective, STAGE_REUSE, true);
+		sendfileEnabled = getBoolean(properties, effective, SENDFILE_ENABLED, true);
+		cacheMaxBytes = getLong(properties, effective, CACHE_MAX_BYTES, 64L << 20);
+		cacheMaxEntryBytes = getInt(properties, effective, CACHE_MAX_ENTRY_BYTES, 65536);
+		mmapMinBytes = getLong(properties, effective, MMAP_MIN_BYTES, 0);
+		mmapMaxBytes = getLong(properties, effective, MMAP_MAX_BYTES, 4L << 30);
+		gzipEnabled = getBoolean(properties, effective, GZIP_ENABLED, true);
+		gzipMinBytes = getInt(properties, effective, GZIP_MIN_BYTES, 256);
+		gzipMaxBytes = getLong(properties, effective, GZIP_MAX_BYTES, 1L << 20);
+		gzipCacheMaxBytes = getLong(properties, effective, GZIP_CACHE_MAX_BYTES, 16L << 20);
+
+		executorMode = Mode.valueOf(getString(properties, effective, EXECUTOR_MODE, Mode.CACHED.name()).toUpperCase());
+		serverPoolSettings = new PoolSettings(getInt(properties, effective, SERVER_POOL_THREADS, 128), getInt(properties, effective, SERVER_POOL_QUEUE, 1024));
+		defaultPoolSettings = new PoolSettings(getInt(properties, effective, DEFAULT_POOL_THREADS, 128), getInt(properties, effective, DEFAULT_POOL_QUEUE, 1024));
+		rejectionPolicy = RejectionPolicy.valueOf(getString(properties, effective, REJECTION_POLICY, RejectionPolicy.ABORT.name()).toUpperCase());
+
+		shards = getInt(properties, effective, SHARDS, Runtime.getRuntime().availableProcessors());
+		threadsPerShard = getInt(properties, effective, THREADS_PER_SHARD, 4);
+		shardQueueSize = getInt(properties, effective, SHARD_QUEUE, 1024);
+
+		limiterEnabled = getBoolean(properties, effective, LIMITER_ENABLED, false);
+		limiterInitial = getInt(properties, effective, LIMITER_INITIAL, 20);
+		limiterMin = getInt(properties, effective, LIMITER_MIN, 4);
+		limiterMax = getInt(properties, effective, LIMITER_MAX, 1000);
+
+		metricsInstrumentation = Instrumentation.valueOf(getString(properties, effective, METRICS_INSTRUMENTATION, Instrumentation.CODAHALE.name()).toUpperCase());
+		metricsSampleEvery = Math.max(1, getInt(properties, effective, METRICS_SAMPLE_EVERY, 1));
+
+		effectiveValues = ImmutableSortedMap.copyOf(effective);
+	}
+
+	/**
+	 * The file named by httptest.config, with the system properties laid over the top.
+	 */
+	public static Properties loadProperties()
+	{
+		Properties rv = new Properties();
+		String file = System.getProperty(CONFIG_FILE);
+		if(!Strings.isNullOrEmpty(file))
+		{
+			try(InputStream in = new FileInputStream(file))
+			{
+				rv.load(in);
+			}
+			catch(IOException e)
+			{
+				throw new RuntimeException("Unable to read config file " + file, e);
+			}
+		}
+		rv.putAll(System.getProperties());
+		return rv;
+	}
+
+	/**
+	 * Applies the per connection options to a socket that was just accepted.
+	 */
+	public void configureAcceptedSocket(Socket s) throws SocketException
+	{
+		s.setSoTimeout(socketTimeoutMillis);
+		s.setTcpNoDelay(tcpNoDelay);
+		if(sendBufferSize > 0)
+			s.setSendBufferSize(sendBufferSize);
+		if(receiveBufferSize > 0)
+			s.setReceiveBufferSize(receiveBufferSize);
+	}
+
+	/**
+	 * Logged once at startup so there's a record of what a host was actually running with.
+	 */
+	public void logEffectiveValues()
+	{
+		for(Map.Entry<String, String> entry : effectiveValues.entrySet())
+			log.info("{}={}", entry.getKey(), entry.getValue());
+	}
+
+	private static String getClasspathContentRoot()
+	{
+		URL wwwroot = ServerConfig.class.getClassLoader().getResource("wwwroot");
+		return wwwroot == null ? "" : wwwroot.getFile();
+	}
+
+	private static String getString(Properties properties, Map<String, String> effective, String key, String defaultValue)
+	{
+		String rv = properties.getProperty(key);
+		if(Strings.isNullOrEmpty(rv))
+			rv = defaultValue;
+		rv = rv.trim();
+		effective.put(key, rv);
+		return rv;
+	}
+
+	private static int getInt(Properties properties, Map<String, String> effective, String key, int defaultValue)
+	{
+		String value = getString(properties, effective, key, Integer.toString(defaultValue));
+		try
+		{
+			return Integer.parseInt(value);
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IllegalArgumentException(key + " must be a number, not " + value, e);
+		}
+	}
+
+	private static long getLong(Properties properties, Map<String, String> effective, String key, long defaultValue)
+	{
+		String value = getString(properties, effective, key, Long.toString(defaultValue));
+		try
+		{
+			return Long.parseLong(value);
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IllegalArgumentException(key + " must be a number, not " + value, e);
+		}
+	}
+
+	private static boolean getBoolean(Properties properties, Map<String, String> effective, String key, boolean defaultValue)
+	{
+		return Boolean.parseBoolean(getString(properties, effective, key, Boolean.toString(defaultValue)));
+	}
+}
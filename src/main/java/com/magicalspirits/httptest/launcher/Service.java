@@ -39,7 +39,8 @@ public class Service
 			modules.add(new Jsr250Module());
 			
 			modules.add(new MainlineModule());
-			modules.add(new MetricsModule());
+			//the same system properties and file as the ServerConfig the injector makes, so -D picks the instrumentation.
+			modules.add(new MetricsModule(new ServerConfig()));
 			modules.add(new ExecutorsModule());
 		}
 	
@@ -0,0 +1,230 @@
+package com.magicalspirits.httptest.launcher;
+
+import java.io.IOException;
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import com.magicalspirits.httptest.acceptor.Acceptor;
+import com.magicalspirits.httptest.acceptor.AcceptorService;
+import com.magicalspirits.httptest.acceptor.LoadShedder;
+import com.magicalspirits.httptest.acceptor.SelectorAcceptor;
+import com.magicalspirits.httptest.acceptor.SocketRunner;
+import com.magicalspirits.httptest.httpapplication.ApplicationRunner;
+import com.magicalspirits.httptest.httpapplication.ContentHashes;
+import com.magicalspirits.httptest.httpapplication.Router;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpHeaderParser;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.magicalspirits.httptest.thirdparty.InstrumentedExecutorService;
+
+/**
+ * Like the {@link ReactorModule}, but opens one listening socket per shard on the same port using SO_REUSEPORT.
+ * The kernel spreads incoming connections across the listeners, so the shards never contend on a single accept queue.
+ * Each shard has its own {@link SelectorAcceptor} and its own bounded pool, which runs the parser and the application
+ * for every request on the connections it accepts, kept alive ones included. A shard whose pool is full sheds, see
+ * {@link LoadShedder}.
+ *
+ * Shard count defaults to the number of cores, and can be set with httptest.shards, see {@link ServerConfig}.
+ * If the JVM or OS doesn't support SO_REUSEPORT, this falls back to a single shard.
+ */
+@Slf4j
+public class ShardedReactorModule extends AbstractModule
+{
+	private MainlineModule mmm = new MainlineModule(); //reference for delegation
+
+	@Override
+	protected void configure()
+	{
+		bind(SocketRunner.class).to(HttpRequestParser.class);
+		bind(AcceptorService.class).asEagerSingleton();
+		bind(ApplicationRunner.class).to(Router.class);
+		MainlineModule.bindRoutes(binder(), ServeHttpFile.class);
+		bind(ContentHashes.class).asEagerSingleton(); //hashes the content root while the server starts.
+		bind(ShardPools.class).asEagerSingleton();
+	}
+
+	@Provides
+	@Singleton
+	public List<ServerSocketChannel> getShardChannels(ServerConfig config)
+	{
+		List<ServerSocketChannel> rv = Lists.newArrayList();
+		try
+		{
+			SocketOption<Boolean> reusePort = getReusePortOption();
+			int boundPort = config.getPort();
+			for(int i = 0; i < config.getShards(); i++)
+			{
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				if(reusePort == null || !channel.supportedOptions().contains(reusePort))
+				{
+					if(i == 0)
+						log.warn("SO_REUSEPORT isn't supported here, running a single shard");
+					channel.close();
+					break;
+				}
+				channel.setOption(reusePort, true);
+				MainlineModule.bindServerChannel(channel, boundPort, config);
+				//if we were asked for any port, every other shard has to land on the one the first shard got.
+				boundPort = channel.socket().getLocalPort();
+				rv.add(channel);
+			}
+			if(rv.isEmpty())
+			{
+				rv.add(MainlineModule.bindServerChannel(ServerSocketChannel.open(), config.getPort(), config));
+			}
+			return rv;
+		}
+		catch (IOException e)
+		{
+			log.error("Unable to open shard server socket channels", e);
+			System.exit(1);
+			return null; //for the compiler.
+		}
+	}
+
+	/**
+	 * The shards own the channels, this is only here for things that want to know the local port.
+	 */
+	@Provides
+	@Singleton
+	public ServerSocket getServerSocket(List<ServerSocketChannel> channels)
+	{
+		return channels.get(0).socket();
+	}
+
+	/**
+	 * This supplier is guaranteed to always return a new instance.
+	 */
+	@Provides
+	public Supplier<SocketRunner> getSocketRunnerSupplier(final Injector i)
+	{
+		return mmm.getSocketRunnerSupplier(i);
+	}
+
+	/**
+	 * This supplier is guaranteed to always return a new instance.
+	 */
+	@Provides
+	public Supplier<HttpHeaderParser> getHeaderParser(final Injector i)
+	{
+		return mmm.getHeaderParser(i);
+	}
+
+	/**
+	 * This supplier is guaranteed to always return a new instance.
+	 */
+	@Provides
+	public Supplier<ApplicationRunner> getApplicationRunner(final Injector i)
+	{
+		return mmm.getApplicationRunner(i);
+	}
+
+	@Provides
+	@Singleton
+	public List<Acceptor> getAcceptors(List<ServerSocketChannel> channels, Provider<SelectorAcceptor> acceptorProvider, ShardPools pools, ServerConfig config)
+	{
+		List<Acceptor> rv = Lists.newArrayList();
+		for(int i = 0; i < channels.size(); i++)
+		{
+			String name = "shard-" + i;
+			SelectorAcceptor acceptor = acceptorProvider.get();
+			acceptor.setName(name);
+			acceptor.setServerChannel(channels.get(i));
+			acceptor.setDispatchPool(pools.create(name, config.getThreadsPerShard(), config.getShardQueueSize()));
+			rv.add(acceptor);
+		}
+		return rv;
+	}
+
+	@Provides
+	@Singleton
+	public Map<String, String> getMimeTypeRegistry()
+	{
+		return mmm.getMimeTypeRegistry();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePortOption()
+	{
+		//SO_REUSEPORT only showed up in StandardSocketOptions in java 9, and we still build for 8.
+		try
+		{
+			return (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		}
+		catch(ReflectiveOperationException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Owns the per shard pools so they get shut down along with the rest of the executors.
+	 */
+	public static class ShardPools
+	{
+		@Inject
+		private MetricRegistry registry;
+
+		@Inject
+		private UncaughtExceptionHandler uncaughtExceptionHandler;
+
+		private final List<ExecutorService> pools = Lists.newCopyOnWriteArrayList();
+
+		public ExecutorService create(String name, int threads, int queueSize)
+		{
+			//Fixed size on purpose. Connections only get here once they are readable, so the work is short, and
+			// the queue depth tells us when a shard is falling behind. Once the queue is full the pool rejects, and
+			// the acceptor or parker sheds the connection rather than letting the backlog grow without limit.
+			final BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>();
+			final Meter rejected = registry.meter(MetricRegistry.name(name, "rejected"));
+			final ThreadPoolExecutor tpe = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue,
+					new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true)
+						.setUncaughtExceptionHandler(uncaughtExceptionHandler).build(),
+					(r, executor) ->
+					{
+						rejected.mark();
+						throw new RejectedExecutionException("Shard " + name + " is full");
+					});
+			MetricsModule.replace(registry, MetricRegistry.name(name, "queue-depth"), (Gauge<Integer>) () -> queue.size());
+			ExecutorService es = new InstrumentedExecutorService(tpe, registry, name);
+			pools.add(es);
+			return es;
+		}
+
+		@PreDestroy
+		public void shutdown()
+		{
+			for(ExecutorService es : pools)
+				es.shutdown();
+		}
+	}
+}
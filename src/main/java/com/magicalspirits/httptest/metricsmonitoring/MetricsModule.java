@@ -21,14 +21,56 @@ import com.codahale.metrics.jvm.ThreadStatesGaugeSet;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
+import com.google.inject.matcher.Matchers;
+import com.magicalspirits.httptest.launcher.ServerConfig;
 import com.palominolabs.metrics.guice.MetricsInstrumentationModule;
 
 @Slf4j
 public class MetricsModule extends MetricsInstrumentationModule 
 {
+	/**
+	 * How @Metered, @Timed and @ExceptionMetered methods are measured.
+	 */
+	public static enum Instrumentation
+	{
+		/**
+		 * Codahale meters and timers, with their moving averages and decaying reservoirs updated on every call.
+		 */
+		CODAHALE,
+		/**
+		 * Striped counters, and timers that only time a sample of calls. Nothing is added up until the metrics are read.
+		 */
+		STRIPED,
+		/**
+		 * No per call metrics at all.
+		 */
+		NONE
+	}
+
 	private static MetricRegistry registry;
 
+	private final Instrumentation instrumentation;
+
+	private final int sampleEvery;
+
+	/**
+	 * Codahale meters and timers, whatever the ServerConfig bound in the injector says.
+	 */
 	public MetricsModule() 
+	{
+		this(Instrumentation.CODAHALE, 1);
+	}
+
+	/**
+	 * Interceptors are bound as the injector is created, before it can provide anything, so this has to be given the
+	 * same config the injector binds.
+	 */
+	public MetricsModule(ServerConfig config) 
+	{
+		this(config.getMetricsInstrumentation(), config.getMetricsSampleEvery());
+	}
+
+	private MetricsModule(Instrumentation instrumentation, int sampleEvery) 
 	{
 		super(MetricsModule.createMetricRegistry());
 		//this is quite crazy, but the MetricsInstrumentationModule stores the registry in a private
@@ -36,6 +78,17 @@ public class MetricsModule extends MetricsInstrumentationModule
 		// a binding.
 		// There should only be one of these app wide in my app, so I am storing it in a static variable and using it in the provides
 		// I'm going to submit a pull request against the codahale subproject for this nonsense later.
+		this.instrumentation = instrumentation;
+		this.sampleEvery = sampleEvery;
+	}
+
+	@Override
+	protected void configure()
+	{
+		if(instrumentation == Instrumentation.CODAHALE)
+			super.configure();
+		else if(instrumentation == Instrumentation.STRIPED)
+			bindListener(Matchers.any(), new StripedMetricsListener(registry, sampleEvery));
 	}
 
 	protected synchronized static MetricRegistry createMetricRegistry()
@@ -85,7 +138,25 @@ public class MetricsModule extends MetricsInstrumentationModule
 	{
 		return registry;
 	}
-	
+
+	/**
+	 * Registers the metric in place of anything already under its name. The registry is static and outlives injectors,
+	 * so a gauge left there by an older instance would otherwise still be read, or be in the way of the new one.
+	 * @return the metric passed in.
+	 */
+	public static <T extends Metric> T replace(MetricRegistry mr, String name, T metric)
+	{
+		mr.remove(name);
+		return mr.register(name, metric);
+	}
+
+	/**
+	 * {@link #replace(MetricRegistry, String, Metric)}, named under the class that owns the metric.
+	 */
+	public static <T extends Metric> T replace(MetricRegistry mr, Class<?> owner, String name, T metric)
+	{
+		return replace(mr, MetricRegistry.name(owner, name), metric);
+	}
 
 	private static void registerAll(String prefix, MetricSet ms, MetricRegistry mr) 
 	{
@@ -0,0 +1,119 @@
+package com.magicalspirits.httptest.metricsmonitoring;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import lombok.RequiredArgsConstructor;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.annotation.ExceptionMetered;
+import com.codahale.metrics.annotation.Metered;
+import com.codahale.metrics.annotation.Timed;
+import com.google.inject.TypeLiteral;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.spi.TypeEncounter;
+import com.google.inject.spi.TypeListener;
+
+/**
+ * Stands in for the codahale interceptors. Each @Metered, @Timed and @ExceptionMetered method gets one interceptor,
+ * however many of them it has, which counts calls and exceptions into striped Counters and times a sample of calls
+ * into a StripedTimer. The metrics are named like the codahale interceptors name theirs, with .striped on the end,
+ * since the registry outlives injectors and a codahale injector made after this one can't have a meter or timer
+ * where one of these is.
+ */
+@RequiredArgsConstructor
+public class StripedMetricsListener implements TypeListener
+{
+	public static final String STRIPED = "striped";
+
+	private final MetricRegistry registry;
+
+	private final int sampleEvery;
+
+	@Override
+	public <I> void hear(TypeLiteral<I> literal, TypeEncounter<I> encounter)
+	{
+		for(Class<?> type = literal.getRawType(); type != null; type = type.getSuperclass())
+		{
+			for(Method method : type.getDeclaredMethods())
+			{
+				//guice can't intercept these anyway.
+				if(method.isSynthetic() || Modifier.isPrivate(method.getModifiers()))
+					continue;
+				Metered metered = method.getAnnotation(Metered.class);
+				Timed timed = method.getAnnotation(Timed.class);
+				ExceptionMetered exceptionMetered = method.getAnnotation(ExceptionMetered.class);
+				if(metered == null && timed == null && exceptionMetered == null)
+					continue;
+				encounter.bindInterceptor(Matchers.only(method), new StripedInterceptor(
+						metered == null ? null : getCounter(name(method, metered.name(), metered.absolute(), "meter")),
+						timed == null ? null : getTimer(name(method, timed.name(), timed.absolute(), "timer")),
+						exceptionMetered == null ? null : getCounter(name(method, exceptionMetered.name(), exceptionMetered.absolute(), "exceptions")),
+						exceptionMetered == null ? null : exceptionMetered.cause()));
+			}
+		}
+	}
+
+	private static String name(Method method, String name, boolean absolute, String suffix)
+	{
+		if(absolute)
+			return MetricRegistry.name(name, STRIPED);
+		if(name.isEmpty())
+			return MetricRegistry.name(method.getDeclaringClass(), method.getName(), suffix, STRIPED);
+		return MetricRegistry.name(method.getDeclaringClass(), name, STRIPED);
+	}
+
+	private Counter getCounter(String name)
+	{
+		return registry.counter(name);
+	}
+
+	private StripedTimer getTimer(String name)
+	{
+		Metric existing = registry.getMetrics().get(name);
+		if(existing instanceof StripedTimer)
+			return (StripedTimer)existing;
+		return registry.register(name, new StripedTimer(sampleEvery));
+	}
+
+	@RequiredArgsConstructor
+	private static class StripedInterceptor implements MethodInterceptor
+	{
+		private final Counter calls;
+
+		private final StripedTimer timer;
+
+		private final Counter exceptions;
+
+		private final Class<? extends Throwable> cause;
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable
+		{
+			if(calls != null)
+				calls.inc();
+			boolean timed = timer != null && timer.sample();
+			long start = timed ? System.nanoTime() : 0;
+			try
+			{
+				return invocation.proceed();
+			}
+			catch(Throwable t)
+			{
+				if(exceptions != null && cause.isInstance(t))
+					exceptions.inc();
+				throw t;
+			}
+			finally
+			{
+				if(timed)
+					timer.update(System.nanoTime() - start);
+			}
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.magicalspirits.httptest.metricsmonitoring;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.codahale.metrics.Gauge;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * A timer that's cheap enough to leave on every request. Calls are added into striped sums, so threads timing at
+ * the same moment don't fight over one cache line, and only a random one in sampleEvery calls is timed at all.
+ * There's no reservoir and no moving average, so no percentiles either. The sums are put together when the value is read.
+ *
+ * The max is of the calls in the last one to two minutes. It's kept for each minute, and the minute before the current one
+ * is reported along with it, so it never drops to nothing just after a minute starts. Reading it changes nothing, so
+ * any number of readers see the same max.
+ *
+ * It's read as a gauge, so it shows up with the gauges in the metrics json.
+ */
+public class StripedTimer implements Gauge<Map<String, Number>>
+{
+	private final int sampleEvery;
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder totalNanos = new LongAdder();
+
+	private static final long MAX_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	//the max of two windows, the current one and the one before, each in the slot of its number's parity.
+	private final LongAccumulator[] maxNanos = { new LongAccumulator(Math::max, 0), new LongAccumulator(Math::max, 0) };
+
+	//which window each slot holds.
+	private final AtomicLongArray maxWindows = new AtomicLongArray(2);
+
+	public StripedTimer(int sampleEvery)
+	{
+		this.sampleEvery = sampleEvery;
+	}
+
+	/**
+	 * @return true if this call should be timed.
+	 */
+	public boolean sample()
+	{
+		return sampleEvery <= 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+	}
+
+	public void update(long nanos)
+	{
+		count.increment();
+		totalNanos.add(nanos);
+		long window = System.nanoTime() / MAX_WINDOW_NANOS;
+		int slot = (int)(window & 1);
+		long held = maxWindows.get(slot);
+		//the first call of a new window clears out the one from two windows ago.
+		//Note: A call still going into the old window as it's cleared can be lost, which only matters for a max on the boundary.
+		if(held != window && maxWindows.compareAndSet(slot, held, window))
+			maxNanos[slot].reset();
+		maxNanos[slot].accumulate(nanos);
+	}
+
+	/**
+	 * @return the longest call in the current window and the one before it.
+	 */
+	private long getMaxNanos()
+	{
+		long window = System.nanoTime() / MAX_WINDOW_NANOS;
+		long rv = 0;
+		for(int slot = 0; slot < 2; slot++)
+		{
+			if(window - maxWindows.get(slot) <= 1)
+				rv = Math.max(rv, maxNanos[slot].get());
+		}
+		return rv;
+	}
+
+	@Override
+	public Map<String, Number> getValue()
+	{
+		long timed = count.sum();
+		double total = totalNanos.sum();
+		return ImmutableMap.<String, Number>of(
+				"sampled", timed,
+				"sample-every", sampleEvery,
+				"mean-micros", timed == 0 ? 0 : total / timed / TimeUnit.MICROSECONDS.toNanos(1),
+				"max-micros", getMaxNanos() / (double)TimeUnit.MICROSECONDS.toNanos(1));
+	}
+}
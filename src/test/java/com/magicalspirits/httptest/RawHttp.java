@@ -0,0 +1,159 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+import com.magicalspirits.httptest.httpapplication.ContentHashes;
+
+/**
+ * Requests over a plain socket, for tests that have to see the status, headers, chunks and trailers exactly as the
+ * server sent them, which HttpURLConnection hides.
+ */
+public class RawHttp
+{
+	/**
+	 * GET on a connection of its own, which the server is asked to close once it has answered.
+	 */
+	public static Response get(int port, String path, String... requestHeaders) throws IOException
+	{
+		try(Socket s = new Socket("localhost", port))
+		{
+			send(s, path, requestHeaders, "Connection: close");
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			Response response = read(in);
+			//a response without a length, like a 304, runs to the end of the connection.
+			if(response.body == null)
+				response.body = ByteStreams.toByteArray(in);
+			assertEquals(-1, in.read());
+			return response;
+		}
+	}
+
+	/**
+	 * GET on a connection that is kept alive, so the response has to say where it ends.
+	 */
+	public static Response get(Socket s, DataInputStream in, String path, String... requestHeaders) throws IOException
+	{
+		send(s, path, requestHeaders);
+		return readResponse(in);
+	}
+
+	/**
+	 * The next response on a connection that is kept alive, for tests that write their requests themselves.
+	 */
+	public static Response readResponse(DataInputStream in) throws IOException
+	{
+		Response response = read(in);
+		if(response.body == null)
+			response.body = new byte[0];
+		return response;
+	}
+
+	/**
+	 * The body of the next response, which has to have the status given.
+	 */
+	public static byte[] readBody(DataInputStream in, int expectedCode) throws IOException
+	{
+		Response response = readResponse(in);
+		assertEquals(expectedCode, response.code);
+		return response.body;
+	}
+
+	/**
+	 * {@link #readBody(DataInputStream, int)}, as utf-8 text.
+	 */
+	public static String readText(DataInputStream in, int expectedCode) throws IOException
+	{
+		return new String(readBody(in, expectedCode), Charsets.UTF_8);
+	}
+
+	/**
+	 * The startup scan hashes on its own pool, so a file's entity tag may not be there for the first few requests.
+	 */
+	public static String awaitETag(ContentHashes contentHashes, File file)
+	{
+		long deadline = System.currentTimeMillis() + 5000;
+		String etag;
+		while((etag = contentHashes.getETag(file)) == null && System.currentTimeMillis() < deadline)
+			Thread.yield();
+		assertNotNull(etag);
+		return etag;
+	}
+
+	private static void send(Socket s, String path, String[] requestHeaders, String... moreHeaders) throws IOException
+	{
+		StringBuilder request = new StringBuilder("GET " + path + " HTTP/1.1\r\n");
+		for(String header : moreHeaders)
+			request.append(header).append("\r\n");
+		for(String header : requestHeaders)
+			request.append(header).append("\r\n");
+		OutputStream out = s.getOutputStream();
+		out.write(request.append("\r\n").toString().getBytes(Charsets.ISO_8859_1));
+		out.flush();
+	}
+
+	/**
+	 * Reads the status, the headers and, if the response says how long it is, the body. The body is left null otherwise.
+	 */
+	@SuppressWarnings("deprecation")
+	private static Response read(DataInputStream in) throws IOException
+	{
+		Response response = new Response();
+		response.code = Integer.parseInt(in.readLine().split(" ")[1]);
+		readFields(in, response.headers);
+		if(!"chunked".equals(response.headers.get(HttpHeaders.TRANSFER_ENCODING)))
+		{
+			String length = response.headers.get(HttpHeaders.CONTENT_LENGTH);
+			if(length != null)
+			{
+				response.body = new byte[Integer.parseInt(length)];
+				in.readFully(response.body);
+			}
+			return response;
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		for(int size = Integer.parseInt(in.readLine(), 16); size > 0; size = Integer.parseInt(in.readLine(), 16))
+		{
+			byte[] chunk = new byte[size];
+			in.readFully(chunk);
+			body.write(chunk);
+			assertEquals("", in.readLine());
+			response.largestChunk = Math.max(response.largestChunk, size);
+		}
+		readFields(in, response.trailers);
+		response.body = body.toByteArray();
+		return response;
+	}
+
+	@SuppressWarnings("deprecation")
+	private static void readFields(DataInputStream in, Map<String, String> fields) throws IOException
+	{
+		for(String field = in.readLine(); !field.isEmpty(); field = in.readLine())
+			fields.put(field.substring(0, field.indexOf(':')), field.substring(field.indexOf(':') + 1).trim());
+	}
+
+	public static class Response
+	{
+		int code;
+
+		final Map<String, String> headers = Maps.newHashMap();
+
+		final Map<String, String> trailers = Maps.newHashMap();
+
+		byte[] body;
+
+		int largestChunk;
+	}
+}
@@ -4,11 +4,13 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.DataInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URL;
 import java.util.List;
 import java.util.Optional;
@@ -23,12 +25,16 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import com.google.common.io.Resources;
 import com.google.inject.Guice;
-import com.magicalspirits.httptest.acceptor.ServerSocketAcceptor;
+import com.magicalspirits.httptest.acceptor.ConnectionMetrics;
+import com.magicalspirits.httptest.acceptor.HttpConnection.CloseReason;
+import com.magicalspirits.httptest.acceptor.IdleConnectionParker;
 import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
 import com.magicalspirits.httptest.httpparser.HttpRuriParser;
 import com.magicalspirits.httptest.launcher.ExecutorsModule;
@@ -76,11 +82,15 @@ public class SystemTest
 	@Test
 	public void testBinaryData() throws IOException
 	{
+		ConnectionMetrics connectionMetrics = i.getInstance(ConnectionMetrics.class);
+		long sendfileBefore = connectionMetrics.getBytesSendfileCount();
 		byte[] fromServer = Resources.toByteArray(new URL("http://localhost:" + port + "/binarydata.bin"));
 		
 		byte[] fromLocal = Resources.toByteArray(Resources.getResource("wwwroot/binarydata.bin"));
 		
 		assertArrayEquals(fromLocal, fromServer);
+		//it's bigger than the response buffer, so it went with transferTo rather than through the heap.
+		assertEquals(sendfileBefore + fromLocal.length, connectionMetrics.getBytesSendfileCount());
 	}
 	
 	
@@ -148,7 +158,8 @@ public class SystemTest
 	{
 		String fromLocal = Resources.toString(Resources.getResource("wwwroot/testfile1.txt"), Charsets.UTF_8);
 
-		int expectedConnections = ServerSocketAcceptor.getNumberOfSocketsAccepted() + 1;
+		ConnectionMetrics connectionMetrics = i.getInstance(ConnectionMetrics.class);
+		long expectedConnections = connectionMetrics.getAccepted() + 1;
 		
 		for(int i = 0; i < 5; i++)
 		{
@@ -156,10 +167,55 @@ public class SystemTest
 			String fromServer = CharStreams.toString(new InputStreamReader(connection.getInputStream(), Charsets.UTF_8));
 		
 			assertEquals(fromLocal, fromServer);
-			assertEquals(expectedConnections, ServerSocketAcceptor.getNumberOfSocketsAccepted());
+			assertEquals(expectedConnections, connectionMetrics.getAccepted());
 		}
 	}
 
+	@Test(timeout=5000)
+	public void testIdleKeepAliveIsParked() throws IOException, InterruptedException
+	{
+		String fromLocal = Resources.toString(Resources.getResource("wwwroot/testfile1.txt"), Charsets.UTF_8);
+		Meter parks = i.getInstance(MetricRegistry.class).meter(MetricRegistry.name(IdleConnectionParker.class, "parks"));
+
+		try(Socket s = new Socket("localhost", port))
+		{
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			for(int request = 0; request < 2; request++)
+			{
+				long parksBefore = parks.getCount();
+				s.getOutputStream().write("GET /testfile1.txt HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+				assertEquals(fromLocal, RawHttp.readText(in, 200));
+
+				//once the response is out, the connection should end up parked rather than on a thread
+				while(parks.getCount() <= parksBefore)
+					Thread.sleep(10);
+			}
+		}
+	}
+
+	@Test(timeout=5000)
+	public void testConnectionCloseIsCounted() throws IOException, InterruptedException
+	{
+		String fromLocal = Resources.toString(Resources.getResource("wwwroot/testfile1.txt"), Charsets.UTF_8);
+		ConnectionMetrics connectionMetrics = i.getInstance(ConnectionMetrics.class);
+		long closedBefore = connectionMetrics.getClosed(CloseReason.CONNECTION_CLOSE);
+		long requestsBefore = i.getInstance(MetricRegistry.class).histogram(MetricRegistry.name(ConnectionMetrics.class, "requests-per-connection")).getCount();
+
+		try(Socket s = new Socket("localhost", port))
+		{
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			s.getOutputStream().write("GET /testfile1.txt HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+			assertEquals(fromLocal, RawHttp.readText(in, 200));
+			s.getOutputStream().write("GET /testfile1.txt HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+			assertEquals(fromLocal, RawHttp.readText(in, 200));
+			assertEquals(-1, in.read());
+		}
+
+		while(connectionMetrics.getClosed(CloseReason.CONNECTION_CLOSE) <= closedBefore)
+			Thread.sleep(10);
+		assertTrue(i.getInstance(MetricRegistry.class).histogram(MetricRegistry.name(ConnectionMetrics.class, "requests-per-connection")).getCount() > requestsBefore);
+	}
+
 	@Test(expected=FileNotFoundException.class)
 	public void test404() throws IOException
 	{
@@ -26,6 +26,7 @@ import org.junit.Test;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.google.inject.Guice;
+import com.magicalspirits.httptest.acceptor.HttpConnection;
 import com.magicalspirits.httptest.acceptor.SocketRunner;
 import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
 import com.magicalspirits.httptest.launcher.ExecutorsModule;
@@ -131,7 +132,7 @@ public class TestAcceptor
 		private Socket socket;
 
 		@Setter(onMethod=@__(@Override))
-		private BufferedReader bufferedReader;
+		private HttpConnection connection;
 		
 		@Getter
 		private String text;
@@ -146,7 +147,7 @@ public class TestAcceptor
 		public void run() 
 		{
 			this.run = true;
-			text = bufferedReader.readLine();
+			text = connection.getBufferedReader().readLine();
 			
 			PrintStream ps = new PrintStream(socket.getOutputStream(), true);
 			if(text.equalsIgnoreCase(PING))
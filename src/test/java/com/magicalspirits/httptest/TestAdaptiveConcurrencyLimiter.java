@@ -0,0 +1,120 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.magicalspirits.httptest.httpapplication.AdaptiveConcurrencyLimiter;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+
+public class TestAdaptiveConcurrencyLimiter
+{
+	private static AdaptiveConcurrencyLimiter newLimiter()
+	{
+		return newLimiter(new MetricRegistry());
+	}
+
+	private static AdaptiveConcurrencyLimiter newLimiter(MetricRegistry registry)
+	{
+		Properties properties = new Properties();
+		properties.setProperty(ServerConfig.LIMITER_ENABLED, "true");
+		properties.setProperty(ServerConfig.LIMITER_INITIAL, "20");
+		properties.setProperty(ServerConfig.LIMITER_MIN, "4");
+		properties.setProperty(ServerConfig.LIMITER_MAX, "1000");
+		return new AdaptiveConcurrencyLimiter(registry, new ServerConfig(properties));
+	}
+
+	@Test
+	public void testTurnsAwayOverTheLimit()
+	{
+		AdaptiveConcurrencyLimiter limiter = newLimiter();
+		List<Runnable> acquired = Lists.newArrayList();
+		for(int j = 0; j < 20; j++)
+			acquired.add(limiter.acquire(() -> {}));
+		assertNull(limiter.acquire(() -> {}));
+		acquired.get(0).run();
+		assertNotNull(limiter.acquire(() -> {}));
+	}
+
+	@Test
+	public void testShrinksAsRequestsSlowDown()
+	{
+		AdaptiveConcurrencyLimiter limiter = newLimiter();
+		//a window of quick ones sets the baseline.
+		for(int j = 0; j < 20; j++)
+			limiter.acquire(() -> {}).run();
+		for(int j = 0; j < 100; j++)
+			limiter.acquire(TestAdaptiveConcurrencyLimiter::sleep).run();
+		assertTrue(String.valueOf(limiter.getLimit()), limiter.getLimit() < 20);
+	}
+
+	@Test
+	public void testAbandonedWorkIsNotTimed()
+	{
+		MetricRegistry registry = new MetricRegistry();
+		AdaptiveConcurrencyLimiter limiter = newLimiter(registry);
+		for(int j = 0; j < 20; j++)
+			limiter.acquire(TestAdaptiveConcurrencyLimiter::sleep).run();
+		long baseline = baselineMicros(registry);
+		assertTrue(String.valueOf(baseline), baseline >= 1000);
+
+		//a full pool turns a whole window's worth away, each in a few microseconds.
+		List<Runnable> acquired = Lists.newArrayList();
+		for(int j = 0; j < limiter.getLimit(); j++)
+			acquired.add(limiter.acquire(TestAdaptiveConcurrencyLimiter::sleep));
+		for(Runnable work : acquired)
+			limiter.abandon(work);
+
+		//they gave their places back, and none of them became the no load round trip.
+		for(int j = 0; j < 20; j++)
+			limiter.acquire(TestAdaptiveConcurrencyLimiter::sleep).run();
+		assertTrue(String.valueOf(baselineMicros(registry)), baselineMicros(registry) >= 1000);
+	}
+
+	private static long baselineMicros(MetricRegistry registry)
+	{
+		return (Long)registry.getGauges().get(MetricRegistry.name(AdaptiveConcurrencyLimiter.class, "rtt-baseline-micros")).getValue();
+	}
+
+	private static void sleep()
+	{
+		try
+		{
+			Thread.sleep(1);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Test
+	public void testManyThreadsFinishingAtOnce() throws InterruptedException
+	{
+		AdaptiveConcurrencyLimiter limiter = newLimiter();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		for(int j = 0; j < 100000; j++)
+		{
+			Runnable work = limiter.acquire(() -> {});
+			if(work != null)
+				pool.execute(work);
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+		assertTrue(String.valueOf(limiter.getLimit()), limiter.getLimit() >= 4 && limiter.getLimit() <= 1000);
+		//every one that got in was let out again.
+		for(int j = 0; j < limiter.getLimit(); j++)
+			assertNotNull(limiter.acquire(() -> {}));
+		assertNull(limiter.acquire(() -> {}));
+	}
+}
@@ -0,0 +1,210 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Resources;
+import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.inject.Guice;
+import com.magicalspirits.httptest.RawHttp.Response;
+import com.magicalspirits.httptest.acceptor.ConnectionMetrics;
+import com.magicalspirits.httptest.httpapplication.ChunkedOutputStream;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+public class TestChunkedResponses
+{
+	private static final int METRICS = 20000;
+
+	private static CloseableInjector i;
+	private static int port = 0;
+	private static MetricRegistry registry;
+
+	@BeforeClass
+	public static void setup()
+	{
+		i = Guice.createInjector(
+				new CloseableModule(), new Jsr250Module(), new ExecutorsModule(),
+				new MetricsModule(), new TestlineModule(HttpRequestParser.class, ServeHttpFile.class))
+					.getInstance(CloseableInjector.class);
+
+		port = i.getInstance(ServerSocket.class).getLocalPort();
+		registry = i.getInstance(MetricRegistry.class);
+		for(int metric = 0; metric < METRICS; metric++)
+			registry.counter(MetricRegistry.name(TestChunkedResponses.class, "counter", Integer.toString(metric))).inc(metric);
+	}
+
+	@Test
+	public void testLargeRegistryIsStreamedInBoundedChunks() throws IOException
+	{
+		int responseBuffer = i.getInstance(ServerConfig.class).getResponseBufferSize();
+		try(Socket s = new Socket("localhost", port))
+		{
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			Response response = RawHttp.get(s, in, "/metrics", "TE: trailers");
+			assertEquals(200, response.code);
+			assertEquals("chunked", response.headers.get(HttpHeaders.TRANSFER_ENCODING));
+			assertNull(response.headers.get(HttpHeaders.CONTENT_LENGTH));
+
+			//Note: The server never holds more of the body than a chunk, however many metrics there are.
+			assertTrue(response.largestChunk <= responseBuffer);
+			assertTrue(response.body.length > 100 * responseBuffer);
+			JsonNode counters = new ObjectMapper().readTree(response.body).get("counters");
+			assertEquals(METRICS - 1, counters.get(MetricRegistry.name(TestChunkedResponses.class, "counter", Integer.toString(METRICS - 1))).get("count").asInt());
+			assertTrue(response.trailers.get("Server-Timing"), response.trailers.get("Server-Timing").startsWith("serialize;dur="));
+
+			//the connection is still good for the next request.
+			Response next = RawHttp.get(s, in, "/testfile1.txt");
+			assertEquals(200, next.code);
+			assertArrayEquals(Resources.toByteArray(Resources.getResource("wwwroot/testfile1.txt")), next.body);
+		}
+	}
+
+	/**
+	 * Holds serialization up on the last metric, and reads the body that has come before it. A server that put the
+	 * body together before sending it would have sent none of it by then.
+	 */
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testBodyIsSentWhileItIsSerialized() throws IOException
+	{
+		final CountDownLatch release = new CountDownLatch(1);
+		//timers are the last thing serialized, after the counters.
+		String blocking = MetricRegistry.name(TestChunkedResponses.class, "blocking");
+		registry.register(blocking, new Timer()
+		{
+			@Override
+			public Snapshot getSnapshot()
+			{
+				Uninterruptibles.awaitUninterruptibly(release);
+				return super.getSnapshot();
+			}
+		});
+		try(Socket s = new Socket("localhost", port))
+		{
+			//a server that held the body back would leave this waiting, and fail the test rather than hang it.
+			s.setSoTimeout(10000);
+			s.getOutputStream().write("GET /metrics HTTP/1.1\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			assertEquals("HTTP/1.1 200 OK", in.readLine());
+			for(String header = in.readLine(); !header.isEmpty(); header = in.readLine());
+
+			//each counter takes up more than 50 bytes, so this is most of them.
+			for(long sent = 0; sent < METRICS * 50; sent += skipChunk(in));
+			release.countDown();
+			while(skipChunk(in) > 0);
+		}
+		finally
+		{
+			release.countDown();
+			registry.remove(blocking);
+		}
+	}
+
+	/**
+	 * @return the size of the chunk that was read past.
+	 */
+	@SuppressWarnings("deprecation")
+	private static int skipChunk(DataInputStream in) throws IOException
+	{
+		int size = Integer.parseInt(in.readLine(), 16);
+		in.readFully(new byte[size]);
+		in.readLine();
+		return size;
+	}
+
+	@Test
+	public void testSmallDocumentGoesOutInOneWrite() throws IOException
+	{
+		ConnectionMetrics connectionMetrics = i.getInstance(ConnectionMetrics.class);
+		long before = connectionMetrics.getSocketWriteCount();
+		//closed once it's answered, so every write has been counted by the time the client sees the end of it.
+		Response response = RawHttp.get(port, "/monitoring");
+		assertEquals("chunked", response.headers.get(HttpHeaders.TRANSFER_ENCODING));
+		assertTrue(response.body.length < i.getInstance(ServerConfig.class).getResponseBufferSize() / 2);
+		//headers, its one chunk and the last chunk, with no flush in between.
+		assertEquals(before + 1, connectionMetrics.getSocketWriteCount());
+	}
+
+	@Test
+	public void testGzippedAndWithoutTrailers() throws IOException
+	{
+		try(Socket s = new Socket("localhost", port))
+		{
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			Response response = RawHttp.get(s, in, "/monitoring", "Accept-Encoding: gzip");
+			assertEquals("gzip", response.headers.get(HttpHeaders.CONTENT_ENCODING));
+			assertNull(response.headers.get(HttpHeaders.TRAILER));
+			assertTrue(response.trailers.isEmpty());
+			new ObjectMapper().readTree(new GZIPInputStream(new ByteArrayInputStream(response.body)));
+		}
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testHttp10EndsWithTheConnection() throws IOException
+	{
+		try(Socket s = new Socket("localhost", port))
+		{
+			OutputStream out = s.getOutputStream();
+			out.write("GET /monitoring HTTP/1.0\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+			out.flush();
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			assertTrue(in.readLine().startsWith("HTTP/1.0 200"));
+			for(String header = in.readLine(); !header.isEmpty(); header = in.readLine())
+				assertFalse(header, header.startsWith(HttpHeaders.TRANSFER_ENCODING));
+			new ObjectMapper().readTree(ByteStreams.toByteArray(in));
+		}
+	}
+
+	@Test
+	public void testChunkedOutputStream() throws IOException
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try(ChunkedOutputStream chunked = new ChunkedOutputStream(baos, 4))
+		{
+			chunked.write("hello world".getBytes(Charsets.ISO_8859_1));
+			chunked.addTrailer("X-Done", "yes");
+		}
+		assertEquals("4\r\nhell\r\n4\r\no wo\r\n3\r\nrld\r\n0\r\nX-Done: yes\r\n\r\n", new String(baos.toByteArray(), Charsets.ISO_8859_1));
+	}
+
+	@AfterClass
+	public static void shutdown()
+	{
+		//the registry outlives the injector.
+		registry.removeMatching((name, metric) -> name.startsWith(TestChunkedResponses.class.getName()));
+		i.close();
+	}
+}
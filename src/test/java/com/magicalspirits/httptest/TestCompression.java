@@ -0,0 +1,223 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.net.HttpHeaders;
+import com.google.inject.Guice;
+import com.magicalspirits.httptest.RawHttp.Response;
+import com.magicalspirits.httptest.httpapplication.CompressedVariants;
+import com.magicalspirits.httptest.httpapplication.ContentHashes;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+public class TestCompression
+{
+	private static CloseableInjector i;
+	private static int port = 0;
+	private static File root;
+	private static MetricRegistry registry;
+
+	@BeforeClass
+	public static void setup() throws IOException
+	{
+		root = Files.createTempDir();
+		Files.write(text("page"), new File(root, "page.txt"));
+		Files.write(text("cached"), new File(root, "cached.txt"));
+		Files.write(text("index"), new File(root, "index.html"));
+		Files.write(text("data"), new File(root, "data.json"));
+		Files.write(gzip("precompressed".getBytes(Charsets.UTF_8)), new File(root, "index.html.gz"));
+		byte[] random = new byte[10000];
+		new Random(1).nextBytes(random);
+		Files.write(random, new File(root, "random.bin"));
+
+		Properties properties = new Properties();
+		properties.setProperty(ServerConfig.CONTENT_ROOT, root.getAbsolutePath());
+		final ServerConfig config = new ServerConfig(properties);
+		i = Guice.createInjector(
+				new CloseableModule(), new Jsr250Module(), new ExecutorsModule(),
+				new MetricsModule(), new TestlineModule(HttpRequestParser.class, ServeHttpFile.class),
+				binder -> binder.bind(ServerConfig.class).toInstance(config))
+					.getInstance(CloseableInjector.class);
+		port = i.getInstance(ServerSocket.class).getLocalPort();
+		registry = i.getInstance(MetricRegistry.class);
+	}
+
+	@Test
+	public void testCompressedOnceAndCached() throws IOException
+	{
+		String etag = RawHttp.awaitETag(i.getInstance(ContentHashes.class), new File(root, "cached.txt"));
+		long misses = count("misses");
+		long hits = count("hits");
+
+		Response response = get("/cached.txt", "Accept-Encoding: deflate, gzip;q=0.8");
+		assertEquals(200, response.code);
+		assertEquals("gzip", response.headers.get(HttpHeaders.CONTENT_ENCODING));
+		assertEquals(HttpHeaders.ACCEPT_ENCODING, response.headers.get(HttpHeaders.VARY));
+		String compressedETag = response.headers.get(HttpHeaders.ETAG);
+		assertEquals(etag.substring(0, etag.length() - 1) + "-gzip\"", compressedETag);
+		assertArrayEquals(text("cached"), gunzip(response.body));
+		assertTrue(response.body.length < text("cached").length);
+
+		assertArrayEquals(text("cached"), gunzip(get("/cached.txt", "Accept-Encoding: gzip").body));
+		assertEquals(misses + 1, count("misses"));
+		assertEquals(hits + 1, count("hits"));
+
+		//each version revalidates against its own tag.
+		assertEquals(304, get("/cached.txt", "Accept-Encoding: gzip", "If-None-Match: " + compressedETag).code);
+		assertEquals(200, get("/cached.txt", "Accept-Encoding: gzip", "If-None-Match: " + etag).code);
+		assertEquals(304, get("/cached.txt", "If-None-Match: " + etag).code);
+	}
+
+	@Test
+	public void testNegotiation() throws IOException
+	{
+		Response identity = get("/page.txt");
+		assertNull(identity.headers.get(HttpHeaders.CONTENT_ENCODING));
+		assertEquals(HttpHeaders.ACCEPT_ENCODING, identity.headers.get(HttpHeaders.VARY));
+		assertArrayEquals(text("page"), identity.body);
+
+		assertNull(get("/page.txt", "Accept-Encoding: gzip;q=0, *").headers.get(HttpHeaders.CONTENT_ENCODING));
+		assertEquals("gzip", get("/page.txt", "Accept-Encoding: br, *").headers.get(HttpHeaders.CONTENT_ENCODING));
+		//a range is of the uncompressed file.
+		Response range = get("/page.txt", "Accept-Encoding: gzip", "Range: bytes=0-3");
+		assertEquals(206, range.code);
+		assertArrayEquals(Arrays.copyOf(text("page"), 4), range.body);
+
+		//already compressed, so it's the same whatever the client takes.
+		Response binary = get("/random.bin", "Accept-Encoding: gzip");
+		assertNull(binary.headers.get(HttpHeaders.CONTENT_ENCODING));
+		assertNull(binary.headers.get(HttpHeaders.VARY));
+	}
+
+	@Test
+	public void testPrecompressedSibling() throws IOException
+	{
+		long precompressed = registry.meter(MetricRegistry.name(CompressedVariants.class, "precompressed")).getCount();
+		Response response = get("/index.html", "Accept-Encoding: gzip");
+		assertEquals("gzip", response.headers.get(HttpHeaders.CONTENT_ENCODING));
+		assertEquals("precompressed", new String(gunzip(response.body), Charsets.UTF_8));
+		assertEquals(precompressed + 1, registry.meter(MetricRegistry.name(CompressedVariants.class, "precompressed")).getCount());
+
+		Response identity = get("/index.html");
+		assertEquals(HttpHeaders.ACCEPT_ENCODING, identity.headers.get(HttpHeaders.VARY));
+		assertArrayEquals(text("index"), identity.body);
+	}
+
+	@Test
+	public void testOtherTextTypesAreCompressed() throws IOException
+	{
+		Response response = get("/data.json", "Accept-Encoding: gzip");
+		assertEquals("application/json", response.headers.get(HttpHeaders.CONTENT_TYPE));
+		assertEquals("gzip", response.headers.get(HttpHeaders.CONTENT_ENCODING));
+		assertArrayEquals(text("data"), gunzip(response.body));
+	}
+
+	@Test
+	public void testFilesThatDontShrinkAreEvicted() throws IOException
+	{
+		File noise = Files.createTempDir();
+		Properties properties = new Properties();
+		properties.setProperty(ServerConfig.GZIP_CACHE_MAX_BYTES, "4096");
+		MetricRegistry own = new MetricRegistry();
+		CompressedVariants variants = new CompressedVariants(own, new ServerConfig(properties));
+		Random random = new Random(1);
+		for(int file = 0; file < 1000; file++)
+		{
+			byte[] content = new byte[1000];
+			random.nextBytes(content);
+			File f = new File(noise, file + ".txt");
+			Files.write(content, f);
+			assertNull(variants.get(f));
+		}
+		//each one weighs something, so they can't pile up past the limit.
+		Gauge<?> entries = own.getGauges().get(MetricRegistry.name(CompressedVariants.class, "entries"));
+		assertTrue((Long)entries.getValue() < 100);
+		assertTrue(own.meter(MetricRegistry.name(CompressedVariants.class, "evictions")).getCount() > 900);
+		Gauge<?> bytes = own.getGauges().get(MetricRegistry.name(CompressedVariants.class, "bytes"));
+		assertTrue((Long)bytes.getValue() > 0 && (Long)bytes.getValue() <= 4096);
+		for(File file : noise.listFiles())
+			file.delete();
+		noise.delete();
+	}
+
+	@Test
+	public void testMetricsAreCompressed() throws IOException
+	{
+		Response response = get("/metrics", "Accept-Encoding: gzip");
+		assertEquals("gzip", response.headers.get(HttpHeaders.CONTENT_ENCODING));
+		assertTrue(new String(gunzip(response.body), Charsets.UTF_8).contains("\"gauges\""));
+		assertTrue(registry.counter(MetricRegistry.name(CompressedVariants.class, "bytes-saved")).getCount() > 0);
+		assertTrue(registry.counter(MetricRegistry.name(CompressedVariants.class, "cpu-nanos")).getCount() > 0);
+	}
+
+	private static long count(String meter)
+	{
+		return registry.meter(MetricRegistry.name(CompressedVariants.class, meter)).getCount();
+	}
+
+	private static byte[] text(String seed)
+	{
+		StringBuilder rv = new StringBuilder();
+		for(int line = 0; line < 200; line++)
+			rv.append(seed).append(" line ").append(line).append(" of some very repetitive text\n");
+		return rv.toString().getBytes(Charsets.UTF_8);
+	}
+
+	private static byte[] gzip(byte[] content) throws IOException
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try(GZIPOutputStream gzip = new GZIPOutputStream(baos))
+		{
+			gzip.write(content);
+		}
+		return baos.toByteArray();
+	}
+
+	private static byte[] gunzip(byte[] content) throws IOException
+	{
+		return ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(content)));
+	}
+
+	private static Response get(String path, String... requestHeaders) throws IOException
+	{
+		return RawHttp.get(port, path, requestHeaders);
+	}
+
+	@AfterClass
+	public static void shutdown()
+	{
+		i.close();
+		for(File file : root.listFiles())
+			file.delete();
+		root.delete();
+	}
+}
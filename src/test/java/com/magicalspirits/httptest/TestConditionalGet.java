@@ -0,0 +1,106 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.io.Resources;
+import com.google.common.net.HttpHeaders;
+import com.google.inject.Guice;
+import com.magicalspirits.httptest.RawHttp.Response;
+import com.magicalspirits.httptest.httpapplication.ContentHashes;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+public class TestConditionalGet
+{
+	private static CloseableInjector i;
+	private static int port = 0;
+	private static byte[] binary;
+	private static String etag;
+	private static File file;
+
+	@BeforeClass
+	public static void setup() throws IOException
+	{
+		i = Guice.createInjector(
+				new CloseableModule(), new Jsr250Module(), new ExecutorsModule(),
+				new MetricsModule(), new TestlineModule(HttpRequestParser.class, ServeHttpFile.class))
+					.getInstance(CloseableInjector.class);
+
+		port = i.getInstance(ServerSocket.class).getLocalPort();
+		binary = Resources.toByteArray(Resources.getResource("wwwroot/binarydata.bin"));
+		file = new File(i.getInstance(ServerConfig.class).getContentRoot(), "binarydata.bin");
+
+		etag = RawHttp.awaitETag(i.getInstance(ContentHashes.class), file);
+	}
+
+	@Test
+	public void testValidatorsAreSent() throws IOException
+	{
+		Response response = get();
+		assertEquals(200, response.code);
+		assertEquals(etag, response.headers.get(HttpHeaders.ETAG));
+		assertEquals(httpDate(file.lastModified()), response.headers.get(HttpHeaders.LAST_MODIFIED));
+		assertArrayEquals(binary, response.body);
+	}
+
+	@Test
+	public void testNotModified() throws IOException
+	{
+		Meter notModified = i.getInstance(MetricRegistry.class).meter(MetricRegistry.name(ServeHttpFile.class, "not-modified"));
+		long before = notModified.getCount();
+
+		Response response = get("If-None-Match: \"abc\", " + etag);
+		assertEquals(304, response.code);
+		assertEquals(etag, response.headers.get(HttpHeaders.ETAG));
+		assertEquals(0, response.body.length);
+		assertEquals(304, get("If-None-Match: W/" + etag).code);
+		assertEquals(304, get("If-None-Match: *").code);
+		assertEquals(304, get("If-Modified-Since: " + httpDate(file.lastModified())).code);
+		assertEquals(before + 4, notModified.getCount());
+
+		assertEquals(200, get("If-None-Match: \"abc\"").code);
+		assertEquals(200, get("If-Modified-Since: " + httpDate(file.lastModified() - 60000)).code);
+		//If-None-Match wins.
+		assertEquals(200, get("If-None-Match: \"abc\"", "If-Modified-Since: " + httpDate(file.lastModified())).code);
+		assertEquals(before + 4, notModified.getCount());
+
+		assertEquals(206, get("Range: bytes=0-99", "If-Range: " + etag).code);
+		assertEquals(200, get("Range: bytes=0-99", "If-Range: \"abc\"").code);
+	}
+
+	private static String httpDate(long millis)
+	{
+		return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC));
+	}
+
+	private static Response get(String... requestHeaders) throws IOException
+	{
+		return RawHttp.get(port, "/binarydata.bin", requestHeaders);
+	}
+
+	@AfterClass
+	public static void shutdown()
+	{
+		i.close();
+	}
+}
@@ -0,0 +1,46 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ExecutorsModule.Mode;
+
+public class TestExecutorsModule
+{
+	@Test
+	public void testVirtualMode() throws Exception
+	{
+		ExecutorService pool = new ExecutorsModule(Mode.VIRTUAL).getDefaultExecutorService(new MetricRegistry(), (t, e) -> {});
+		try
+		{
+			//below java 21 this is the cached pool it falls back to, which has to run the task all the same.
+			Thread ranOn = pool.submit(() -> Thread.currentThread()).get(5, TimeUnit.SECONDS);
+			assertTrue(ranOn.getName(), ranOn.getName().startsWith("default-pool-"));
+			if(getJavaVersion() >= 21)
+			{
+				//Thread.isVirtual showed up in java 19, and we still build for 8.
+				Method isVirtual = Thread.class.getMethod("isVirtual");
+				assertEquals(Boolean.TRUE, isVirtual.invoke(ranOn));
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	private static int getJavaVersion()
+	{
+		//1.8 up to java 8, then 9, 10, 11 and so on.
+		String version = System.getProperty("java.specification.version");
+		return version.startsWith("1.") ? Integer.parseInt(version.substring(2)) : Integer.parseInt(version);
+	}
+}
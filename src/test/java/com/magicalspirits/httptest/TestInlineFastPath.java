@@ -0,0 +1,159 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.io.Resources;
+import com.google.inject.Guice;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.spi.ProvisionListener;
+import com.magicalspirits.httptest.acceptor.ConnectionMetrics;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+public class TestInlineFastPath
+{
+	private static CloseableInjector i;
+	private static int port = 0;
+
+	private static Meter inline;
+
+	private static final Multiset<Class<?>> provisioned = ConcurrentHashMultiset.create();
+
+	@BeforeClass
+	public static void setup()
+	{
+		i = Guice.createInjector(
+				new CloseableModule(), new Jsr250Module(), new ExecutorsModule(),
+				new MetricsModule(), new TestlineModule(HttpRequestParser.class, ServeHttpFile.class),
+				binder -> binder.bindListener(Matchers.any(), new ProvisionListener()
+				{
+					@Override
+					public <T> void onProvision(ProvisionInvocation<T> provision)
+					{
+						provisioned.add(provision.getBinding().getKey().getTypeLiteral().getRawType());
+					}
+				}))
+					.getInstance(CloseableInjector.class);
+
+		port = i.getInstance(ServerSocket.class).getLocalPort();
+		inline = i.getInstance(MetricRegistry.class).meter(MetricRegistry.name(HttpRequestParser.class, "inline.meter"));
+	}
+
+	@Test
+	public void testSmallFileIsServedInline() throws IOException
+	{
+		long before = inline.getCount();
+		String fromServer = Resources.toString(new URL("http://localhost:" + port + "/testfile1.txt"), Charsets.UTF_8);
+
+		String fromLocal = Resources.toString(Resources.getResource("wwwroot/testfile1.txt"), Charsets.UTF_8);
+
+		assertEquals(fromLocal, fromServer);
+		assertEquals(before + 1, inline.getCount());
+	}
+
+	@Test
+	public void testMetricsAreHandedOff() throws IOException
+	{
+		long before = inline.getCount();
+		String fromServer = Resources.toString(new URL("http://localhost:" + port + "/metrics"), Charsets.UTF_8);
+
+		assertTrue(fromServer.contains("com.magicalspirits.httptest.httpparser.HttpRequestParser.inline.meter"));
+		assertEquals(before, inline.getCount());
+	}
+
+	@Test
+	public void testPipelinedRequestsAreAnsweredInOrderTogether() throws IOException
+	{
+		Meter pipelined = i.getInstance(MetricRegistry.class).meter(MetricRegistry.name(HttpRequestParser.class, "pipelined.meter"));
+		ConnectionMetrics connectionMetrics = i.getInstance(ConnectionMetrics.class);
+		long pipelinedBefore = pipelined.getCount();
+		long writesBefore = connectionMetrics.getSocketWriteCount();
+
+		String textFile = Resources.toString(Resources.getResource("wwwroot/testfile1.txt"), Charsets.UTF_8);
+		try(Socket s = new Socket("localhost", port))
+		{
+			//three requests in one write, the way a pipelining client sends them.
+			OutputStream out = s.getOutputStream();
+			out.write((
+					"GET /testfile1.txt HTTP/1.1\r\n\r\n" +
+					"GET /testfile1.txt HTTP/1.1\r\n\r\n" +
+					"GET /missing.txt HTTP/1.1\r\n\r\n").getBytes(Charsets.ISO_8859_1));
+			out.flush();
+
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			assertEquals(textFile, RawHttp.readText(in, 200));
+			assertEquals(textFile, RawHttp.readText(in, 200));
+			assertEquals("", RawHttp.readText(in, 404));
+
+			out.write("GET /testfile1.txt HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+			out.flush();
+			assertEquals(textFile, RawHttp.readText(in, 200));
+			assertEquals(-1, in.read());
+		}
+		assertEquals(pipelinedBefore + 2, pipelined.getCount());
+		//one write for the three pipelined responses, and one for the last.
+		assertEquals(writesBefore + 2, connectionMetrics.getSocketWriteCount());
+	}
+
+	@Test
+	public void testKeepAliveRequestsShareStagesButNotState() throws IOException
+	{
+		String textFile = Resources.toString(Resources.getResource("wwwroot/testfile1.txt"), Charsets.UTF_8);
+		int parsersBefore = provisioned.count(HttpRequestParser.class);
+		int applicationsBefore = provisioned.count(ServeHttpFile.class);
+		try(Socket s = new Socket("localhost", port))
+		{
+			//one at a time, so the connection is parked and resumed between them, and the same stages answer each.
+			OutputStream out = s.getOutputStream();
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			out.write("GET /testfile1.txt HTTP/1.1\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+			out.flush();
+			assertEquals(textFile, RawHttp.readText(in, 200));
+
+			out.write("GET /missing.txt HTTP/1.1\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+			out.flush();
+			assertEquals("", RawHttp.readText(in, 404));
+
+			//off to the application pool and back.
+			out.write("GET /metrics HTTP/1.1\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+			out.flush();
+			assertTrue(RawHttp.readText(in, 200).contains("HttpRequestParser.run.meter"));
+
+			out.write("GET /testfile1.txt HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+			out.flush();
+			assertEquals(textFile, RawHttp.readText(in, 200));
+			assertEquals(-1, in.read());
+		}
+		//made for the first request and kept for the other three.
+		assertEquals(parsersBefore + 1, provisioned.count(HttpRequestParser.class));
+		assertEquals(applicationsBefore + 1, provisioned.count(ServeHttpFile.class));
+	}
+
+	@AfterClass
+	public static void shutdown()
+	{
+		i.close();
+	}
+}
@@ -0,0 +1,205 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lombok.Setter;
+import lombok.SneakyThrows;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.inject.Guice;
+import com.magicalspirits.httptest.acceptor.ConnectionMetrics;
+import com.magicalspirits.httptest.acceptor.HttpConnection;
+import com.magicalspirits.httptest.acceptor.LoadShedder;
+import com.magicalspirits.httptest.httpapplication.ApplicationRunner;
+import com.magicalspirits.httptest.httpparser.HttpRuriData;
+import com.magicalspirits.httptest.httpparser.HttpRuriParser;
+import com.magicalspirits.httptest.httpparser.RequestBody;
+import com.magicalspirits.httptest.httpparser.RequestHeaders;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ExecutorsModule.Mode;
+import com.magicalspirits.httptest.launcher.ExecutorsModule.PoolSettings;
+import com.magicalspirits.httptest.launcher.ExecutorsModule.RejectionPolicy;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+public class TestLoadShedding
+{
+	private static CloseableInjector i;
+	private static int port = 0;
+
+	@BeforeClass
+	public static void setup()
+	{
+		//one application thread and no queue, so the second request in has nowhere to go.
+		i = Guice.createInjector(
+				new CloseableModule(), new Jsr250Module(),
+				new ExecutorsModule(Mode.BOUNDED, new PoolSettings(50, 50), new PoolSettings(1, 0), RejectionPolicy.ABORT),
+				new MetricsModule(), new TestlineModule(HttpRuriParser.class, BlockingApplicationRunner.class))
+					.getInstance(CloseableInjector.class);
+
+		port = i.getInstance(ServerSocket.class).getLocalPort();
+	}
+
+	@Test(timeout=5000)
+	@SneakyThrows
+	public void testSaturatedApplicationPoolSends503()
+	{
+		List<Socket> sockets = Lists.newArrayList();
+		try
+		{
+			Socket busy = new Socket("localhost", port);
+			sockets.add(busy);
+			sendRequest(busy);
+			assertTrue(BlockingApplicationRunner.started.await(2, TimeUnit.SECONDS));
+
+			Socket shed = new Socket("localhost", port);
+			sockets.add(shed);
+			sendRequest(shed);
+			BufferedReader br = new BufferedReader(new InputStreamReader(shed.getInputStream(), Charsets.ISO_8859_1));
+			assertEquals("HTTP/1.1 503 Service Unavailable", br.readLine());
+			assertTrue(br.readLine().startsWith(HttpHeaders.RETRY_AFTER + ":"));
+
+			//and the one that got in still finishes
+			BlockingApplicationRunner.release.countDown();
+			br = new BufferedReader(new InputStreamReader(busy.getInputStream(), Charsets.ISO_8859_1));
+			assertEquals("200 OK", br.readLine());
+		}
+		finally
+		{
+			BlockingApplicationRunner.release.countDown();
+			for(Socket s : sockets)
+				s.close();
+		}
+	}
+
+	@Test(timeout=5000)
+	public void testShedWithoutBlockingNeverWaitsOnTheClient() throws Exception
+	{
+		try(ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress(0));
+				Socket client = new Socket())
+		{
+			//a small window, so the server's send buffer fills up sooner.
+			client.setReceiveBufferSize(4096);
+			client.connect(new InetSocketAddress("localhost", listener.socket().getLocalPort()));
+			SocketChannel channel = listener.accept();
+			//the client never reads, so once the buffers are full a blocking 503 would wait forever.
+			channel.configureBlocking(false);
+			ByteBuffer filler = ByteBuffer.allocate(65536);
+			for(int idle = 0; idle < 10; )
+			{
+				filler.clear();
+				idle = channel.write(filler) > 0 ? 0 : idle + 1;
+			}
+			channel.configureBlocking(true);
+
+			HttpConnection connection = i.getInstance(ConnectionMetrics.class).accept(channel.socket());
+			i.getInstance(LoadShedder.class).shedWithoutBlocking(connection);
+			assertTrue(connection.isClosed());
+		}
+	}
+
+	@Test
+	public void testSelectorThreadsAreRefusedUnderCallerRuns()
+	{
+		ExecutorService pool = new ExecutorsModule(Mode.BOUNDED, new PoolSettings(1, 0), new PoolSettings(1, 0), RejectionPolicy.CALLER_RUNS)
+				.getServerPoolExecutorService(new MetricRegistry(), (t, e) -> {});
+		CountDownLatch release = new CountDownLatch(1);
+		try
+		{
+			pool.execute(() -> Uninterruptibles.awaitUninterruptibly(release));
+			try
+			{
+				ExecutorsModule.executeWithoutBlocking(pool, () -> fail("A selector thread ran the work itself"));
+				fail("A full pool took work from a selector thread");
+			}
+			catch(RejectedExecutionException expected)
+			{
+			}
+			//anyone else still runs it themselves.
+			Thread caller = Thread.currentThread();
+			AtomicReference<Thread> ranOn = new AtomicReference<>();
+			pool.execute(() -> ranOn.set(Thread.currentThread()));
+			assertEquals(caller, ranOn.get());
+		}
+		finally
+		{
+			release.countDown();
+			pool.shutdown();
+		}
+	}
+
+	private static void sendRequest(Socket s) throws Exception
+	{
+		PrintStream ps = new PrintStream(s.getOutputStream(), true);
+		ps.print("GET /test HTTP/1.1\r\n\r\n");
+		ps.flush();
+	}
+
+	public static class BlockingApplicationRunner implements ApplicationRunner
+	{
+		static final CountDownLatch started = new CountDownLatch(1);
+
+		static final CountDownLatch release = new CountDownLatch(1);
+
+		@Setter(onMethod=@__(@Override))
+		private Socket socket;
+
+		@Setter(onMethod=@__(@Override))
+		private HttpConnection connection;
+
+		@Setter(onMethod=@__(@Override))
+		private HttpRuriData httpRuri;
+
+		@Setter(onMethod=@__(@Override))
+		private RequestHeaders headers;
+
+		@Setter(onMethod=@__(@Override))
+		private RequestBody requestBody;
+
+		@Override
+		@SneakyThrows
+		public void run()
+		{
+			started.countDown();
+			release.await();
+			PrintStream ps = new PrintStream(socket.getOutputStream(), true);
+			ps.println("200 OK");
+			ps.flush();
+			socket.close();
+		}
+	}
+
+	@AfterClass
+	public static void shutdown()
+	{
+		i.close();
+	}
+}
@@ -0,0 +1,122 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.io.Files;
+import com.magicalspirits.httptest.httpapplication.MappedFiles;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+
+public class TestMappedFiles
+{
+	private static final int SIZE = 1 << 20;
+
+	private File root;
+
+	private MetricRegistry registry;
+
+	private MappedFiles mappedFiles;
+
+	@Before
+	public void setup()
+	{
+		root = Files.createTempDir();
+		Properties properties = new Properties();
+		properties.setProperty(ServerConfig.MMAP_MIN_BYTES, Integer.toString(SIZE));
+		//room for two.
+		properties.setProperty(ServerConfig.MMAP_MAX_BYTES, Integer.toString(SIZE * 2));
+		registry = new MetricRegistry();
+		mappedFiles = new MappedFiles(registry, new ServerConfig(properties));
+	}
+
+	@Test
+	public void testMappingsAreSharedAndRemappedWhenTheFileChanges() throws IOException
+	{
+		byte[] content = write("a.bin", 1);
+		MappedFiles.Mapping first = mappedFiles.acquire(new File(root, "a.bin"));
+		MappedFiles.Mapping second = mappedFiles.acquire(new File(root, "a.bin"));
+		assertSame(first, second);
+		assertArrayEquals(content, read(first.getBuffer()));
+		assertEquals(1, gauge("active-mappings"));
+		assertEquals((long)SIZE, gauge("mapped-bytes"));
+		first.release();
+		second.release();
+		//still mapped for the next request.
+		assertEquals(1, gauge("active-mappings"));
+
+		//rewritten at the same size, so the mapping only goes stale by its modification time.
+		File file = new File(root, "a.bin");
+		long lastModified = file.lastModified();
+		content = write("a.bin", 2);
+		file.setLastModified(lastModified + 2000);
+		MappedFiles.Mapping changed = mappedFiles.acquire(file);
+		assertArrayEquals(content, read(changed.getBuffer()));
+		assertEquals(1, gauge("active-mappings"));
+		changed.release();
+
+		assertNull(mappedFiles.acquire(new File(root, "small.bin")));
+	}
+
+	@Test
+	public void testEvictedMappingsStayUntilReleased() throws IOException
+	{
+		write("a.bin", 1);
+		write("b.bin", 2);
+		byte[] content = write("c.bin", 3);
+		MappedFiles.Mapping a = mappedFiles.acquire(new File(root, "a.bin"));
+		mappedFiles.acquire(new File(root, "b.bin")).release();
+		MappedFiles.Mapping c = mappedFiles.acquire(new File(root, "c.bin"));
+
+		//a was evicted to make room, but it's still being sent from.
+		assertEquals(1, registry.meter(MetricRegistry.name(MappedFiles.class, "evictions")).getCount());
+		assertEquals(3, gauge("active-mappings"));
+		a.release();
+		assertEquals(2, gauge("active-mappings"));
+		assertEquals((long)SIZE * 2, gauge("mapped-bytes"));
+		assertArrayEquals(content, read(c.getBuffer()));
+		c.release();
+	}
+
+	private byte[] write(String name, int seed) throws IOException
+	{
+		byte[] content = new byte[SIZE];
+		new Random(seed).nextBytes(content);
+		Files.write(content, new File(root, name));
+		Files.write(new byte[10], new File(root, "small.bin"));
+		return content;
+	}
+
+	private static byte[] read(ByteBuffer buffer)
+	{
+		byte[] rv = new byte[buffer.remaining()];
+		buffer.get(rv);
+		return rv;
+	}
+
+	private Object gauge(String name)
+	{
+		return ((Gauge<?>)registry.getGauges().get(MetricRegistry.name(MappedFiles.class, name))).getValue();
+	}
+
+	@After
+	public void shutdown()
+	{
+		for(File file : root.listFiles())
+			file.delete();
+		root.delete();
+	}
+}
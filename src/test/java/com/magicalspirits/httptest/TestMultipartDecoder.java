@@ -0,0 +1,100 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.magicalspirits.httptest.httpparser.MultipartDecoder;
+import com.magicalspirits.httptest.httpparser.RequestHeaders;
+
+public class TestMultipartDecoder
+{
+	//the file holds things that start like the delimiter and then aren't, including one that overlaps itself.
+	private static final String FILE = "line one\r\n--abaX\r\n--ab\r\n-\r\n--ababaY x--ababab and the end";
+
+	private static final String BODY = "preamble, ignored\r\n"
+			+ "--ababab\r\n"
+			+ "Content-Disposition: form-data; name=\"field\"\r\n"
+			+ "\r\n"
+			+ "value\r\n"
+			+ "--ababab  \r\n"
+			+ "Content-Disposition: form-data; name=\"upload\"; filename=\"a \\\"quoted\\\" name.txt\"\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "\r\n"
+			+ FILE + "\r\n"
+			+ "--ababab--\r\n"
+			+ "epilogue, also ignored";
+
+	@Test
+	public void testPartsInOneRead() throws IOException
+	{
+		checkParts(new ByteArrayInputStream(BODY.getBytes(Charsets.ISO_8859_1)));
+	}
+
+	@Test
+	public void testPartsInTinyReads() throws IOException
+	{
+		//every boundary and header gets split across reads somewhere.
+		checkParts(new FilterInputStream(new ByteArrayInputStream(BODY.getBytes(Charsets.ISO_8859_1)))
+		{
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				return super.read(b, off, Math.min(len, 3));
+			}
+		});
+	}
+
+	private void checkParts(InputStream in) throws IOException
+	{
+		RequestHeaders headers = new RequestHeaders();
+		headers.add("Content-Type", "multipart/form-data; boundary=\"ababab\"");
+		MultipartDecoder decoder = MultipartDecoder.forRequest(headers, in, 0);
+
+		MultipartDecoder.Part field = decoder.nextPart();
+		assertEquals("field", field.getName());
+		assertNull(field.getFileName());
+		assertEquals("value", new String(ByteStreams.toByteArray(field), Charsets.ISO_8859_1));
+
+		MultipartDecoder.Part file = decoder.nextPart();
+		assertEquals("upload", file.getName());
+		assertEquals("a \"quoted\" name.txt", file.getFileName());
+		assertEquals("text/plain", file.getContentType());
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		assertEquals(FILE.length(), file.transferTo(Channels.newChannel(baos), Long.MAX_VALUE));
+		assertEquals(FILE, new String(baos.toByteArray(), Charsets.ISO_8859_1));
+
+		assertNull(decoder.nextPart());
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testUnreadPartIsSkipped() throws IOException
+	{
+		RequestHeaders headers = new RequestHeaders();
+		headers.add("Content-Type", "multipart/form-data; boundary=ababab");
+		MultipartDecoder decoder = MultipartDecoder.forRequest(headers, new ByteArrayInputStream(BODY.getBytes(Charsets.ISO_8859_1)), 0);
+		decoder.nextPart();
+		MultipartDecoder.Part file = decoder.nextPart();
+		assertEquals(FILE, new String(ByteStreams.toByteArray(file), Charsets.ISO_8859_1));
+		assertNull(decoder.nextPart());
+	}
+
+	@Test
+	public void testNotMultipart() throws IOException
+	{
+		RequestHeaders headers = new RequestHeaders();
+		headers.add("Content-Type", "application/x-www-form-urlencoded");
+		assertNull(MultipartDecoder.forRequest(headers, new ByteArrayInputStream(new byte[0]), 0));
+	}
+}
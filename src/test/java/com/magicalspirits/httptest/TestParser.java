@@ -24,12 +24,14 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.google.common.base.Charsets;
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Lists;
 import com.google.inject.Guice;
+import com.magicalspirits.httptest.acceptor.HttpConnection;
 import com.magicalspirits.httptest.httpapplication.ApplicationRunner;
 import com.magicalspirits.httptest.httpparser.HttpRuriData;
 import com.magicalspirits.httptest.httpparser.HttpRuriParser;
+import com.magicalspirits.httptest.httpparser.RequestBody;
+import com.magicalspirits.httptest.httpparser.RequestHeaders;
 import com.magicalspirits.httptest.launcher.ExecutorsModule;
 import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
 import com.mycila.guice.ext.closeable.CloseableInjector;
@@ -82,14 +84,14 @@ public class TestParser
 			assertEquals("/test", ApplicationRunnerTestImpl.getLastConstructed().getHttpRuri().getRuriPath());
 			assertEquals("HTTP/1.0", ApplicationRunnerTestImpl.getLastConstructed().getHttpRuri().getVersion());
 
-			assertEquals("someValue", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().get("SomeHeader").get(0));
-			assertEquals("someValue1", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().get("SomeHeaderTwoRow").get(0));
-			assertEquals("someValue2", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().get("SomeHeaderTwoRow").get(1));
+			assertEquals("someValue", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().getAll("SomeHeader").get(0));
+			assertEquals("someValue1", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().getAll("SomeHeaderTwoRow").get(0));
+			assertEquals("someValue2", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().getAll("SomeHeaderTwoRow").get(1));
 
-			assertEquals("someValue1", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().get("SomeHeaderCommas").get(0));
-			assertEquals("someValue2", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().get("SomeHeaderCommas").get(1));
+			assertEquals("someValue1", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().getAll("SomeHeaderCommas").get(0));
+			assertEquals("someValue2", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().getAll("SomeHeaderCommas").get(1));
 			for(int i = 1; i <= 5; i++)
-				assertEquals("someValue" + i, ApplicationRunnerTestImpl.getLastConstructed().getHeaders().get("SomeHeaderCommasAndRows").get(i-1));
+				assertEquals("someValue" + i, ApplicationRunnerTestImpl.getLastConstructed().getHeaders().getAll("SomeHeaderCommasAndRows").get(i-1));
 		}
 	}
 
@@ -162,9 +164,8 @@ public class TestParser
 		@Setter(onMethod=@__(@Override))
 		private Socket socket;
 
-		@Getter
 		@Setter(onMethod=@__(@Override))
-		private BufferedReader bufferedReader;
+		private HttpConnection connection;
 		
 		@Getter
 		@Setter(onMethod=@__(@Override))
@@ -172,7 +173,10 @@ public class TestParser
 
 		@Getter
 		@Setter(onMethod=@__(@Override))
-		private ArrayListMultimap<String, String> headers;
+		private RequestHeaders headers;
+
+		@Setter(onMethod=@__(@Override))
+		private RequestBody requestBody;
 		
 		public ApplicationRunnerTestImpl() 
 		{
@@ -0,0 +1,128 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+import com.google.common.net.HttpHeaders;
+import com.google.inject.Guice;
+import com.magicalspirits.httptest.RawHttp.Response;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.ByteRange;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+public class TestRanges
+{
+	private static CloseableInjector i;
+	private static int port = 0;
+	private static byte[] binary;
+
+	@BeforeClass
+	public static void setup() throws IOException
+	{
+		i = Guice.createInjector(
+				new CloseableModule(), new Jsr250Module(), new ExecutorsModule(),
+				new MetricsModule(), new TestlineModule(HttpRequestParser.class, ServeHttpFile.class))
+					.getInstance(CloseableInjector.class);
+
+		port = i.getInstance(ServerSocket.class).getLocalPort();
+		binary = Resources.toByteArray(Resources.getResource("wwwroot/binarydata.bin"));
+	}
+
+	@Test
+	public void testSingleRanges() throws IOException
+	{
+		Response response = get("Range: bytes=0-99");
+		assertEquals(206, response.code);
+		assertEquals("bytes 0-99/" + binary.length, response.headers.get(HttpHeaders.CONTENT_RANGE));
+		assertArrayEquals(Arrays.copyOfRange(binary, 0, 100), response.body);
+
+		//big enough to go with sendfile.
+		response = get("Range: bytes=1000-");
+		assertEquals(206, response.code);
+		assertArrayEquals(Arrays.copyOfRange(binary, 1000, binary.length), response.body);
+
+		response = get("Range: bytes=-500");
+		assertEquals("bytes " + (binary.length - 500) + "-" + (binary.length - 1) + "/" + binary.length, response.headers.get(HttpHeaders.CONTENT_RANGE));
+		assertArrayEquals(Arrays.copyOfRange(binary, binary.length - 500, binary.length), response.body);
+	}
+
+	@Test
+	public void testMultipleRanges() throws IOException
+	{
+		Response response = get("Range: bytes=0-9, 50000-59999");
+		assertEquals(206, response.code);
+		String contentType = response.headers.get(HttpHeaders.CONTENT_TYPE);
+		assertTrue(contentType, contentType.startsWith("multipart/byteranges; boundary="));
+		String boundary = contentType.substring(contentType.indexOf('=') + 1);
+
+		String body = new String(response.body, Charsets.ISO_8859_1);
+		int first = body.indexOf("Content-Range: bytes 0-9/" + binary.length + "\r\n\r\n") + ("Content-Range: bytes 0-9/" + binary.length + "\r\n\r\n").length();
+		assertEquals(new String(binary, 0, 10, Charsets.ISO_8859_1), body.substring(first, first + 10));
+		int second = body.indexOf("Content-Range: bytes 50000-59999/" + binary.length + "\r\n\r\n") + ("Content-Range: bytes 50000-59999/" + binary.length + "\r\n\r\n").length();
+		assertEquals(new String(binary, 50000, 10000, Charsets.ISO_8859_1), body.substring(second, second + 10000));
+		assertTrue(body.endsWith("\r\n--" + boundary + "--\r\n"));
+	}
+
+	@Test
+	public void testWholeFileWhenRangesDontApply() throws IOException
+	{
+		Response response = get("Range: bytes=" + binary.length + "-");
+		assertEquals(416, response.code);
+		assertEquals("bytes */" + binary.length, response.headers.get(HttpHeaders.CONTENT_RANGE));
+
+		Response whole = get("Range: lines=1-2");
+		assertEquals(200, whole.code);
+		assertEquals("bytes", whole.headers.get(HttpHeaders.ACCEPT_RANGES));
+		assertArrayEquals(binary, whole.body);
+
+		//If-Range has to be the file's Last-Modified exactly.
+		File file = new File(i.getInstance(ServerConfig.class).getContentRoot(), "binarydata.bin");
+		String current = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(file.lastModified()).atOffset(ZoneOffset.UTC));
+		assertEquals(206, get("Range: bytes=0-99", "If-Range: " + current).code);
+		String stale = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(file.lastModified() - 60000).atOffset(ZoneOffset.UTC));
+		assertEquals(200, get("Range: bytes=0-99", "If-Range: " + stale).code);
+	}
+
+	@Test
+	public void testParse()
+	{
+		assertEquals(Arrays.asList(new ByteRange(0, 9), new ByteRange(90, 99)), ByteRange.parse("bytes=0-9,-10", 100));
+		assertEquals(Arrays.asList(new ByteRange(10, 99)), ByteRange.parse("bytes= 10-500 ", 100));
+		assertTrue(ByteRange.parse("bytes=100-", 100).isEmpty());
+		assertNull(ByteRange.parse("bytes=9-0", 100));
+		assertNull(ByteRange.parse("bytes=abc", 100));
+	}
+
+	private static Response get(String... requestHeaders) throws IOException
+	{
+		return RawHttp.get(port, "/binarydata.bin", requestHeaders);
+	}
+
+	@AfterClass
+	public static void shutdown()
+	{
+		i.close();
+	}
+}
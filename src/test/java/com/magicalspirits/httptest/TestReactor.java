@@ -0,0 +1,147 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+
+import lombok.SneakyThrows;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import com.google.inject.util.Modules;
+import com.magicalspirits.httptest.acceptor.Acceptor;
+import com.magicalspirits.httptest.acceptor.SelectorAcceptor;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpRuriParser;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+public class TestReactor
+{
+	private static CloseableInjector i;
+	private static int port = 0;
+
+	@BeforeClass
+	public static void setup()
+	{
+		i = Guice.createInjector(
+				new CloseableModule(), new Jsr250Module(), new ExecutorsModule(), new MetricsModule(),
+				Modules.override(new TestlineModule(HttpRuriParser.class, ServeHttpFile.class)).with(new ReactorTestModule()))
+					.getInstance(CloseableInjector.class);
+
+		port = i.getInstance(ServerSocket.class).getLocalPort();
+	}
+
+	@Test
+	public void testTextData() throws IOException
+	{
+		String fromServer = Resources.toString(new URL("http://localhost:" + port + "/testfile1.txt"), Charsets.UTF_8);
+
+		String fromLocal = Resources.toString(Resources.getResource("wwwroot/testfile1.txt"), Charsets.UTF_8);
+
+		assertEquals(fromLocal, fromServer);
+	}
+
+	@Test(timeout=5000)
+	@SneakyThrows
+	public void testIdleConnectionsDontHoldThreads()
+	{
+		int threadsBefore = countServerPoolThreads();
+		List<Socket> idle = Lists.newArrayList();
+		try
+		{
+			for(int i = 0; i < 50; i++)
+				idle.add(new Socket("localhost", port));
+
+			//everyone is connected, but nobody has said anything yet. Make sure real traffic still flows.
+			testTextData();
+
+			assertTrue("idle connections should not be parked on threads", countServerPoolThreads() - threadsBefore < 10);
+
+			//and the idle ones still get served once they speak up
+			Socket s = idle.get(0);
+			PrintStream ps = new PrintStream(s.getOutputStream(), true);
+			ps.print("GET /testfile1.txt HTTP/1.0\r\n\r\n");
+			ps.flush();
+			BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream(), Charsets.ISO_8859_1));
+			assertEquals("HTTP/1.0 200 OK", br.readLine());
+		}
+		finally
+		{
+			for(Socket s : idle)
+				s.close();
+		}
+	}
+
+	private static int countServerPoolThreads()
+	{
+		int count = 0;
+		for(Thread t : Thread.getAllStackTraces().keySet())
+		{
+			if(t.getName().startsWith(ExecutorsModule.HTTP_SERVER_POOL))
+				count++;
+		}
+		return count;
+	}
+
+	public static class ReactorTestModule extends AbstractModule
+	{
+		@Override
+		protected void configure()
+		{
+		}
+
+		@Provides
+		@Singleton
+		@SneakyThrows
+		public ServerSocketChannel getServerSocketChannel()
+		{
+			//Note: 0 means any available high port.
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(0));
+			return channel;
+		}
+
+		@Provides
+		@Singleton
+		public ServerSocket getServerSocket(ServerSocketChannel channel)
+		{
+			return channel.socket();
+		}
+
+		@Provides
+		@Singleton
+		public List<Acceptor> getAcceptors(SelectorAcceptor reactor)
+		{
+			return Lists.newArrayList(reactor);
+		}
+	}
+
+	@AfterClass
+	public static void shutdown()
+	{
+		i.close();
+	}
+}
@@ -0,0 +1,172 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import com.google.inject.Guice;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+public class TestRequestBody
+{
+	private static final int MAX_UPLOAD = 1 << 20;
+
+	private static CloseableInjector i;
+	private static int port = 0;
+
+	private static File uploaded;
+	private static File posted;
+
+	@BeforeClass
+	public static void setup()
+	{
+		Properties properties = new Properties();
+		properties.setProperty(ServerConfig.PUT_ENABLED, "true");
+		properties.setProperty(ServerConfig.PUT_MAX_BYTES, Integer.toString(MAX_UPLOAD));
+		final ServerConfig config = new ServerConfig(properties);
+
+		i = Guice.createInjector(
+				new CloseableModule(), new Jsr250Module(), new ExecutorsModule(),
+				new MetricsModule(), new TestlineModule(HttpRequestParser.class, ServeHttpFile.class),
+				binder -> binder.bind(ServerConfig.class).toInstance(config))
+					.getInstance(CloseableInjector.class);
+
+		port = i.getInstance(ServerSocket.class).getLocalPort();
+		uploaded = new File(Resources.getResource("wwwroot").getFile(), "uploaded.bin");
+		posted = new File(Resources.getResource("wwwroot").getFile(), "posted.txt");
+	}
+
+	@After
+	public void removeUpload()
+	{
+		uploaded.delete();
+		posted.delete();
+	}
+
+	@Test
+	public void testContentLengthUpload() throws IOException
+	{
+		//big enough that most of it is read straight from the socket, past the decoder's buffer.
+		byte[] content = new byte[300000];
+		new Random(7).nextBytes(content);
+		try(Socket s = new Socket("localhost", port))
+		{
+			OutputStream out = s.getOutputStream();
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			out.write(("PUT /uploaded.bin HTTP/1.1\r\nContent-Length: " + content.length + "\r\n\r\n").getBytes(Charsets.ISO_8859_1));
+			out.write(content);
+			out.flush();
+			assertEquals(0, RawHttp.readBody(in, 201).length);
+			assertArrayEquals(content, Files.toByteArray(uploaded));
+
+			//the body was all read, so the connection carries on.
+			out.write("PUT /uploaded.bin HTTP/1.1\r\nContent-Length: 5\r\n\r\nhelloGET /uploaded.bin HTTP/1.1\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+			out.flush();
+			assertEquals(0, RawHttp.readBody(in, 204).length);
+			assertEquals("hello", new String(RawHttp.readBody(in, 200), Charsets.ISO_8859_1));
+		}
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testChunkedUploadWithContinue() throws IOException
+	{
+		try(Socket s = new Socket("localhost", port))
+		{
+			OutputStream out = s.getOutputStream();
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			out.write("PUT /uploaded.bin HTTP/1.1\r\nTransfer-Encoding: chunked\r\nExpect: 100-continue\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+			out.flush();
+			assertEquals("HTTP/1.1 100 Continue", in.readLine());
+			assertEquals("", in.readLine());
+
+			out.write("5;name=value\r\nhello\r\n7\r\n, world\r\n0\r\nSome-Trailer: x\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+			out.flush();
+			assertEquals(0, RawHttp.readBody(in, 201).length);
+			assertEquals("hello, world", Files.toString(uploaded, Charsets.ISO_8859_1));
+		}
+	}
+
+	@Test
+	public void testTooLargeIsRefusedBeforeTheBody() throws IOException
+	{
+		try(Socket s = new Socket("localhost", port))
+		{
+			OutputStream out = s.getOutputStream();
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			out.write(("PUT /uploaded.bin HTTP/1.1\r\nContent-Length: " + (MAX_UPLOAD + 1) + "\r\nExpect: 100-continue\r\n\r\n").getBytes(Charsets.ISO_8859_1));
+			out.flush();
+			//no 100 Continue first, and the body is never read, so the connection can't carry on.
+			assertEquals(0, RawHttp.readBody(in, 413).length);
+			assertEquals(-1, in.read());
+		}
+		assertFalse(uploaded.exists());
+	}
+
+	@Test
+	public void testFormPostStoresFiles() throws IOException
+	{
+		byte[] content = new byte[100000];
+		new Random(11).nextBytes(content);
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(("--xyzzy\r\n"
+				+ "Content-Disposition: form-data; name=\"comment\"\r\n\r\n"
+				+ "not stored\r\n"
+				+ "--xyzzy\r\n"
+				+ "Content-Disposition: form-data; name=\"first\"; filename=\"C:\\\\somewhere\\\\posted.txt\"\r\n\r\n"
+				+ "posted text\r\n"
+				+ "--xyzzy\r\n"
+				+ "Content-Disposition: form-data; name=\"second\"; filename=\"uploaded.bin\"\r\n"
+				+ "Content-Type: application/octet-stream\r\n\r\n").getBytes(Charsets.ISO_8859_1));
+		body.write(content);
+		body.write("\r\n--xyzzy--\r\n".getBytes(Charsets.ISO_8859_1));
+
+		try(Socket s = new Socket("localhost", port))
+		{
+			OutputStream out = s.getOutputStream();
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			out.write(("POST / HTTP/1.1\r\nContent-Type: multipart/form-data; boundary=xyzzy\r\nContent-Length: " + body.size() + "\r\n\r\n").getBytes(Charsets.ISO_8859_1));
+			body.writeTo(out);
+			out.flush();
+			assertEquals(0, RawHttp.readBody(in, 201).length);
+			assertEquals("posted text", Files.toString(posted, Charsets.ISO_8859_1));
+			assertArrayEquals(content, Files.toByteArray(uploaded));
+
+			//all of the body was read, epilogue and all, so the connection carries on.
+			out.write("GET /posted.txt HTTP/1.1\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+			out.flush();
+			assertEquals("posted text", new String(RawHttp.readBody(in, 200), Charsets.ISO_8859_1));
+		}
+	}
+
+	@AfterClass
+	public static void shutdown()
+	{
+		i.close();
+	}
+}
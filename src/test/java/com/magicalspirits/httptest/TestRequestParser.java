@@ -0,0 +1,186 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import lombok.SneakyThrows;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.inject.Guice;
+import com.magicalspirits.httptest.TestParser.ApplicationRunnerTestImpl;
+import com.magicalspirits.httptest.httpparser.HttpRequestDecoder;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.httpparser.RequestHeaders;
+import com.magicalspirits.httptest.httpparser.RequestHeaders.Known;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+public class TestRequestParser
+{
+	private static CloseableInjector i;
+	private static int port = 0;
+
+	@BeforeClass
+	public static void setup()
+	{
+		i = Guice.createInjector(
+				new CloseableModule(), new Jsr250Module(), new ExecutorsModule(),
+				new MetricsModule(), new TestlineModule(HttpRequestParser.class, ApplicationRunnerTestImpl.class))
+					.getInstance(CloseableInjector.class);
+
+		port = i.getInstance(ServerSocket.class).getLocalPort();
+	}
+
+	@Test
+	@SneakyThrows
+	public void testSingleParse()
+	{
+		try(Socket s = new Socket("localhost", port))
+		{
+			PrintStream ps = new PrintStream(s.getOutputStream(), true);
+			ps.println("GET /test%20file HTTP/1.0");
+			ps.println("SomeHeader: someValue");
+			ps.println("SomeHeaderTwoRow: someValue1");
+			ps.println("SomeHeaderTwoRow: someValue2");
+			ps.println("SomeHeaderCommas: someValue1,someValue2");
+			ps.println("SomeHeaderCommasAndRows: someValue1,someValue2");
+			ps.println("SomeHeaderCommasAndRows: someValue3");
+			ps.println("SomeHeaderCommasAndRows: someValue4,someValue5");
+			ps.println();
+			ps.flush();
+
+			BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream(), Charsets.ISO_8859_1));
+
+			String text = br.readLine();
+			assertEquals("200 OK", text);
+			assertNotNull(ApplicationRunnerTestImpl.getLastConstructed());
+			assertEquals("GET", ApplicationRunnerTestImpl.getLastConstructed().getHttpRuri().getRequestType());
+			assertEquals("/test file", ApplicationRunnerTestImpl.getLastConstructed().getHttpRuri().getRuriPath());
+			assertEquals("HTTP/1.0", ApplicationRunnerTestImpl.getLastConstructed().getHttpRuri().getVersion());
+
+			assertEquals("someValue", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().getAll("SomeHeader").get(0));
+			assertEquals("someValue1", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().getAll("SomeHeaderTwoRow").get(0));
+			assertEquals("someValue2", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().getAll("SomeHeaderTwoRow").get(1));
+
+			assertEquals("someValue1", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().getAll("SomeHeaderCommas").get(0));
+			assertEquals("someValue2", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().getAll("SomeHeaderCommas").get(1));
+			for(int i = 1; i <= 5; i++)
+				assertEquals("someValue" + i, ApplicationRunnerTestImpl.getLastConstructed().getHeaders().getAll("SomeHeaderCommasAndRows").get(i-1));
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	public void testFragmentedHead()
+	{
+		byte[] request = "\r\nGET /frag HTTP/1.1\r\nHost: localhost\r\nX-Split: one, two\r\n\r\n".getBytes(Charsets.ISO_8859_1);
+		try(Socket s = new Socket("localhost", port))
+		{
+			s.setTcpNoDelay(true);
+			OutputStream os = s.getOutputStream();
+			//a few bytes at a time, so the head arrives over many reads and splits inside every token.
+			for(int offset = 0; offset < request.length; offset += 3)
+			{
+				os.write(request, offset, Math.min(3, request.length - offset));
+				os.flush();
+				Thread.sleep(2);
+			}
+
+			BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream(), Charsets.ISO_8859_1));
+			assertEquals("200 OK", br.readLine());
+			assertEquals("/frag", ApplicationRunnerTestImpl.getLastConstructed().getHttpRuri().getRuriPath());
+			assertEquals("HTTP/1.1", ApplicationRunnerTestImpl.getLastConstructed().getHttpRuri().getVersion());
+			assertEquals("localhost", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().getAll("Host").get(0));
+			assertEquals("two", ApplicationRunnerTestImpl.getLastConstructed().getHeaders().getAll("X-Split").get(1));
+		}
+	}
+
+	@Test
+	@SneakyThrows
+	public void testDecoderKeepsTheNextRequest()
+	{
+		byte[] two = "GET /one HTTP/1.1\r\nhost: a\r\n\r\nGET /two HTTP/1.1\r\nHost: b\r\n\r\n".getBytes(Charsets.ISO_8859_1);
+		HttpRequestDecoder decoder = new HttpRequestDecoder(40, 10);
+		ByteArrayInputStream in = new ByteArrayInputStream(two);
+
+		decoder.nextRequest();
+		HttpRequestDecoder.Result result;
+		while((result = decoder.decode()) == HttpRequestDecoder.Result.INCOMPLETE)
+			decoder.readFrom(in);
+		assertEquals(HttpRequestDecoder.Result.COMPLETE, result);
+		assertEquals("/one", decoder.getUri());
+		assertEquals("a", decoder.getHeaderValue("HOST"));
+		assertNull(decoder.getHeaderValue("Connection"));
+
+		//the second request is bigger than what's left of the buffer, so it has to move to the front.
+		decoder.nextRequest();
+		while((result = decoder.decode()) == HttpRequestDecoder.Result.INCOMPLETE)
+			decoder.readFrom(in);
+		assertEquals(HttpRequestDecoder.Result.COMPLETE, result);
+		assertEquals("GET", decoder.getMethod());
+		assertEquals("/two", decoder.getUri());
+		assertEquals("b", decoder.getHeaderValue("host"));
+	}
+
+	@Test
+	@SneakyThrows
+	public void testDecoderRejectsGarbage()
+	{
+		HttpRequestDecoder decoder = new HttpRequestDecoder(64, 10);
+		decoder.nextRequest();
+		decoder.readFrom(new ByteArrayInputStream("NOTHTTP\r\n\r\n".getBytes(Charsets.ISO_8859_1)));
+		assertEquals(HttpRequestDecoder.Result.INVALID, decoder.decode());
+	}
+
+	@Test
+	public void testHeaderStore()
+	{
+		RequestHeaders headers = new RequestHeaders();
+		headers.add("connection", "Keep-Alive, Upgrade");
+		headers.add("X-Custom", "a");
+		headers.add("x-custom", "b,c");
+		headers.add("CONNECTION", "close");
+
+		assertEquals("Keep-Alive, Upgrade", headers.get(Known.CONNECTION));
+		assertEquals("Keep-Alive, Upgrade", headers.get("Connection"));
+		assertEquals(Arrays.asList("Keep-Alive", "Upgrade", "close"), headers.getAll(Known.CONNECTION));
+		assertEquals(Arrays.asList("a", "b", "c"), headers.getAll("X-CUSTOM"));
+		assertTrue(headers.containsValue(Known.CONNECTION, "upgrade"));
+		assertTrue(headers.containsValue(Known.CONNECTION, "CLOSE"));
+		assertFalse(headers.contains(Known.HOST));
+		assertTrue(headers.getAll("Missing").isEmpty());
+
+		//the next request on the connection reuses it.
+		headers.clear();
+		headers.add("Host", "localhost");
+		assertEquals(1, headers.size());
+		assertNull(headers.get(Known.CONNECTION));
+		assertFalse(headers.containsValue(Known.CONNECTION, "close"));
+		assertEquals("localhost", headers.get(Known.HOST));
+	}
+
+	@AfterClass
+	public static void shutdown()
+	{
+		i.close();
+	}
+}
@@ -0,0 +1,227 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
+import com.google.inject.Guice;
+import com.magicalspirits.httptest.acceptor.IdleConnectionParker;
+import com.magicalspirits.httptest.httpapplication.AbstractApplicationRunner;
+import com.magicalspirits.httptest.httpapplication.RouteTable;
+import com.magicalspirits.httptest.httpapplication.Router;
+import com.magicalspirits.httptest.httpapplication.Routes;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+public class TestRouter
+{
+	private static CloseableInjector i;
+	private static int port = 0;
+	private static MetricRegistry registry;
+
+	@BeforeClass
+	public static void setup()
+	{
+		i = Guice.createInjector(
+				new CloseableModule(), new Jsr250Module(), new ExecutorsModule(),
+				new MetricsModule(), new TestlineModule(HttpRequestParser.class, ServeHttpFile.class),
+				binder ->
+				{
+					Routes.newRouteBinder(binder).addBinding("/teapot/*/brew").to(Teapot.class);
+					Routes.newRouteBinder(binder).addBinding("/broken").to(Broken.class);
+				})
+					.getInstance(CloseableInjector.class);
+
+		port = i.getInstance(ServerSocket.class).getLocalPort();
+		registry = i.getInstance(MetricRegistry.class);
+	}
+
+	@Test
+	public void testPrecedence()
+	{
+		RouteTable<String> table = new RouteTable<>(ImmutableMap.<String, String>builder()
+				.put("/", "root")
+				.put("/**", "everything")
+				.put("/static/**", "static")
+				.put("/static/css/**", "css")
+				.put("/static/css/site.css", "site")
+				.put("/users/*", "user")
+				.put("/users/*/avatar", "avatar")
+				.put("/users/me/avatar", "mine")
+				.put("/users/me/*/posts", "my posts")
+				.build());
+
+		assertEquals("root", table.match("/"));
+		assertEquals("everything", table.match("/anything/else"));
+		assertEquals("static", table.match("/static"));
+		assertEquals("static", table.match("/static/js/app.js"));
+		assertEquals("css", table.match("/static/css/other.css"));
+		assertEquals("site", table.match("/static/css/site.css"));
+		assertEquals("user", table.match("/users/42"));
+		assertEquals("avatar", table.match("/users/42/avatar"));
+		assertEquals("mine", table.match("/users/me/avatar"));
+		assertEquals("avatar", table.match("/users/you/avatar"));
+		assertEquals("my posts", table.match("/users/me/2014/posts"));
+		//the literal me has nothing for this, so the * is tried.
+		assertEquals("user", table.match("/users/me"));
+		//a * is one segment, and not an empty one.
+		assertEquals("everything", table.match("/users//avatar"));
+		assertEquals("everything", table.match("/users/42/avatar/large"));
+	}
+
+	@Test
+	public void testNoMatch()
+	{
+		RouteTable<String> table = new RouteTable<>(ImmutableMap.of("/metrics", "metrics", "/api/*/items", "items", "/files/**", "files"));
+		assertNull(table.match("/metrics/"));
+		assertNull(table.match("/api/items"));
+		assertNull(table.match("/api/v1/items/3"));
+		assertNull(table.match("/file"));
+		assertNull(table.match("*"));
+		assertEquals("files", table.match("/files/"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPrefixMustBeLast()
+	{
+		new RouteTable<>(ImmutableMap.of("/files/**/list", "list"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWildcardIsAWholeSegment()
+	{
+		new RouteTable<>(ImmutableMap.of("/files/*.txt", "text"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRoutesAreAbsolute()
+	{
+		new RouteTable<>(ImmutableMap.of("metrics", "metrics"));
+	}
+
+	@Test
+	public void testDispatchIsCountedPerRoute() throws IOException
+	{
+		long metrics = dispatched("/metrics");
+		long content = dispatched("/**");
+		long teapots = dispatched("/teapot/*/brew");
+
+		assertTrue(Resources.toString(new URL("http://localhost:" + port + "/metrics"), Charsets.UTF_8).contains("\"gauges\""));
+		assertTrue(Resources.toString(new URL("http://localhost:" + port + "/testfile1.txt"), Charsets.UTF_8).startsWith("simple text data"));
+		assertEquals(418, ((HttpURLConnection)new URL("http://localhost:" + port + "/teapot/earl-grey/brew").openConnection()).getResponseCode());
+		//not a teapot route, so it's content, which has no such file.
+		assertEquals(404, ((HttpURLConnection)new URL("http://localhost:" + port + "/teapot/earl-grey").openConnection()).getResponseCode());
+
+		assertEquals(metrics + 1, dispatched("/metrics"));
+		assertEquals(content + 2, dispatched("/**"));
+		assertEquals(teapots + 1, dispatched("/teapot/*/brew"));
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testMalformedPathsAreForbidden() throws IOException
+	{
+		for(String path : new String[] { "metrics", "/metrics/../monitoring", "/../testfile1.txt" })
+		{
+			try(Socket s = new Socket("localhost", port))
+			{
+				s.getOutputStream().write(("GET " + path + " HTTP/1.0\r\n\r\n").getBytes(Charsets.ISO_8859_1));
+				assertEquals(path, "HTTP/1.0 403 Forbidden", new DataInputStream(s.getInputStream()).readLine());
+			}
+		}
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testFailureClosesRatherThanParks() throws IOException
+	{
+		Meter parks = registry.meter(MetricRegistry.name(IdleConnectionParker.class, "parks"));
+		long parksBefore = parks.getCount();
+		try(Socket s = new Socket("localhost", port))
+		{
+			s.getOutputStream().write("GET /broken HTTP/1.1\r\n\r\n".getBytes(Charsets.ISO_8859_1));
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			assertEquals("HTTP/1.1 500 Internal Server Error", in.readLine());
+			for(String header = in.readLine(); !header.isEmpty(); header = in.readLine());
+			//closed, although the client asked for keep alive.
+			assertEquals(-1, in.read());
+		}
+		assertEquals(parksBefore, parks.getCount());
+	}
+
+	private static long dispatched(String pattern)
+	{
+		return registry.meter(MetricRegistry.name(Router.class, "routes", pattern)).getCount();
+	}
+
+	public static class Teapot extends AbstractApplicationRunner
+	{
+		@Override
+		public boolean isInline()
+		{
+			return true;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				openResponse();
+				returnResponseCode(418, "I'm a teapot");
+				finish();
+			}
+			catch(IOException ioe)
+			{
+				fail(ioe);
+			}
+		}
+	}
+
+	/**
+	 * Not inline, so it finishes on the application pool, where a kept alive connection goes straight to the parker.
+	 */
+	public static class Broken extends AbstractApplicationRunner
+	{
+		@Override
+		public void run()
+		{
+			try
+			{
+				openResponse();
+				throw new IOException("broken on purpose");
+			}
+			catch(IOException ioe)
+			{
+				fail(ioe);
+			}
+		}
+	}
+
+	@AfterClass
+	public static void shutdown()
+	{
+		i.close();
+	}
+}
@@ -0,0 +1,198 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.inject.Guice;
+import com.google.inject.Key;
+import com.magicalspirits.httptest.httpapplication.AbstractApplicationRunner;
+import com.magicalspirits.httptest.httpapplication.Routes;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.launcher.ShardedReactorModule;
+import com.magicalspirits.httptest.launcher.ShardedReactorModule.ShardPools;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+public class TestShardedReactor
+{
+	private static final int SHARDS = 2;
+
+	private static final int CONNECTIONS = 32;
+
+	private static CloseableInjector i;
+	private static int port = 0;
+
+	//SHARDS, or 1 where SO_REUSEPORT isn't supported.
+	private static int shards;
+
+	@BeforeClass
+	public static void setup()
+	{
+		Properties properties = new Properties();
+		properties.setProperty(ServerConfig.PORT, "0");
+		properties.setProperty(ServerConfig.SHARDS, Integer.toString(SHARDS));
+		properties.setProperty(ServerConfig.THREADS_PER_SHARD, "2");
+		final ServerConfig config = new ServerConfig(properties);
+
+		i = Guice.createInjector(
+				new CloseableModule(), new Jsr250Module(), new ExecutorsModule(),
+				new MetricsModule(), new ShardedReactorModule(),
+				binder ->
+				{
+					binder.bind(ServerConfig.class).toInstance(config);
+					Routes.newRouteBinder(binder).addBinding("/thread").to(ThreadName.class);
+				})
+					.getInstance(CloseableInjector.class);
+
+		port = i.getInstance(ServerSocket.class).getLocalPort();
+		shards = i.getInstance(new Key<List<ServerSocketChannel>>(){}).size();
+	}
+
+	@Test
+	public void testRequestsSpreadAcrossShards() throws IOException
+	{
+		MetricRegistry registry = i.getInstance(MetricRegistry.class);
+		long[] before = new long[shards];
+		for(int shard = 0; shard < shards; shard++)
+			before[shard] = accepts(registry, shard);
+
+		String fromLocal = Resources.toString(Resources.getResource("wwwroot/testfile1.txt"), Charsets.UTF_8);
+		for(int i = 0; i < CONNECTIONS; i++)
+		{
+			//a connection each, so every request is a new accept.
+			try(Socket s = new Socket("localhost", port))
+			{
+				RawHttp.Response response = RawHttp.get(s, new DataInputStream(s.getInputStream()), "/testfile1.txt");
+				assertEquals(200, response.code);
+				assertEquals(fromLocal, new String(response.body, Charsets.UTF_8));
+			}
+		}
+
+		//the kernel hashes each connection to a shard, so every shard should have had some of them.
+		long total = 0;
+		for(int shard = 0; shard < shards; shard++)
+		{
+			assertNotNull(registry.getGauges().get("shard-" + shard + ".queue-depth"));
+			long accepted = accepts(registry, shard) - before[shard];
+			assertTrue("shard-" + shard + " accepted nothing", accepted > 0);
+			total += accepted;
+		}
+		assertEquals(CONNECTIONS, total);
+	}
+
+	@Test
+	public void testKeepAliveRequestsStayOnTheirShard() throws IOException
+	{
+		MetricRegistry registry = i.getInstance(MetricRegistry.class);
+		long before = count(registry, "submitted");
+		try(Socket s = new Socket("localhost", port))
+		{
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			for(int request = 0; request < 3; request++)
+				assertEquals(200, RawHttp.get(s, in, "/testfile1.txt").code);
+			//the first one from the acceptor, the other two from the parker. Closing would wake it once more.
+			assertEquals(before + 3, count(registry, "submitted"));
+		}
+	}
+
+	@Test
+	public void testFullShardRejects() throws InterruptedException
+	{
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService pool = i.getInstance(ShardPools.class).create("shard-test", 1, 0);
+		try
+		{
+			pool.execute(() -> Uninterruptibles.awaitUninterruptibly(release));
+			pool.execute(() -> {});
+			fail("A shard with a busy thread and no queue took more work");
+		}
+		catch(RejectedExecutionException expected)
+		{
+			assertEquals(1, i.getInstance(MetricRegistry.class).meter("shard-test.rejected").getCount());
+		}
+		finally
+		{
+			release.countDown();
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testApplicationRunsOnTheShard() throws IOException
+	{
+		String thread = Resources.toString(new URL("http://localhost:" + port + "/thread"), Charsets.UTF_8);
+		assertTrue(thread, thread.startsWith("shard-"));
+	}
+
+	private static long accepts(MetricRegistry registry, int shard)
+	{
+		Meter accepts = registry.getMeters().get("shard-" + shard + ".accepts");
+		return accepts == null ? 0 : accepts.getCount();
+	}
+
+	private static long count(MetricRegistry registry, String meter)
+	{
+		long count = 0;
+		for(int shard = 0; shard < shards; shard++)
+		{
+			if(registry.getMeters().containsKey("shard-" + shard + "." + meter))
+				count += registry.getMeters().get("shard-" + shard + "." + meter).getCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Not inline, so it runs wherever the application stage is sent, and answers with the name of that thread.
+	 */
+	public static class ThreadName extends AbstractApplicationRunner
+	{
+		@Override
+		public void run()
+		{
+			try
+			{
+				openResponse();
+				byte[] name = Thread.currentThread().getName().getBytes(Charsets.UTF_8);
+				writeResultHeader(ps, 200, "OK", "text/plain", name.length);
+				ps.write(name);
+				finish();
+			}
+			catch(IOException ioe)
+			{
+				fail(ioe);
+			}
+		}
+	}
+
+	@AfterClass
+	public static void shutdown()
+	{
+		i.close();
+	}
+}
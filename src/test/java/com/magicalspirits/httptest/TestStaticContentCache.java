@@ -0,0 +1,111 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Properties;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import com.google.inject.Guice;
+import com.magicalspirits.httptest.httpapplication.ContentHashes;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpapplication.StaticContentCache;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+public class TestStaticContentCache
+{
+	private static CloseableInjector i;
+	private static int port = 0;
+	private static File root;
+
+	private static Meter hits;
+	private static Meter misses;
+	private static Meter invalidations;
+
+	@BeforeClass
+	public static void setup()
+	{
+		root = Files.createTempDir();
+		Properties properties = new Properties();
+		properties.setProperty(ServerConfig.CONTENT_ROOT, root.getAbsolutePath());
+		final ServerConfig config = new ServerConfig(properties);
+
+		i = Guice.createInjector(
+				new CloseableModule(), new Jsr250Module(), new ExecutorsModule(),
+				new MetricsModule(), new TestlineModule(HttpRequestParser.class, ServeHttpFile.class),
+				binder -> binder.bind(ServerConfig.class).toInstance(config))
+					.getInstance(CloseableInjector.class);
+
+		port = i.getInstance(ServerSocket.class).getLocalPort();
+		MetricRegistry registry = i.getInstance(MetricRegistry.class);
+		hits = registry.meter(MetricRegistry.name(StaticContentCache.class, "hits"));
+		misses = registry.meter(MetricRegistry.name(StaticContentCache.class, "misses"));
+		invalidations = registry.meter(MetricRegistry.name(StaticContentCache.class, "invalidations"));
+	}
+
+	@Test
+	public void testChangedFilesAreServedFresh() throws IOException
+	{
+		File file = new File(root, "hot.txt");
+		Files.write("first", file, Charsets.UTF_8);
+		awaitETag(file);
+		long hitsBefore = hits.getCount();
+		long missesBefore = misses.getCount();
+		long invalidationsBefore = invalidations.getCount();
+
+		assertEquals("first", get("/hot.txt"));
+		assertEquals("first", get("/hot.txt"));
+		assertEquals(missesBefore + 1, misses.getCount());
+		assertEquals(hitsBefore + 1, hits.getCount());
+
+		Files.write("second version", file, Charsets.UTF_8);
+		awaitETag(file);
+		assertEquals("second version", get("/hot.txt"));
+		assertEquals(invalidationsBefore + 1, invalidations.getCount());
+
+		//as long as the last version, so the cached response has only the newer modification time to go on.
+		long lastModified = file.lastModified();
+		Files.write("second edition", file, Charsets.UTF_8);
+		file.setLastModified(lastModified + 2000);
+		awaitETag(file);
+		assertEquals("second edition", get("/hot.txt"));
+		assertEquals(invalidationsBefore + 2, invalidations.getCount());
+		assertEquals(missesBefore + 3, misses.getCount());
+	}
+
+	//a file is cached with its entity tag, so one that's hashed between two requests is cached twice.
+	private static void awaitETag(File file)
+	{
+		RawHttp.awaitETag(i.getInstance(ContentHashes.class), file);
+	}
+
+	private static String get(String path) throws IOException
+	{
+		return Resources.toString(new URL("http://localhost:" + port + path), Charsets.UTF_8);
+	}
+
+	@AfterClass
+	public static void shutdown()
+	{
+		i.close();
+		new File(root, "hot.txt").delete();
+		root.delete();
+	}
+}
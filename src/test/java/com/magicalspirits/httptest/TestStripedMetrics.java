@@ -0,0 +1,122 @@
+package com.magicalspirits.httptest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.annotation.Metered;
+import com.codahale.metrics.annotation.Timed;
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+import com.google.inject.Guice;
+import com.magicalspirits.httptest.httpapplication.ServeHttpFile;
+import com.magicalspirits.httptest.httpparser.HttpRequestParser;
+import com.magicalspirits.httptest.launcher.ExecutorsModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
+import com.magicalspirits.httptest.metricsmonitoring.MetricsModule;
+import com.magicalspirits.httptest.metricsmonitoring.StripedMetricsListener;
+import com.magicalspirits.httptest.metricsmonitoring.StripedTimer;
+import com.mycila.guice.ext.closeable.CloseableInjector;
+import com.mycila.guice.ext.closeable.CloseableModule;
+import com.mycila.guice.ext.jsr250.Jsr250Module;
+
+public class TestStripedMetrics
+{
+	private static CloseableInjector i;
+	private static int port = 0;
+	private static MetricRegistry registry;
+	private static ServerConfig config;
+
+	@BeforeClass
+	public static void setup()
+	{
+		Properties properties = new Properties();
+		properties.setProperty(ServerConfig.METRICS_INSTRUMENTATION, "striped");
+		config = new ServerConfig(properties);
+
+		i = Guice.createInjector(
+				new CloseableModule(), new Jsr250Module(), new ExecutorsModule(),
+				new MetricsModule(config), new TestlineModule(HttpRequestParser.class, ServeHttpFile.class),
+				binder -> binder.bind(ServerConfig.class).toInstance(config))
+					.getInstance(CloseableInjector.class);
+
+		port = i.getInstance(ServerSocket.class).getLocalPort();
+		registry = i.getInstance(MetricRegistry.class);
+	}
+
+	@Test
+	public void testStagesAreCountedAndTimed() throws IOException
+	{
+		for(int j = 0; j < 10; j++)
+			assertTrue(Resources.toString(new URL("http://localhost:" + port + "/testfile1.txt"), Charsets.UTF_8).startsWith("simple text data"));
+
+		Metric runs = registry.getMetrics().get(MetricRegistry.name(ServeHttpFile.class, "run.meter", StripedMetricsListener.STRIPED));
+		assertTrue(String.valueOf(runs), runs instanceof Counter);
+		assertTrue(((Counter)runs).getCount() >= 10);
+
+		Metric timer = registry.getMetrics().get(MetricRegistry.name(ServeHttpFile.class, "run.timed", StripedMetricsListener.STRIPED));
+		assertTrue(String.valueOf(timer), timer instanceof StripedTimer);
+		//a call is timed once it returns, which can be just after the client has its response.
+		long deadline = System.currentTimeMillis() + 1000;
+		Map<String, Number> value = ((StripedTimer)timer).getValue();
+		while(value.get("sampled").longValue() < 10 && System.currentTimeMillis() < deadline)
+		{
+			Thread.yield();
+			value = ((StripedTimer)timer).getValue();
+		}
+		assertTrue(value.toString(), value.get("sampled").longValue() >= 10);
+		assertTrue(value.toString(), value.get("mean-micros").doubleValue() > 0);
+		assertTrue(value.toString(), value.get("max-micros").doubleValue() > 0);
+		//reading it doesn't start the max over, so every reader sees the same one.
+		assertEquals(value.get("max-micros").doubleValue(), ((StripedTimer)timer).getValue().get("max-micros").doubleValue(), 0);
+
+		String fromServer = Resources.toString(new URL("http://localhost:" + port + "/metrics"), Charsets.UTF_8);
+		assertTrue(fromServer.contains("com.magicalspirits.httptest.httpparser.HttpRequestParser.run.meter.striped"));
+		assertTrue(fromServer.contains("com.magicalspirits.httptest.httpparser.HttpRequestParser.run.timed.striped"));
+	}
+
+	@Test
+	public void testCodahaleModeStartsAfterStripedMode()
+	{
+		//the registry outlives injectors, so a codahale one can't find a striped metric where its meter or timer goes.
+		Guice.createInjector(new MetricsModule(config)).getInstance(Measured.class).measure();
+		Guice.createInjector(new MetricsModule()).getInstance(Measured.class).measure();
+
+		Metric meter = registry.getMetrics().get(MetricRegistry.name(Measured.class, "measure.meter"));
+		assertTrue(String.valueOf(meter), meter instanceof Meter);
+		assertEquals(1, ((Meter)meter).getCount());
+		Metric counter = registry.getMetrics().get(MetricRegistry.name(Measured.class, "measure.meter", StripedMetricsListener.STRIPED));
+		assertTrue(String.valueOf(counter), counter instanceof Counter);
+		assertEquals(1, ((Counter)counter).getCount());
+		assertTrue(registry.getMetrics().get(MetricRegistry.name(Measured.class, "measure.timed")) instanceof Timer);
+	}
+
+	public static class Measured
+	{
+		@Metered(name="measure.meter")
+		@Timed(name="measure.timed")
+		public void measure()
+		{
+		}
+	}
+
+	@AfterClass
+	public static void shutdown()
+	{
+		i.close();
+	}
+}
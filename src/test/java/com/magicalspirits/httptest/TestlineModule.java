@@ -1,7 +1,9 @@
 package com.magicalspirits.httptest;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Supplier;
@@ -11,14 +13,19 @@ import lombok.extern.slf4j.Slf4j;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Injector;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
+import com.magicalspirits.httptest.acceptor.Acceptor;
 import com.magicalspirits.httptest.acceptor.AcceptorService;
 import com.magicalspirits.httptest.acceptor.ServerSocketAcceptor;
 import com.magicalspirits.httptest.acceptor.SocketRunner;
 import com.magicalspirits.httptest.httpapplication.ApplicationRunner;
+import com.magicalspirits.httptest.httpapplication.ContentHashes;
+import com.magicalspirits.httptest.httpapplication.Router;
 import com.magicalspirits.httptest.httpparser.HttpHeaderParser;
 import com.magicalspirits.httptest.launcher.MainlineModule;
+import com.magicalspirits.httptest.launcher.ServerConfig;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -35,7 +42,9 @@ public class TestlineModule extends AbstractModule
 	{
 		bind(SocketRunner.class).to(socketRunner);
 		bind(AcceptorService.class).asEagerSingleton();
-		bind(ApplicationRunner.class).to(applicationRunner);
+		bind(ApplicationRunner.class).to(Router.class);
+		MainlineModule.bindRoutes(binder(), applicationRunner);
+		bind(ContentHashes.class).asEagerSingleton();
 	}
 	
 	/**
@@ -73,7 +82,9 @@ public class TestlineModule extends AbstractModule
 		{
 			//Note: 0 means any available high port. This is valuable for testing, as it wont conflict
 			// with other services running on the computer building and testing this service.
-			return new ServerSocket(0);
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(0));
+			return channel.socket();
 		} 
 		catch (IOException e) 
 		{
@@ -84,9 +95,9 @@ public class TestlineModule extends AbstractModule
 	
 	@Provides
 	@Singleton
-	public List<ServerSocketAcceptor> getAcceptors(ServerSocketAcceptor ss1, ServerSocketAcceptor ss2)
+	public List<Acceptor> getAcceptors(Provider<ServerSocketAcceptor> acceptorProvider, ServerConfig config)
 	{
-		return mmm.getAcceptors(ss1, ss2);
+		return mmm.getAcceptors(acceptorProvider, config);
 	}
 
 	